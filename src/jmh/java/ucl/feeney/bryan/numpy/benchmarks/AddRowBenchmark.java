@@ -0,0 +1,93 @@
+package ucl.feeney.bryan.numpy.benchmarks;
+
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ucl.feeney.bryan.numpy.CsrShortMatrixBuilder;
+
+/**
+ * Measures the rate at which rows of different densities can be added to a
+ * {@link CsrShortMatrixBuilder}, both from maps, and from the parallel arrays
+ * of column indices and values. Run with <code>-prof gc</code> to see the bytes
+ * allocated per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddRowBenchmark
+{
+	/** The number of distinct rows we cycle through, so they're not all in cache */
+	private final static int ROW_COUNT = 1024;
+
+	private final static int COLS = 100000;
+
+	/** The number of non-zero entries in each row */
+	@Param({ "10", "100", "1000" })
+	public int density;
+
+	private Int2ShortMap[] maps;
+	private int[][]        cols;
+	private short[][]      vals;
+	private int            next;
+
+	private CsrShortMatrixBuilder builder;
+
+	@Setup(Level.Trial)
+	public void createRows()
+	{	Random rng = new Random (0xBE7C4);
+		maps = new Int2ShortMap[ROW_COUNT];
+		cols = new int[ROW_COUNT][];
+		vals = new short[ROW_COUNT][];
+		for (int r = 0; r < ROW_COUNT; r++)
+		{	Int2ShortMap row = new Int2ShortOpenHashMap (density);
+			while (row.size() < density)
+				row.put (rng.nextInt (COLS), (short) (rng.nextInt (100) + 1));
+			maps[r] = row;
+			cols[r] = row.keySet().toIntArray();
+			vals[r] = new short[density];
+			for (int i = 0; i < density; i++)
+				vals[r][i] = row.get (cols[r][i]);
+		}
+	}
+
+	/**
+	 * Starts each iteration with an empty builder, so its arrays don't grow
+	 * without limit over a long run.
+	 */
+	@Setup(Level.Iteration)
+	public void createBuilder()
+	{	builder = new CsrShortMatrixBuilder (COLS);
+	}
+
+	@Benchmark
+	public CsrShortMatrixBuilder addRowFromMap()
+	{	builder.addRow (maps[next++ & (ROW_COUNT - 1)]);
+		return builder;
+	}
+
+	@Benchmark
+	public CsrShortMatrixBuilder addRowFromArrays()
+	{	int r = next++ & (ROW_COUNT - 1);
+		builder.addRow (cols[r], vals[r], 0, density);
+		return builder;
+	}
+}
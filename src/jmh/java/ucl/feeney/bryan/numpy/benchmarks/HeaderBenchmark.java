@@ -0,0 +1,47 @@
+package ucl.feeney.bryan.numpy.benchmarks;
+
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ucl.feeney.bryan.numpy.CsrShortMatrixBuilder;
+
+/**
+ * Measures the fixed cost of writing out a matrix, which is paid once per matrix
+ * and so matters most when writing many small ones. A matrix of a single entry
+ * is written to a stream which discards it, so the time is nearly all spent
+ * encoding the NPY headers of the five arrays and the archive's entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark
+{
+	private CsrShortMatrixBuilder matrix;
+
+	@Setup
+	public void createMatrix()
+	{	matrix = new CsrShortMatrixBuilder (2000);
+		matrix.addRow (new Int2ShortOpenHashMap (new int[] { 7 }, new short[] { 1 }));
+	}
+
+	@Benchmark
+	public void writeTinyMatrix() throws Exception
+	{	matrix.writeTo (NullOutputStream.NULL_OUTPUT_STREAM, /* compress = */ false);
+	}
+}
@@ -0,0 +1,132 @@
+package ucl.feeney.bryan.numpy.benchmarks;
+
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ucl.feeney.bryan.numpy.CsrShortMatrixBuilder;
+
+/**
+ * Measures the time taken to write out matrices with different numbers of non-zero
+ * entries, through each of the ways a {@link CsrShortMatrixBuilder} can write
+ * itself out. The "bytes" counter gives the throughput in bytes written per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark
+{
+	private final static int COLS = 100000;
+
+	/** The average number of non-zero entries in a row */
+	private final static int DENSITY = 100;
+
+	/**
+	 * Counts the bytes written, which JMH reports as a rate alongside the number
+	 * of matrices written.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes
+	{	public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{	bytes = 0;
+		}
+
+		void add (Path[] paths) throws IOException
+		{	for (Path path : paths)
+				bytes += Files.size (path);
+		}
+	}
+
+	@Param({ "100000", "1000000", "10000000" })
+	public int nnz;
+
+	private CsrShortMatrixBuilder matrix;
+	private Path                  dir;
+	private ExecutorService       executor;
+
+	@Setup(Level.Trial)
+	public void createMatrix() throws IOException
+	{	Random rng = new Random (0x3A7E);
+		matrix = new CsrShortMatrixBuilder (COLS, nnz / DENSITY + 1, DENSITY);
+		Int2ShortMap row = new Int2ShortOpenHashMap();
+		while (matrix.getNonZeroCount() < nnz)
+		{	row.clear();
+			int size = (int) Math.min (rng.nextInt (2 * DENSITY) + 1, nnz - matrix.getNonZeroCount());
+			while (row.size() < size)
+				row.put (rng.nextInt (COLS), (short) (rng.nextInt (100) + 1));
+			matrix.addRow (row);
+		}
+
+		dir      = Files.createTempDirectory ("write-benchmark");
+		executor = Executors.newFixedThreadPool (Runtime.getRuntime().availableProcessors());
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFiles() throws IOException
+	{	executor.shutdown();
+		for (Path path : Files.newDirectoryStream (dir))
+			Files.delete (path);
+		Files.delete (dir);
+	}
+
+	@Benchmark
+	public void writeFiles (Bytes counter) throws Exception
+	{	counter.add (matrix.writeToFiles (dir.resolve ("files")));
+	}
+
+	@Benchmark
+	public void writeFilesConcurrently (Bytes counter) throws Exception
+	{	counter.add (matrix.writeToFiles (dir.resolve ("concurrent"), executor));
+	}
+
+	@Benchmark
+	public void writeMappedFiles (Bytes counter) throws Exception
+	{	counter.add (matrix.writeToMappedFiles (dir.resolve ("mapped")));
+	}
+
+	@Benchmark
+	public void writeArchive (Bytes counter) throws Exception
+	{	counter.add (matrix.writeToFile (dir.resolve ("archive")));
+	}
+
+	@Benchmark
+	public void writeCompressedArchive (Bytes counter) throws Exception
+	{	counter.add (matrix.writeToFile (dir.resolve ("compressed"), /* compress = */ true));
+	}
+
+	@Benchmark
+	public void writeCompressedArchiveInParallel (Bytes counter) throws Exception
+	{	counter.add (matrix.writeToFile (dir.resolve ("parallel"), Deflater.DEFAULT_COMPRESSION, executor));
+	}
+}
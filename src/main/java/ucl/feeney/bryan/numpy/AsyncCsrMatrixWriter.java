@@ -0,0 +1,414 @@
+package ucl.feeney.bryan.numpy;
+
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes out a sparse CSR matrix one row at a time, like {@link StreamingCsrMatrixWriter},
+ * but on a background thread, so the threads producing the rows don't wait on
+ * the disk.
+ * <p>
+ * Rows are copied into a ring buffer with a fixed number of slots, from which
+ * the background thread takes them, in the order they were added, and writes them
+ * out. Each slot keeps its arrays, growing them if need be, so once the buffer has
+ * seen the largest rows nothing more is allocated.
+ * <p>
+ * Several threads can add rows at once. Each only holds the lock for long enough
+ * to claim the next slot; it then copies its row into that slot while other
+ * producers claim and fill the slots after it, and the background thread writes
+ * out the slots before it. Once the row is copied, the slot is marked as ready
+ * with the index of its row, and the background thread, which takes the rows in
+ * order, waits for each slot it takes to be ready.
+ * <p>
+ * The size of the buffer sets the back-pressure on producers: if the disk can't
+ * keep up and the buffer fills, {@link #addRow(Int2ShortMap)} waits for a slot
+ * to free up, while {@link #offerRow(Int2ShortMap, long, TimeUnit)} only waits
+ * so long, so a producer can choose to drop or defer rows instead. The total time
+ * producers spent waiting is given by {@link #getWaitNanos()}, which shows whether
+ * the buffer or the disk is too small.
+ * <p>
+ * If writing a row fails, the background thread stops, rows can no longer be
+ * added, and the failure is reported by {@link #close()}, which otherwise waits
+ * for every row in the buffer to be written before closing the files.
+ */
+public class AsyncCsrMatrixWriter implements AutoCloseable
+{
+	/** The number of rows buffered by default */
+	public final static int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * A slot in the ring buffer, holding one row
+	 */
+	private final static class Slot
+	{	int[]   cols   = new int[16];
+		short[] values = new short[16];
+		int     size;   // or -1 if the row couldn't be copied
+
+		/** The index of the row last copied into this slot, written once it's been copied */
+		volatile long ready = -1;
+
+		void set (Int2ShortMap vector)
+		{	size = vector.size();
+			if (size > cols.length)
+			{	cols   = new int[Math.max (size, cols.length * 2)];
+				values = new short[cols.length];
+			}
+
+			int i = 0;
+			ObjectIterator<Int2ShortMap.Entry> iter = CsrMatrixBuilder.entries (vector);
+			while (iter.hasNext())
+			{	Int2ShortMap.Entry entry = iter.next();
+				cols[i]   = entry.getIntKey();
+				values[i] = entry.getShortValue();
+				++i;
+			}
+		}
+	}
+
+	private final StreamingCsrMatrixWriter out;
+	private final Thread                   writer;
+
+	private final Slot[] slots;
+	private long         head; // the number of rows taken and written by the background thread
+	private long         tail; // the number of rows added to the buffer, some of which may still be being copied
+
+	/** The row whose slot the background thread is waiting to be ready, or -1 */
+	private volatile long awaited = -1;
+
+	private final ReentrantLock lock     = new ReentrantLock();
+	private final Condition     notFull  = lock.newCondition();
+	private final Condition     notEmpty = lock.newCondition();
+
+	private boolean   closed;
+	private Exception failure;
+	private long      waitNanos;
+
+	/**
+	 * Creates a new writer, buffering up to {@link #DEFAULT_CAPACITY} rows.
+	 * @see #AsyncCsrMatrixWriter(Path, int, int)
+	 */
+	public AsyncCsrMatrixWriter (Path filePrefix, int cols) throws IOException
+	{	this (filePrefix, cols, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new writer, creating (or truncating) the three files that will hold
+	 * the matrix, and starts the background thread which writes to them.
+	 * @param filePrefix the prefix of all the files that will be created, see
+	 * {@link CsrMatrixWriter}
+	 * @param cols the number of columns in the matrix.
+	 * @param capacity the most rows which may be waiting to be written before
+	 * producers have to wait.
+	 * @throws IOException if one or more of the files could not be created.
+	 */
+	public AsyncCsrMatrixWriter (Path filePrefix, int cols, int capacity) throws IOException
+	{	this (openOutput (filePrefix, cols, capacity), capacity);
+	}
+
+	/**
+	 * Creates a new writer which writes rows to the given streaming writer on a
+	 * background thread, and closes it when this is closed.
+	 */
+	AsyncCsrMatrixWriter (StreamingCsrMatrixWriter out, int capacity)
+	{	checkCapacity (capacity);
+		slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++)
+			slots[i] = new Slot();
+
+		this.out = out;
+		writer   = new Thread (new Runnable() {
+			@Override
+			public void run()
+			{	drain();
+			}
+		}, "csr-writer-" + out.getPaths()[0].getFileName());
+		writer.start();
+	}
+
+	/**
+	 * Creates the files, once the capacity has been checked, so they're not left
+	 * open if it's wrong.
+	 */
+	private static StreamingCsrMatrixWriter openOutput (Path filePrefix, int cols, int capacity) throws IOException
+	{	checkCapacity (capacity);
+		return new StreamingCsrMatrixWriter (filePrefix, cols);
+	}
+
+	private static void checkCapacity (int capacity)
+	{	if (capacity <= 0)
+			throw new IllegalArgumentException ("The buffer must have room for at least one row, not " + capacity);
+	}
+
+	/**
+	 * Adds a row to the matrix, waiting for space in the buffer if it's full. The
+	 * row is copied, so the vector can be cleared and re-used as soon as this returns.
+	 * @param vector the non-zero entries in the row, keyed by column.
+	 * @return the index of the row in the matrix, which, when several threads are
+	 * adding rows, is the order in which they got space in the buffer.
+	 * @throws IOException if an earlier row could not be written, in which case no
+	 * more rows can be added.
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public long addRow (Int2ShortMap vector) throws IOException, InterruptedException
+	{	return offer (vector, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Adds a row to the matrix, if space can be found for it in the buffer within
+	 * the given time.
+	 * @return true if the row was added, false if the buffer was still full after
+	 * the given time.
+	 * @see #addRow(Int2ShortMap)
+	 */
+	public boolean offerRow (Int2ShortMap vector, long timeout, TimeUnit unit) throws IOException, InterruptedException
+	{	return offer (vector, unit.toNanos (timeout)) >= 0;
+	}
+
+	/**
+	 * Adds a row to the buffer, waiting up to the given time for space, returning
+	 * its index, or -1 if there was no space. The row is copied into its slot
+	 * after the lock is released, so producers copy their rows at the same time.
+	 */
+	private long offer (Int2ShortMap vector, long nanos) throws IOException, InterruptedException
+	{	// Checked first, as once a slot is claimed it has to be filled
+		checkColumns (vector, out.getCols());
+
+		long row = claim (nanos);
+		if (row < 0)
+			return -1;
+
+		Slot slot = slots[(int) (row % slots.length)];
+		try
+		{	slot.set (vector);
+		}
+		catch (RuntimeException | Error e)
+		{	slot.size = -1; // so the background thread stops, rather than waiting for it
+			throw e;
+		}
+		finally
+		{	slot.ready = row;
+			if (awaited == row)
+				LockSupport.unpark (writer);
+		}
+		return row;
+	}
+
+	/**
+	 * Claims the next slot in the buffer, waiting up to the given time for one
+	 * to be free, returning the index of its row, or -1 if there was no space.
+	 */
+	private long claim (long nanos) throws IOException, InterruptedException
+	{	lock.lockInterruptibly();
+		try
+		{	ensureWritable();
+			if (tail - head == slots.length)
+			{	long start = System.nanoTime();
+				while (tail - head == slots.length && failure == null && nanos > 0)
+					nanos = notFull.awaitNanos (nanos);
+				waitNanos += System.nanoTime() - start;
+
+				ensureWritable();
+				if (tail - head == slots.length)
+					return -1;
+			}
+
+			if (tail == head)
+				notEmpty.signal();
+			return tail++;
+		}
+		finally
+		{	lock.unlock();
+		}
+	}
+
+	private static void checkColumns (Int2ShortMap vector, int numCols)
+	{	IntIterator keys = vector.keySet().iterator();
+		while (keys.hasNext())
+		{	int col = keys.nextInt();
+			if (col < 0 || col >= numCols)
+				throw new IllegalArgumentException ("Column " + col + " is out of range for a matrix with " + numCols + " columns");
+		}
+	}
+
+	private void ensureWritable() throws IOException
+	{	if (closed)
+			throw new IllegalStateException ("This writer has already been closed");
+		if (failure != null)
+			throw new IOException ("Rows can no longer be added, as an earlier row could not be written", failure);
+	}
+
+	/**
+	 * Run on the background thread, takes all the rows waiting in the buffer at
+	 * once, and writes them out, then frees their slots, until the buffer is
+	 * closed and empty. Producers can fill the free slots while the rows taken are
+	 * being written. Rows are taken as soon as their slots are claimed, so each is
+	 * waited for, in turn, until it's been copied in.
+	 */
+	private void drain()
+	{	while (true)
+		{	long start, end;
+			lock.lock();
+			try
+			{	while (head == tail && !closed)
+					notEmpty.awaitUninterruptibly();
+				if (head == tail)
+					return;
+				start = head;
+				end   = tail;
+			}
+			finally
+			{	lock.unlock();
+			}
+
+			Exception err = null;
+			try
+			{	for (long row = start; row < end; row++)
+				{	Slot slot = slots[(int) (row % slots.length)];
+					awaitReady (slot, row);
+					if (slot.size < 0)
+						throw new IOException ("Row " + row + " could not be copied into the buffer");
+					out.addRow (slot.cols, slot.values, slot.size);
+				}
+			}
+			catch (Exception e)
+			{	err = e;
+			}
+			catch (Throwable t)
+			{	// e.g. running out of memory, which must still stop the writer
+				err = new IOException ("Failed to write a row: " + t, t);
+			}
+			finally
+			{	// However we got here, producers are released, and any failure reported
+				lock.lock();
+				try
+				{	head    = end;
+					failure = err;
+					notFull.signalAll();
+				}
+				finally
+				{	lock.unlock();
+				}
+			}
+			if (err != null)
+				return;
+		}
+	}
+
+	/**
+	 * Waits for the producer which claimed the given slot to copy its row in.
+	 * The producer wakes this thread once it's done if, as it then sees, this
+	 * has said it's waiting for that row; as both sides write one volatile field
+	 * and then read the other, at least one of them sees the other's write.
+	 */
+	private void awaitReady (Slot slot, long row)
+	{	if (slot.ready == row)
+			return;
+		awaited = row;
+		while (slot.ready != row)
+			LockSupport.park (this);
+		awaited = -1;
+	}
+
+	/**
+	 * @return the paths to the indices, indptr and data files in that order.
+	 */
+	public Path[] getPaths()
+	{	return out.getPaths();
+	}
+
+	public int getCols()
+	{	return out.getCols();
+	}
+
+	/**
+	 * The number of rows added so far, some of which may still be waiting to be
+	 * written.
+	 */
+	public long getRows()
+	{	lock.lock();
+		try
+		{	return tail;
+		}
+		finally
+		{	lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of rows added, but not yet written
+	 */
+	public int getPendingRows()
+	{	lock.lock();
+		try
+		{	return (int) (tail - head);
+		}
+		finally
+		{	lock.unlock();
+		}
+	}
+
+	/**
+	 * The total time producers have spent waiting for space in the buffer, in
+	 * nanoseconds.
+	 */
+	public long getWaitNanos()
+	{	lock.lock();
+		try
+		{	return waitNanos;
+		}
+		finally
+		{	lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for every row in the buffer to be written, then closes the files, as
+	 * {@link StreamingCsrMatrixWriter#close()} does. A failure writing any row is
+	 * reported along with any failure closing the files, see {@link MergedException}.
+	 */
+	@Override
+	public void close() throws Exception
+	{	lock.lock();
+		try
+		{	if (closed)
+				return;
+			closed = true;
+			notEmpty.signal();
+		}
+		finally
+		{	lock.unlock();
+		}
+
+		boolean interrupted = false;
+		while (true)
+		{	try
+			{	writer.join();
+				break;
+			}
+			catch (InterruptedException ie)
+			{	interrupted = true; // the files must still be closed, so we'll keep waiting
+			}
+		}
+
+		Exception err = failure;
+		try
+		{	out.close();
+		}
+		catch (Exception e)
+		{	err = MergedException.merge (err, e);
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (err != null)
+			throw err;
+	}
+}
@@ -0,0 +1,186 @@
+package ucl.feeney.bryan.numpy;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a single block of a larger stream, so that the blocks of a stream
+ * can be compressed in parallel and their outputs simply concatenated into one
+ * valid raw deflate stream, in the manner of pigz.
+ * <p>
+ * Every block but the last ends with a sync flush, which pads the output to a
+ * byte boundary without marking the end of the stream, and the last is finished
+ * as usual. Each block is primed with the last 32KB of the block before it as a
+ * dictionary, so matches can still refer back across block boundaries, and the
+ * compression ratio is almost the same as for a single deflater.
+ * <p>
+ * The checksum of each block is calculated at the same time, and the checksums
+ * of consecutive blocks can be combined with {@link #combineCrc(long, long, long)}
+ */
+final class BlockDeflater implements Callable<BlockDeflater>
+{
+	/** The size of the deflate window, and so the most of a dictionary that's used */
+	final static int DICTIONARY_SIZE = 32 * 1024;
+
+	private final byte[]  input;
+	private final int     length;
+	private final byte[]  dictionary;
+	private final int     level;
+	private final boolean last;
+
+	private byte[] output;
+	private int    outputLength;
+	private long   crc;
+
+	/**
+	 * Creates a task to compress a block
+	 * @param input holds the data to compress, which must not be changed until this has run
+	 * @param length the number of bytes at the start of input to compress
+	 * @param dictionary the end of the previous block, or null if this is the first
+	 * @param level the compression level, as for {@link Deflater}
+	 * @param last whether this is the last block in the stream
+	 */
+	BlockDeflater (byte[] input, int length, byte[] dictionary, int level, boolean last)
+	{	this.input      = input;
+		this.length     = length;
+		this.dictionary = dictionary;
+		this.level      = level;
+		this.last       = last;
+	}
+
+	@Override
+	public BlockDeflater call()
+	{	CRC32 crc32 = new CRC32();
+		crc32.update (input, 0, length);
+		crc = crc32.getValue();
+
+		Deflater deflater = new Deflater (level, /* nowrap = */ true);
+		try
+		{	if (dictionary != null)
+				deflater.setDictionary (dictionary);
+			deflater.setInput (input, 0, length);
+
+			// Incompressible data grows slightly, so allow a little extra room to start with
+			output = new byte[length + (length >> 8) + 64];
+			if (last)
+			{	deflater.finish();
+				while (! deflater.finished())
+					deflate (deflater, Deflater.NO_FLUSH);
+			}
+			else
+			{	// The output is complete once a flush leaves space unused at the end of the array
+				while (deflate (deflater, Deflater.SYNC_FLUSH) == 0)
+					;
+			}
+		}
+		finally
+		{	deflater.end();
+		}
+		return this;
+	}
+
+	/**
+	 * Runs the deflater once, growing the output array if it's full
+	 * @return the number of bytes of space left in the output
+	 */
+	private int deflate (Deflater deflater, int flush)
+	{	if (outputLength == output.length)
+			output = Arrays.copyOf (output, output.length * 2);
+		outputLength += deflater.deflate (output, outputLength, output.length - outputLength, flush);
+		return output.length - outputLength;
+	}
+
+	/** The data that was compressed */
+	byte[] input()
+	{	return input;
+	}
+
+	/** The number of bytes that were compressed */
+	int length()
+	{	return length;
+	}
+
+	/** The compressed data, valid up to {@link #outputLength()} */
+	byte[] output()
+	{	return output;
+	}
+
+	int outputLength()
+	{	return outputLength;
+	}
+
+	/** The CRC-32 of the uncompressed data */
+	long crc()
+	{	return crc;
+	}
+
+	/**
+	 * Returns the last 32KB, or as much as there is, of the given block, for use
+	 * as the dictionary of the next one.
+	 */
+	static byte[] dictionary (byte[] block, int length)
+	{	return Arrays.copyOfRange (block, Math.max (0, length - DICTIONARY_SIZE), length);
+	}
+
+	/**
+	 * Combines the CRC-32 of two consecutive blocks of data into the CRC-32 of the two
+	 * together, without needing the data itself. This is a port of zlib's
+	 * <code>crc32_combine</code>, which applies len2 zero bytes to crc1 by repeated
+	 * squaring of the matrix of the CRC's polynomial.
+	 * @param crc1 the CRC of the first block
+	 * @param crc2 the CRC of the second block
+	 * @param len2 the length of the second block
+	 */
+	static long combineCrc (long crc1, long crc2, long len2)
+	{	if (len2 <= 0)
+			return crc1;
+
+		long[] even = new long[32]; // even-power-of-two zeros operator
+		long[] odd  = new long[32]; // odd-power-of-two zeros operator
+
+		// put operator for one zero bit in odd
+		odd[0] = 0xEDB88320L; // CRC-32 polynomial
+		long row = 1;
+		for (int n = 1; n < 32; n++)
+		{	odd[n] = row;
+			row <<= 1;
+		}
+
+		square (even, odd); // put operator for two zero bits in even
+		square (odd, even); // put operator for four zero bits in odd
+
+		// apply len2 zeros to crc1 (the first square puts the operator for one
+		// zero byte, eight zero bits, in even)
+		do
+		{	square (even, odd);
+			if ((len2 & 1) != 0)
+				crc1 = times (even, crc1);
+			len2 >>= 1;
+			if (len2 == 0)
+				break;
+
+			square (odd, even);
+			if ((len2 & 1) != 0)
+				crc1 = times (odd, crc1);
+			len2 >>= 1;
+		}
+		while (len2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	private static long times (long[] mat, long vec)
+	{	long sum = 0;
+		for (int i = 0; vec != 0; i++, vec >>>= 1)
+			if ((vec & 1) != 0)
+				sum ^= mat[i];
+		return sum;
+	}
+
+	private static void square (long[] square, long[] mat)
+	{	for (int n = 0; n < 32; n++)
+			square[n] = times (mat, mat[n]);
+	}
+}
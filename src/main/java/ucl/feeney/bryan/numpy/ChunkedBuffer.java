@@ -0,0 +1,717 @@
+package ucl.feeney.bryan.numpy;
+
+import it.unimi.dsi.fastutil.booleans.AbstractBooleanBigList;
+import it.unimi.dsi.fastutil.booleans.BooleanBigList;
+import it.unimi.dsi.fastutil.bytes.AbstractByteBigList;
+import it.unimi.dsi.fastutil.bytes.ByteBigList;
+import it.unimi.dsi.fastutil.chars.AbstractCharBigList;
+import it.unimi.dsi.fastutil.chars.CharBigList;
+import it.unimi.dsi.fastutil.doubles.AbstractDoubleBigList;
+import it.unimi.dsi.fastutil.doubles.DoubleBigList;
+import it.unimi.dsi.fastutil.floats.AbstractFloatBigList;
+import it.unimi.dsi.fastutil.floats.FloatBigList;
+import it.unimi.dsi.fastutil.ints.AbstractIntBigList;
+import it.unimi.dsi.fastutil.ints.IntBigList;
+import it.unimi.dsi.fastutil.longs.AbstractLongBigList;
+import it.unimi.dsi.fastutil.longs.LongBigList;
+import it.unimi.dsi.fastutil.shorts.AbstractShortBigList;
+import it.unimi.dsi.fastutil.shorts.ShortBigList;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable array of fixed-width primitives, stored in little-endian order in a
+ * list of fixed-size segments obtained from a {@link SegmentAllocator}, and
+ * indexed by longs, so it can hold more than 2^31 elements.
+ * <p>
+ * Unlike the fastutil array lists, growing this never copies the existing contents
+ * once it's larger than a single segment; a new segment is simply added on the end.
+ * Only the first segment is grown by copying, so that small arrays don't need a
+ * whole segment.
+ * <p>
+ * As the contents are already in little-endian order, they can be written out to
+ * an NPY file as they are, segment by segment, with no encoding step, see
+ * {@link #writeTo(LittleEndianOutput)}.
+ * <p>
+ * Allocating a segment can fail, e.g. if a memory-mapped segment can't be
+ * created, in which case an {@link IOError} is thrown, analogous to an
+ * {@link OutOfMemoryError} for heap segments.
+ */
+final class ChunkedBuffer
+{
+	/** Segments are 16MB, which keeps the wasted space at the end small */
+	final static int DEFAULT_SEGMENT_BYTES_SHIFT = 24;
+
+	/** The number of elements converted at a time when writing out as a different type */
+	private final static int CONVERSION_CHUNK = 64 * 1024;
+
+	/** The smallest first segment we'll allocate */
+	private final static int MIN_INITIAL_BYTES = 256;
+
+	private final SegmentAllocator allocator;
+	private final int widthShift;   // log2 of the width of an element in bytes
+	private final int segmentShift; // log2 of the number of elements in a full segment
+	private final long segmentMask;
+
+	private ByteBuffer[] segments = new ByteBuffer[4];
+	private int  segmentCount;
+	private long capacity; // in elements
+	private long size;     // in elements
+
+	/**
+	 * Creates a new, empty, buffer
+	 * @param allocator allocates the segments in which the data is stored
+	 * @param width the width of each element in bytes, must be 1, 2, 4 or 8
+	 * @param initialCapacity the number of elements for which space is initially
+	 * allocated
+	 */
+	ChunkedBuffer (SegmentAllocator allocator, int width, long initialCapacity)
+	{	this (allocator, width, initialCapacity, DEFAULT_SEGMENT_BYTES_SHIFT);
+	}
+
+	/**
+	 * Creates a new, empty, buffer
+	 * @param allocator allocates the segments in which the data is stored
+	 * @param width the width of each element in bytes, must be 1, 2, 4 or 8
+	 * @param initialCapacity the number of elements for which space is initially
+	 * allocated
+	 * @param segmentBytesShift the log2 of the size of each full segment in bytes
+	 */
+	ChunkedBuffer (SegmentAllocator allocator, int width, long initialCapacity, int segmentBytesShift)
+	{	if (Integer.bitCount (width) != 1 || width > 8)
+			throw new IllegalArgumentException ("Element width must be 1, 2, 4 or 8 bytes, not " + width);
+		if (segmentBytesShift < 3 || segmentBytesShift > 30)
+			throw new IllegalArgumentException ("Segments must be between 8 bytes and 1GB in size");
+
+		this.allocator    = allocator;
+		this.widthShift   = Integer.numberOfTrailingZeros (width);
+		this.segmentShift = segmentBytesShift - widthShift;
+		this.segmentMask  = (1L << segmentShift) - 1;
+
+		if (initialCapacity > 0)
+			ensureCapacity (initialCapacity);
+	}
+
+	/**
+	 * Creates a buffer around existing segments, e.g. windows onto a memory-mapped
+	 * file, without copying them. Every segment but the last must be exactly
+	 * 2^segmentBytesShift bytes long. No more elements can be added to the buffer.
+	 */
+	ChunkedBuffer (ByteBuffer[] segments, int width, long size, int segmentBytesShift)
+	{	this ((SegmentAllocator) null, width, 0, segmentBytesShift);
+		if (size > ((long) segments.length << segmentShift))
+			throw new IllegalArgumentException ("Segments are too small to hold " + size + " elements");
+
+		for (ByteBuffer segment : segments)
+			segment.order (ByteOrder.LITTLE_ENDIAN);
+		this.segments     = segments.clone();
+		this.segmentCount = segments.length;
+		this.capacity     = size;
+		this.size         = size;
+	}
+
+	/**
+	 * The number of elements in this buffer
+	 */
+	long size()
+	{	return size;
+	}
+
+	/**
+	 * The width of each element in bytes
+	 */
+	int width()
+	{	return 1 << widthShift;
+	}
+
+	/**
+	 * The number of bytes of memory allocated to this buffer.
+	 */
+	long allocatedBytes()
+	{	return capacity << widthShift;
+	}
+
+	/**
+	 * Makes sure there's space for at least the given number of elements.
+	 */
+	private void ensureCapacity (long required)
+	{	while (capacity < required)
+		{	int fullSegment = 1 << (segmentShift + widthShift);
+			if (segmentCount == 0)
+			{	long bytes = Math.max (required << widthShift, MIN_INITIAL_BYTES);
+				addSegment (bytes >= fullSegment ? fullSegment : Integer.highestOneBit ((int) bytes - 1) << 1);
+			}
+			else if (segmentCount == 1 && segments[0].capacity() < fullSegment)
+			{	// Grow the first segment by copying it into one twice the size
+				long bytes = Math.max (required << widthShift, 2L * segments[0].capacity());
+				ByteBuffer old = segments[0];
+				segmentCount = 0;
+				capacity     = 0;
+				addSegment (bytes >= fullSegment ? fullSegment : Integer.highestOneBit ((int) bytes - 1) << 1);
+
+				ByteBuffer src = old.duplicate();
+				src.clear();
+				ByteBuffer dst = segments[0].duplicate();
+				dst.put (src);
+			}
+			else
+				addSegment (fullSegment);
+		}
+	}
+
+	private void addSegment (int bytes)
+	{	if (allocator == null)
+			throw new UnsupportedOperationException ("This buffer wraps existing segments, and can't grow");
+
+		ByteBuffer segment;
+		try
+		{	segment = allocator.allocate (bytes);
+		}
+		catch (IOException ioe)
+		{	throw new IOError (ioe);
+		}
+		segment.order (ByteOrder.LITTLE_ENDIAN);
+
+		if (segmentCount == segments.length)
+			segments = Arrays.copyOf (segments, segmentCount * 2);
+		segments[segmentCount++] = segment;
+		capacity += bytes >> widthShift;
+	}
+
+	private ByteBuffer segment (long index)
+	{	return segments[(int) (index >>> segmentShift)];
+	}
+
+	private int offset (long index)
+	{	return (int) (index & segmentMask) << widthShift;
+	}
+
+	private void checkRange (long from, long len)
+	{	if (from < 0 || len < 0 || from + len > size)
+			throw new IndexOutOfBoundsException ("Range [" + from + ", " + (from + len) + ") is out of bounds for a buffer of size " + size);
+	}
+
+	private void checkIndex (long index)
+	{	if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException ("Index " + index + " is out of bounds for a buffer of size " + size);
+	}
+
+	// ---- Appending values ----
+
+	void addByte (byte value)
+	{	ensureCapacity (size + 1);
+		segment (size).put (offset (size), value);
+		++size;
+	}
+
+	void addShort (short value)
+	{	ensureCapacity (size + 1);
+		segment (size).putShort (offset (size), value);
+		++size;
+	}
+
+	void addInt (int value)
+	{	ensureCapacity (size + 1);
+		segment (size).putInt (offset (size), value);
+		++size;
+	}
+
+	void addLong (long value)
+	{	ensureCapacity (size + 1);
+		segment (size).putLong (offset (size), value);
+		++size;
+	}
+
+	void addFloat (float value)
+	{	ensureCapacity (size + 1);
+		segment (size).putFloat (offset (size), value);
+		++size;
+	}
+
+	void addDouble (double value)
+	{	ensureCapacity (size + 1);
+		segment (size).putDouble (offset (size), value);
+		++size;
+	}
+
+	/**
+	 * Discards the elements from the given index onwards, e.g. those of a row
+	 * which turned out to be invalid. The memory they occupied is kept, to be
+	 * overwritten by the elements added next.
+	 */
+	void truncate (long newSize)
+	{	if (newSize < 0 || newSize > size)
+			throw new IllegalArgumentException ("Can't truncate a buffer of size " + size + " to " + newSize);
+		size = newSize;
+	}
+
+	/**
+	 * Grows this buffer to the given size. The new elements are zero, unless they
+	 * were previously written to and the buffer was then truncated.
+	 * Once the buffer has been resized, disjoint ranges of it can be filled in by
+	 * different threads, as the segments are never reallocated by random access.
+	 */
+	void resize (long newSize)
+	{	if (newSize < size)
+			throw new IllegalArgumentException ("Can't shrink a buffer of size " + size + " to " + newSize);
+		ensureCapacity (newSize);
+		size = newSize;
+	}
+
+	/**
+	 * Appends the given portion of the array, copying it in bulk into as many
+	 * segments as it spans.
+	 */
+	void addShorts (short[] src, int off, int len)
+	{	checkWidth (2);
+		ensureCapacity (size + len);
+		while (len > 0)
+		{	ShortBuffer dst = tail().asShortBuffer();
+			int n = Math.min (len, dst.remaining());
+			dst.put (src, off, n);
+			size += n;
+			off  += n;
+			len  -= n;
+		}
+	}
+
+	/**
+	 * Appends the given portion of the array, copying it in bulk into as many
+	 * segments as it spans.
+	 */
+	void addInts (int[] src, int off, int len)
+	{	checkWidth (4);
+		ensureCapacity (size + len);
+		while (len > 0)
+		{	IntBuffer dst = tail().asIntBuffer();
+			int n = Math.min (len, dst.remaining());
+			dst.put (src, off, n);
+			size += n;
+			off  += n;
+			len  -= n;
+		}
+	}
+
+	/**
+	 * A little-endian view of the free space in the segment holding the end of
+	 * this buffer, which must have been allocated already.
+	 */
+	private ByteBuffer tail()
+	{	ByteBuffer tail = segment (size).duplicate().order (ByteOrder.LITTLE_ENDIAN);
+		tail.clear();
+		tail.position (offset (size));
+		return tail;
+	}
+
+	// ---- Random access ----
+
+	byte getByte (long index)
+	{	checkIndex (index);
+		return segment (index).get (offset (index));
+	}
+
+	short getShort (long index)
+	{	checkIndex (index);
+		return segment (index).getShort (offset (index));
+	}
+
+	int getInt (long index)
+	{	checkIndex (index);
+		return segment (index).getInt (offset (index));
+	}
+
+	long getLong (long index)
+	{	checkIndex (index);
+		return segment (index).getLong (offset (index));
+	}
+
+	float getFloat (long index)
+	{	checkIndex (index);
+		return segment (index).getFloat (offset (index));
+	}
+
+	double getDouble (long index)
+	{	checkIndex (index);
+		return segment (index).getDouble (offset (index));
+	}
+
+	void setShort (long index, short value)
+	{	checkIndex (index);
+		segment (index).putShort (offset (index), value);
+	}
+
+	void setInt (long index, int value)
+	{	checkIndex (index);
+		segment (index).putInt (offset (index), value);
+	}
+
+	void setLong (long index, long value)
+	{	checkIndex (index);
+		segment (index).putLong (offset (index), value);
+	}
+
+	// ---- Bulk copies ----
+
+	/**
+	 * Copies the given range of elements into the given buffer, which must hold
+	 * elements of the same width, and be large enough already. The bytes are
+	 * copied in bulk, a segment at a time.
+	 */
+	void copyTo (long from, ChunkedBuffer dst, long dstFrom, long len)
+	{	if (dst.widthShift != widthShift)
+			throw new IllegalArgumentException ("Can't copy " + width() + "-byte elements into a buffer of " + dst.width() + "-byte elements");
+		checkRange (from, len);
+		dst.checkRange (dstFrom, len);
+
+		while (len > 0)
+		{	ByteBuffer src = segment (from).duplicate();
+			src.clear();
+			src.position (offset (from));
+			ByteBuffer out = dst.segment (dstFrom).duplicate();
+			out.clear();
+			out.position (dst.offset (dstFrom));
+
+			int n = (int) Math.min (len, Math.min (src.remaining(), out.remaining()) >> widthShift);
+			src.limit (src.position() + (n << widthShift));
+			out.put (src);
+
+			from    += n;
+			dstFrom += n;
+			len     -= n;
+		}
+	}
+
+	/**
+	 * Copies the raw little-endian bytes of the given number of elements, starting
+	 * at the given element, into the start of the given array.
+	 */
+	void getBytes (long from, byte[] dst, int count)
+	{	checkRange (from, count);
+		int off = 0;
+		int len = count << widthShift;
+		while (len > 0)
+		{	ByteBuffer src = segment (from).duplicate();
+			src.clear();
+			src.position (offset (from));
+			int n = Math.min (len, src.remaining());
+			src.get (dst, off, n);
+			from += n >> widthShift;
+			off  += n;
+			len  -= n;
+		}
+	}
+
+	/**
+	 * Overwrites the given number of elements, starting at the given element,
+	 * with the raw little-endian bytes at the start of the given array.
+	 */
+	void setBytes (long from, byte[] src, int count)
+	{	checkRange (from, count);
+		int off = 0;
+		int len = count << widthShift;
+		while (len > 0)
+		{	ByteBuffer dst = segment (from).duplicate();
+			dst.clear();
+			dst.position (offset (from));
+			int n = Math.min (len, dst.remaining());
+			dst.put (src, off, n);
+			from += n >> widthShift;
+			off  += n;
+			len  -= n;
+		}
+	}
+
+	/**
+	 * Copies a single element into the given buffer, which must have elements of
+	 * the same width. Neither index is checked, so this must only be used where
+	 * they're known to be in range, e.g. when permuting a whole buffer.
+	 */
+	void copyElementTo (long from, ChunkedBuffer dst, long to)
+	{	ByteBuffer src = segment (from);
+		ByteBuffer out = dst.segment (to);
+		int srcOff = offset (from);
+		int dstOff = dst.offset (to);
+		switch (widthShift)
+		{	case 0:  out.put      (dstOff, src.get      (srcOff)); break;
+			case 1:  out.putShort (dstOff, src.getShort (srcOff)); break;
+			case 2:  out.putInt   (dstOff, src.getInt   (srcOff)); break;
+			default: out.putLong  (dstOff, src.getLong  (srcOff)); break;
+		}
+	}
+
+	/**
+	 * Copies the given range of longs into the given buffer of longs, adding
+	 * delta to each one on the way.
+	 */
+	void copyLongsTo (long from, ChunkedBuffer dst, long dstFrom, long len, long delta)
+	{	checkWidth (8);
+		dst.checkWidth (8);
+		checkRange (from, len);
+		dst.checkRange (dstFrom, len);
+
+		for (long i = 0; i < len; i++)
+			dst.segment (dstFrom + i).putLong (dst.offset (dstFrom + i), segment (from + i).getLong (offset (from + i)) + delta);
+	}
+
+	// ---- Output ----
+
+	/**
+	 * Writes out the contents of this buffer, segment by segment, to the
+	 * given output. As the data is already in little-endian order, it's just
+	 * copied.
+	 */
+	void writeTo (LittleEndianOutput out) throws IOException
+	{	long remaining = size << widthShift;
+		for (int s = 0; s < segmentCount && remaining > 0; s++)
+		{	ByteBuffer src = segments[s].duplicate();
+			src.clear();
+			src.limit ((int) Math.min (src.capacity(), remaining));
+			remaining -= src.remaining();
+			out.write (src);
+		}
+	}
+
+	/**
+	 * Writes out the contents of this buffer as the given type. If that type is
+	 * the same width as the elements in this buffer, the segments are copied out
+	 * as they are, otherwise the elements are converted between ints and longs
+	 * as they're written out, or narrowed to one or two bytes. Narrowing is
+	 * only safe if the caller knows every value fits.
+	 */
+	void writeTo (LittleEndianOutput out, NpyDataType dtype) throws IOException
+	{	if (dtype.width() == width())
+		{	writeTo (out);
+			return;
+		}
+		if (width() == 4 && dtype.width() == 8)
+			writeIntsAsLongs (out);
+		else if (width() == 8 && dtype.width() == 4)
+			writeLongsAsInts (out);
+		else if (dtype.width() < width())
+			writeNarrowed (out, dtype.width());
+		else
+			throw new IllegalArgumentException ("Can't write " + width() + "-byte elements as " + dtype);
+	}
+
+	/**
+	 * Writes out just the low bytes of each element, which in little-endian
+	 * order are simply its first bytes. Each chunk of elements is copied out in
+	 * bulk, and then the low bytes are packed together at the start of the same
+	 * array, which is safe as each is moved no further forward than it already is.
+	 */
+	private void writeNarrowed (LittleEndianOutput out, int narrowWidth) throws IOException
+	{	int    width = width();
+		byte[] bytes = new byte[CONVERSION_CHUNK * width];
+		for (long from = 0; from < size; )
+		{	int n = (int) Math.min (CONVERSION_CHUNK, size - from);
+			getBytes (from, bytes, n);
+			if (narrowWidth == 1)
+			{	for (int i = 1, s = width; i < n; i++, s += width)
+					bytes[i] = bytes[s];
+			}
+			else
+			{	for (int b = narrowWidth, s = width, end = n * narrowWidth; b < end; s += width)
+					for (int j = 0; j < narrowWidth; j++)
+						bytes[b++] = bytes[s + j];
+			}
+			out.write (bytes, 0, n * narrowWidth);
+			from += n;
+		}
+	}
+
+	private void writeIntsAsLongs (LittleEndianOutput out) throws IOException
+	{	int[]  ints  = new int[CONVERSION_CHUNK];
+		long[] longs = new long[CONVERSION_CHUNK];
+		long remaining = size;
+		for (int s = 0; s < segmentCount && remaining > 0; s++)
+		{	IntBuffer src = segments[s].duplicate().order (ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			src.limit ((int) Math.min (src.capacity(), remaining));
+			remaining -= src.remaining();
+			while (src.hasRemaining())
+			{	int n = Math.min (src.remaining(), CONVERSION_CHUNK);
+				src.get (ints, 0, n);
+				for (int i = 0; i < n; i++)
+					longs[i] = ints[i];
+				out.writeLongs (longs, 0, n);
+			}
+		}
+	}
+
+	private void writeLongsAsInts (LittleEndianOutput out) throws IOException
+	{	int[]  ints  = new int[CONVERSION_CHUNK];
+		long[] longs = new long[CONVERSION_CHUNK];
+		long remaining = size;
+		for (int s = 0; s < segmentCount && remaining > 0; s++)
+		{	LongBuffer src = segments[s].duplicate().order (ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			src.limit ((int) Math.min (src.capacity(), remaining));
+			remaining -= src.remaining();
+			while (src.hasRemaining())
+			{	int n = Math.min (src.remaining(), CONVERSION_CHUNK);
+				src.get (longs, 0, n);
+				for (int i = 0; i < n; i++)
+					ints[i] = (int) longs[i];
+				out.writeInts (ints, 0, n);
+			}
+		}
+	}
+
+	// ---- Views ----
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 1-byte elements, as a list of bytes
+	 */
+	ByteBigList asByteBigList()
+	{	checkWidth (1);
+		return new AbstractByteBigList() {
+			@Override
+			public byte getByte (long index)
+			{	return ChunkedBuffer.this.getByte (index);
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 1-byte elements, as a
+	 * list of booleans, where any non-zero byte is true
+	 */
+	BooleanBigList asBooleanBigList()
+	{	checkWidth (1);
+		return new AbstractBooleanBigList() {
+			@Override
+			public boolean getBoolean (long index)
+			{	return ChunkedBuffer.this.getByte (index) != 0;
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 2-byte elements, as a
+	 * list of chars, i.e. unsigned shorts
+	 */
+	CharBigList asCharBigList()
+	{	checkWidth (2);
+		return new AbstractCharBigList() {
+			@Override
+			public char getChar (long index)
+			{	return (char) ChunkedBuffer.this.getShort (index);
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 4-byte elements, as a list of ints
+	 */
+	IntBigList asIntBigList()
+	{	checkWidth (4);
+		return new AbstractIntBigList() {
+			@Override
+			public int getInt (long index)
+			{	return ChunkedBuffer.this.getInt (index);
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 2-byte elements, as a list of shorts
+	 */
+	ShortBigList asShortBigList()
+	{	checkWidth (2);
+		return new AbstractShortBigList() {
+			@Override
+			public short getShort (long index)
+			{	return ChunkedBuffer.this.getShort (index);
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 8-byte elements, as a list of longs
+	 */
+	LongBigList asLongBigList()
+	{	checkWidth (8);
+		return new AbstractLongBigList() {
+			@Override
+			public long getLong (long index)
+			{	return ChunkedBuffer.this.getLong (index);
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 4-byte elements, as a list of floats
+	 */
+	FloatBigList asFloatBigList()
+	{	checkWidth (4);
+		return new AbstractFloatBigList() {
+			@Override
+			public float getFloat (long index)
+			{	return ChunkedBuffer.this.getFloat (index);
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	/**
+	 * Returns a read-only view of this buffer, which must hold 8-byte elements, as a list of doubles
+	 */
+	DoubleBigList asDoubleBigList()
+	{	checkWidth (8);
+		return new AbstractDoubleBigList() {
+			@Override
+			public double getDouble (long index)
+			{	return ChunkedBuffer.this.getDouble (index);
+			}
+
+			@Override
+			public long size64()
+			{	return size;
+			}
+		};
+	}
+
+	private void checkWidth (int width)
+	{	if (width() != width)
+			throw new IllegalStateException ("This buffer holds " + width() + "-byte elements, not " + width + "-byte elements");
+	}
+}
@@ -0,0 +1,104 @@
+package ucl.feeney.bryan.numpy;
+
+import it.unimi.dsi.fastutil.booleans.BooleanBigList;
+import it.unimi.dsi.fastutil.ints.Int2BooleanMap;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Creates a class emulating a Scipy CSR sparse matrix where the data are booleans, e.g.
+ * to record the presence of a term.
+ * <p>
+ * See {@link CsrMatrixBuilder} for how the matrix is stored and written out.
+ * <p>
+ * Each value is stored in a single byte, and written out as numpy's "|b1" type.
+ */
+public class CsrBooleanMatrixBuilder extends CsrMatrixBuilder
+{
+	/** The columns of the row being added, so they can be checked first */
+	private int[] rowColumns = new int[0];
+
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 */
+	public CsrBooleanMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint)
+	{	this (cols, rowSizeHint, nonZeroColSizeHint, SegmentAllocator.heap());
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrBooleanMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint, SegmentAllocator storage)
+	{	super (cols, rowSizeHint, nonZeroColSizeHint, storage, NpyDataType.BOOL);
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 */
+	public CsrBooleanMatrixBuilder(int cols)
+	{	this (cols, SegmentAllocator.heap());
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrBooleanMatrixBuilder(int cols, SegmentAllocator storage)
+	{	this (cols, 0, 0, storage);
+	}
+	
+	/**
+	 * Adds a row to this matrix. Values are copied over, so the vector
+	 * object can be cleared and re-used. Where the map supports it, its
+	 * entries are iterated without creating an object for each one.
+	 * @param vector the non-zero entries in the row, keyed by column.
+	 * @throws IllegalArgumentException if a column is outside the matrix, in
+	 * which case the row isn't added.
+	 */
+	public void addRow (Int2BooleanMap vector)
+	{	ObjectIterator<Int2BooleanMap.Entry> iter = entries (vector);
+		while (iter.hasNext())
+		{	Int2BooleanMap.Entry entry = iter.next();
+			indices.addInt (checkColumn (entry.getIntKey()));
+			data.addByte (entry.getBooleanValue() ? (byte) 1 : (byte) 0);
+		}
+		endRow();
+	}
+
+	/**
+	 * Adds a row to this matrix where the given columns are all true, and
+	 * every other column is false.
+	 * @param columns the columns which are true
+	 * @throws IllegalArgumentException if a column is out of range, or, as may
+	 * happen if this isn't a set, appears more than once. The row isn't added.
+	 */
+	public void addRow (IntCollection columns)
+	{	int len = columns.size();
+		rowColumns = columns.toIntArray (rowColumns);
+		checkColumns (rowColumns, 0, len);
+
+		for (int i = 0; i < len; i++)
+		{	indices.addInt (rowColumns[i]);
+			data.addByte ((byte) 1);
+		}
+		endRow();
+	}
+
+	/**
+	 * A read-only view of the non-zero values
+	 */
+	public BooleanBigList getData()
+	{	return data.asBooleanBigList();
+	}
+}
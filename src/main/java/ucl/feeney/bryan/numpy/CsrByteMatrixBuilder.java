@@ -0,0 +1,95 @@
+package ucl.feeney.bryan.numpy;
+
+import it.unimi.dsi.fastutil.ints.Int2ByteMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.bytes.ByteBigList;
+
+/**
+ * Creates a class emulating a Scipy CSR sparse matrix where the data are 8-bit ints.
+ * <p>
+ * By default these are signed, and written out as numpy's "|i1" type, however they
+ * can instead be written out as unsigned "|u1" values, in which case the Java bytes
+ * are just reinterpreted, so -1 is written out as 255.
+ * <p>
+ * See {@link CsrMatrixBuilder} for how the matrix is stored and written out.
+ */
+public class CsrByteMatrixBuilder extends CsrMatrixBuilder
+{
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 */
+	public CsrByteMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint)
+	{	this (cols, rowSizeHint, nonZeroColSizeHint, SegmentAllocator.heap());
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrByteMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint, SegmentAllocator storage)
+	{	this (cols, rowSizeHint, nonZeroColSizeHint, storage, /* unsigned = */ false);
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 * @param storage allocates the memory in which the matrix is stored.
+	 * @param unsigned if true the data are written out as unsigned bytes
+	 */
+	public CsrByteMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint, SegmentAllocator storage, boolean unsigned)
+	{	super (cols, rowSizeHint, nonZeroColSizeHint, storage, unsigned ? NpyDataType.UINT8 : NpyDataType.INT8);
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 */
+	public CsrByteMatrixBuilder(int cols)
+	{	this (cols, SegmentAllocator.heap());
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrByteMatrixBuilder(int cols, SegmentAllocator storage)
+	{	this (cols, 0, 0, storage);
+	}
+	
+	/**
+	 * Adds a row to this matrix. Values are copied over, so the vector
+	 * object can be cleared and re-used. Where the map supports it, its
+	 * entries are iterated without creating an object for each one.
+	 * @param vector the non-zero entries in the row, keyed by column.
+	 * @throws IllegalArgumentException if a column is outside the matrix, in
+	 * which case the row isn't added.
+	 */
+	public void addRow (Int2ByteMap vector)
+	{	ObjectIterator<Int2ByteMap.Entry> iter = entries (vector);
+		while (iter.hasNext())
+		{	Int2ByteMap.Entry entry = iter.next();
+			indices.addInt (checkColumn (entry.getIntKey()));
+			data.addByte (entry.getByteValue());
+		}
+		endRow();
+	}
+
+	/**
+	 * A read-only view of the non-zero values
+	 */
+	public ByteBigList getData()
+	{	return data.asByteBigList();
+	}
+}
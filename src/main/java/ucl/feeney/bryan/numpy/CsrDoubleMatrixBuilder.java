@@ -0,0 +1,78 @@
+package ucl.feeney.bryan.numpy;
+
+import it.unimi.dsi.fastutil.doubles.DoubleBigList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Creates a class emulating a Scipy CSR sparse matrix where the data are 64-bit floats, e.g. probabilities.
+ * <p>
+ * See {@link CsrMatrixBuilder} for how the matrix is stored and written out.
+ */
+public class CsrDoubleMatrixBuilder extends CsrMatrixBuilder
+{
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 */
+	public CsrDoubleMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint)
+	{	this (cols, rowSizeHint, nonZeroColSizeHint, SegmentAllocator.heap());
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrDoubleMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint, SegmentAllocator storage)
+	{	super (cols, rowSizeHint, nonZeroColSizeHint, storage, NpyDataType.FLOAT64);
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 */
+	public CsrDoubleMatrixBuilder(int cols)
+	{	this (cols, SegmentAllocator.heap());
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrDoubleMatrixBuilder(int cols, SegmentAllocator storage)
+	{	this (cols, 0, 0, storage);
+	}
+	
+	/**
+	 * Adds a row to this matrix. Values are copied over, so the vector
+	 * object can be cleared and re-used. Where the map supports it, its
+	 * entries are iterated without creating an object for each one.
+	 * @param vector the non-zero entries in the row, keyed by column.
+	 * @throws IllegalArgumentException if a column is outside the matrix, in
+	 * which case the row isn't added.
+	 */
+	public void addRow (Int2DoubleMap vector)
+	{	ObjectIterator<Int2DoubleMap.Entry> iter = entries (vector);
+		while (iter.hasNext())
+		{	Int2DoubleMap.Entry entry = iter.next();
+			indices.addInt (checkColumn (entry.getIntKey()));
+			data.addDouble (entry.getDoubleValue());
+		}
+		endRow();
+	}
+
+	/**
+	 * A read-only view of the non-zero values
+	 */
+	public DoubleBigList getData()
+	{	return data.asDoubleBigList();
+	}
+}
@@ -0,0 +1,809 @@
+package ucl.feeney.bryan.numpy;
+
+import it.unimi.dsi.fastutil.ints.Int2BooleanMap;
+import it.unimi.dsi.fastutil.ints.Int2ByteMap;
+import it.unimi.dsi.fastutil.ints.Int2CharMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.IntBigList;
+import it.unimi.dsi.fastutil.longs.LongBigList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The base of the classes emulating a Scipy CSR sparse matrix, one for each type of
+ * data. This holds the column indices and row offsets, which are the same whatever
+ * the type of the data, and writes the matrix out. Subclasses add the data itself,
+ * each with an <code>addRow</code> method taking the matching fastutil map, so
+ * values are never boxed.
+ * <p>
+ * This is implemented to make it easier to build such a matrix and then subsequently write it
+ * out (see {@link CsrMatrixWriter}). It's not suitable for any sort of arithmetic.
+ * <p>
+ * The arrays are stored in fixed-size segments, indexed by longs, so the matrix can hold
+ * more than 2^31 non-zero entries, and growing it never copies what's already there.
+ * Where those segments live is determined by the {@link SegmentAllocator}: by default
+ * they're on the Java heap, but they can also be put off-heap, or in memory-mapped
+ * temporary files. As the segments are kept in little-endian order, they're written out
+ * to disk as they are.
+ * <p>
+ * For the same reason, {@link #getIndices()}, {@link #getIndptr()} and the
+ * <code>getData()</code> methods of the subclasses return read-only fastutil
+ * big lists, indexed by longs, rather than the <code>IntList</code> and
+ * <code>ShortList</code> which <code>CsrShortMatrixBuilder</code> used to
+ * return. This breaks source compatibility with callers of those methods,
+ * which should use <code>size64()</code> rather than <code>size()</code>,
+ * which is deprecated and fails once there are more than 2^31 entries, and
+ * long indices. Indptr is now a list of longs.
+ * <p>
+ * Row offsets are tracked as longs. When the matrix is written out, indptr (and indices,
+ * as scipy requires both to have the same type) are written as 32-bit ints if there are
+ * few enough non-zero entries, and as 64-bit ints otherwise.
+ * <p>
+ * By default the entries of each row are stored in the order in which the map passed
+ * to <code>addRow</code> iterates over them, which for a hash map is effectively random.
+ * Scipy then has to sort them when the matrix is loaded, before many operations. To
+ * avoid this, either turn on {@link #setSortRows(boolean)}, so each row is sorted as
+ * it's added, or call {@link #sortIndices()} once all the rows have been added, which
+ * sorts them in parallel. Either way, a row containing the same column twice is
+ * rejected, rather than summing its values as scipy would.
+ */
+public abstract class CsrMatrixBuilder
+{
+	/** Ranges of rows with more than this many entries are split up between tasks when sorting */
+	private final static long SORT_CHUNK = 1 << 18;
+
+	final ChunkedBuffer indices;
+	final ChunkedBuffer indptr; // points to the start of each row in the indices
+	final ChunkedBuffer data;   // the actual non-zero values.
+
+	private final NpyDataType      dataType;
+	private final SegmentAllocator storage;
+
+	private int rows;
+	private int cols;
+
+	private boolean   sortRows;
+	private boolean   canonical = true; // are all rows sorted (rows never hold duplicates, see checkColumns)
+	private RowSorter sorter;
+
+	private MetricsListener metrics = MetricsListener.NONE;
+
+	private boolean narrowing;
+	private long    minValue = Long.MAX_VALUE; // the range of the data, if narrowing
+	private long    maxValue = Long.MIN_VALUE;
+
+	private MatrixStatistics stats;
+
+	private long[] seen; // a bit for each column, to spot repeated columns in rows given as arrays
+
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 * @param storage allocates the memory in which the matrix is stored.
+	 * @param dataType the type in which the data are stored and written out
+	 */
+	CsrMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint, SegmentAllocator storage, NpyDataType dataType)
+	{	this.cols = cols;
+		this.rows = 0;
+		this.dataType = dataType;
+		this.storage  = storage;
+
+		long nnzHint = (long) rowSizeHint * nonZeroColSizeHint;
+		indices = new ChunkedBuffer (storage, 4, nnzHint);
+		indptr  = new ChunkedBuffer (storage, 8, rowSizeHint + 1L);
+		data    = new ChunkedBuffer (storage, dataType.width(), nnzHint);
+
+		indptr.addLong (0); // indptr has always got one more entry than the
+	}                       // number of rows, such that the last entry is the
+	                        // effectively the length of the indices / data lists.
+
+	/**
+	 * Creates a builder around arrays that have already been filled in, e.g.
+	 * by merging several other builders.
+	 */
+	CsrMatrixBuilder(int cols, int rows, boolean canonical, SegmentAllocator storage, NpyDataType dataType, ChunkedBuffer indices, ChunkedBuffer indptr, ChunkedBuffer data)
+	{	this.cols      = cols;
+		this.rows      = rows;
+		this.canonical = canonical;
+		this.storage  = storage;
+		this.dataType = dataType;
+		this.indices  = indices;
+		this.indptr   = indptr;
+		this.data     = data;
+	}
+
+	/**
+	 * Completes the current row, once its indices and data have been added.
+	 */
+	final void endRow()
+	{	endRow (indices.size());
+	}
+
+	/**
+	 * Completes the current row, which ends at the given offset into the indices
+	 * and data; this lets a block of several rows be appended in one go and then
+	 * split into its rows.
+	 */
+	final void endRow (long end)
+	{	long start = indptr.getLong (indptr.size() - 1);
+		int  len   = (int) (end - start);
+		try
+		{	if (sortRows)
+			{	if (sorter == null)
+					sorter = new RowSorter (data.width());
+				sorter.sort (indices, data, start, len);
+			}
+			if (stats != null)
+				stats.addRow (this, start, end);
+		}
+		catch (RuntimeException e)
+		{	dropRow();
+			throw e;
+		}
+
+		if (!sortRows && canonical)
+			canonical = RowSorter.isSorted (indices, start, len);
+		if (narrowing)
+			trackRange (start, end);
+		indptr.addLong (end);
+		++rows;
+		metrics.rowAdded (len);
+	}
+
+	/**
+	 * Drops the entries added so far for the current row, when it's rejected,
+	 * or they'd become part of the next row.
+	 */
+	private void dropRow()
+	{	long start = indptr.getLong (indptr.size() - 1);
+		indices.truncate (start);
+		data.truncate (start);
+	}
+
+	/**
+	 * Checks a column of the current row, read from a map, is within the matrix,
+	 * before it's added. Maps can't repeat a column, but their keys could be
+	 * anything, and an out-of-range column would otherwise be written out as a
+	 * different, valid, column when the indices are narrowed.
+	 * @return the column
+	 * @throws IllegalArgumentException if the column is out of range, in which
+	 * case the entries already added for the row are dropped.
+	 */
+	final int checkColumn (int col)
+	{	if (col < 0 || col >= cols)
+		{	dropRow();
+			throw new IllegalArgumentException ("Column " + col + " is out of range for a matrix with " + cols + " columns");
+		}
+		return col;
+	}
+
+	/**
+	 * Checks the given columns of a row are all within the matrix, and that none
+	 * appears twice, before the row is added. Rows given as maps can't repeat a
+	 * column, but rows given as arrays or lists could hold anything. Columns in
+	 * ascending order, as rows taken from other CSR matrices usually are, are
+	 * checked in the same pass as their range.
+	 * @throws IllegalArgumentException if a column is out of range or repeated
+	 */
+	final void checkColumns (int[] columns, int off, int len)
+	{	boolean ascending = true;
+		for (int i = off, end = off + len; i < end; i++)
+		{	int col = columns[i];
+			if (col < 0 || col >= cols)
+				throw new IllegalArgumentException ("Column " + col + " is out of range for a matrix with " + cols + " columns");
+			ascending &= i == off || columns[i - 1] < col;
+		}
+		if (!ascending)
+			checkUnique (columns, off, len);
+	}
+
+	/**
+	 * Checks no column appears twice in the given row, by marking each in a set
+	 * with a bit for every column. The bits are cleared again afterwards, so the
+	 * set is only allocated once.
+	 */
+	private void checkUnique (int[] columns, int off, int len)
+	{	if (seen == null)
+			seen = new long[(cols + 63) >>> 6];
+
+		int i = off, end = off + len;
+		try
+		{	for (; i < end; i++)
+			{	int  col = columns[i];
+				long bit = 1L << col; // the shift is mod 64
+				if ((seen[col >>> 6] & bit) != 0)
+					throw new IllegalArgumentException ("Column " + col + " appears more than once in the row");
+				seen[col >>> 6] |= bit;
+			}
+		}
+		finally
+		{	for (int j = off; j < i; j++)
+				seen[columns[j] >>> 6] = 0;
+		}
+	}
+
+	/**
+	 * Returns an iterator over the entries of the given map which, where the map
+	 * supports it, re-uses a single entry object rather than creating one for
+	 * every entry. This is how the <code>addRow</code> methods of the subclasses,
+	 * and the streaming writers, read rows. There's one of these for each type
+	 * of map, as fastutil's fast entry sets have no common supertype.
+	 */
+	static ObjectIterator<Int2ShortMap.Entry> entries (Int2ShortMap map)
+	{	ObjectSet<Int2ShortMap.Entry> entries = map.int2ShortEntrySet();
+		return entries instanceof Int2ShortMap.FastEntrySet
+			? ((Int2ShortMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/** @see #entries(Int2ShortMap) */
+	static ObjectIterator<Int2BooleanMap.Entry> entries (Int2BooleanMap map)
+	{	ObjectSet<Int2BooleanMap.Entry> entries = map.int2BooleanEntrySet();
+		return entries instanceof Int2BooleanMap.FastEntrySet
+			? ((Int2BooleanMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/** @see #entries(Int2ShortMap) */
+	static ObjectIterator<Int2ByteMap.Entry> entries (Int2ByteMap map)
+	{	ObjectSet<Int2ByteMap.Entry> entries = map.int2ByteEntrySet();
+		return entries instanceof Int2ByteMap.FastEntrySet
+			? ((Int2ByteMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/** @see #entries(Int2ShortMap) */
+	static ObjectIterator<Int2CharMap.Entry> entries (Int2CharMap map)
+	{	ObjectSet<Int2CharMap.Entry> entries = map.int2CharEntrySet();
+		return entries instanceof Int2CharMap.FastEntrySet
+			? ((Int2CharMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/** @see #entries(Int2ShortMap) */
+	static ObjectIterator<Int2IntMap.Entry> entries (Int2IntMap map)
+	{	ObjectSet<Int2IntMap.Entry> entries = map.int2IntEntrySet();
+		return entries instanceof Int2IntMap.FastEntrySet
+			? ((Int2IntMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/** @see #entries(Int2ShortMap) */
+	static ObjectIterator<Int2LongMap.Entry> entries (Int2LongMap map)
+	{	ObjectSet<Int2LongMap.Entry> entries = map.int2LongEntrySet();
+		return entries instanceof Int2LongMap.FastEntrySet
+			? ((Int2LongMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/** @see #entries(Int2ShortMap) */
+	static ObjectIterator<Int2FloatMap.Entry> entries (Int2FloatMap map)
+	{	ObjectSet<Int2FloatMap.Entry> entries = map.int2FloatEntrySet();
+		return entries instanceof Int2FloatMap.FastEntrySet
+			? ((Int2FloatMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/** @see #entries(Int2ShortMap) */
+	static ObjectIterator<Int2DoubleMap.Entry> entries (Int2DoubleMap map)
+	{	ObjectSet<Int2DoubleMap.Entry> entries = map.int2DoubleEntrySet();
+		return entries instanceof Int2DoubleMap.FastEntrySet
+			? ((Int2DoubleMap.FastEntrySet) entries).fastIterator()
+			: entries.iterator();
+	}
+
+	/**
+	 * If set, the range of the values in each row is tracked as it's added, and
+	 * when this is written out, each array is written using the narrowest numpy
+	 * type that can hold it: unsigned bytes or shorts for the indices of matrices
+	 * with up to 256 or 65536 columns, and for indptr when there are few enough
+	 * entries, and the narrowest integer type, or bool if every value is 0 or 1,
+	 * for the data. Floating-point data are always written as they are. This can
+	 * halve the size of the output, and scipy converts the indices back to its
+	 * own index type on load.
+	 * <p>
+	 * The data already added, if any, are scanned when this is set.
+	 */
+	public void setNarrowing (boolean narrowing)
+	{	if (narrowing && !this.narrowing)
+		{	minValue = Long.MAX_VALUE;
+			maxValue = Long.MIN_VALUE;
+			if (dataType.isInteger())
+				trackRange (0, data.size());
+		}
+		this.narrowing = narrowing;
+	}
+
+	public boolean isNarrowing()
+	{	return narrowing;
+	}
+
+	/**
+	 * Widens the range of the data to include the given range of entries
+	 */
+	private void trackRange (long start, long end)
+	{	if (!dataType.isInteger())
+			return;
+
+		long min = minValue, max = maxValue;
+		for (long i = start; i < end; i++)
+		{	long value = longValue (i);
+			min = Math.min (min, value);
+			max = Math.max (max, value);
+		}
+		minValue = min;
+		maxValue = max;
+	}
+
+	/**
+	 * The value of the given entry in the data, which must be of an integer type
+	 */
+	final long longValue (long i)
+	{	switch (dataType)
+		{	case INT8:   return data.getByte (i);
+			case INT16:  return data.getShort (i);
+			case UINT16: return data.getShort (i) & 0xFFFF;
+			case INT32:  return data.getInt (i);
+			case INT64:  return data.getLong (i);
+			default:     return data.getByte (i) & 0xFF; // BOOL and UINT8
+		}
+	}
+
+	/**
+	 * The value of the given entry in the data, of any type
+	 */
+	final double doubleValue (long i)
+	{	switch (dataType)
+		{	case FLOAT32: return data.getFloat (i);
+			case FLOAT64: return data.getDouble (i);
+			default:      return longValue (i);
+		}
+	}
+
+	/**
+	 * If set, statistics of each column and row, such as document frequencies and
+	 * sums, are collected as rows are added, and written out alongside the matrix,
+	 * see {@link MatrixStatistics}. This saves a second pass over the matrix to
+	 * calculate them, e.g. for TF-IDF weighting, or pruning rare features. It costs
+	 * a few arrays with an entry for every column, and twelve bytes for every row.
+	 * <p>
+	 * The rows already added, if any, are scanned when this is set.
+	 */
+	public void setCollectStatistics (boolean collect)
+	{	if (collect && stats == null)
+		{	stats = new MatrixStatistics (cols, dataType, storage);
+			for (int r = 0; r < rows; r++)
+				stats.addRow (this, indptr.getLong (r), indptr.getLong (r + 1));
+		}
+		else if (!collect)
+			stats = null;
+	}
+
+	/**
+	 * The statistics collected so far, or null if they're not being collected,
+	 * see {@link #setCollectStatistics(boolean)}.
+	 */
+	public MatrixStatistics getStatistics()
+	{	return stats;
+	}
+
+	/**
+	 * Sets the listener told about each row added, and about the arrays written
+	 * out when this is written. The default listener ignores everything.
+	 */
+	public void setMetricsListener (MetricsListener metrics)
+	{	this.metrics = metrics == null ? MetricsListener.NONE : metrics;
+	}
+
+	public MetricsListener getMetricsListener()
+	{	return metrics;
+	}
+
+	/**
+	 * Returns the transpose of this matrix, whose arrays are also those of this
+	 * matrix in CSC format. The entries are sorted by column in parallel, on a new
+	 * fork-join pool with one thread for each processor.
+	 */
+	public CsrMatrixBuilder transpose()
+	{	ForkJoinPool pool = new ForkJoinPool();
+		try
+		{	return transpose (pool);
+		}
+		finally
+		{	pool.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the transpose of this matrix, sorting the entries by column in
+	 * parallel on the given pool. The rows of the transpose, the columns of
+	 * this, are always sorted. No more rows should be added to this while the
+	 * transpose is being made.
+	 * @throws IllegalArgumentException if an entry's column is outside the matrix
+	 */
+	public CsrMatrixBuilder transpose (ForkJoinPool pool)
+	{	return Transposer.transpose (this, pool);
+	}
+
+	/**
+	 * The total memory, on or off the heap, allocated to hold the indices,
+	 * indptr and data, including any space not yet used.
+	 */
+	public long getAllocatedBytes()
+	{	return indices.allocatedBytes() + indptr.allocatedBytes() + data.allocatedBytes();
+	}
+
+	/**
+	 * If set, the entries of each row are sorted by column as the row is added,
+	 * so the matrix is written out in scipy's canonical format. This is cheaper
+	 * than sorting afterwards, as each row is still in the cache, but it slows
+	 * down the thread adding the rows; see {@link #sortIndices()} for the
+	 * alternative. Rows added before this is set are not sorted.
+	 * <p>
+	 * Once this is set, a row with the same column more than once is rejected
+	 * with an {@link IllegalArgumentException} when it's added.
+	 */
+	public void setSortRows (boolean sortRows)
+	{	this.sortRows = sortRows;
+	}
+
+	public boolean isSortRows()
+	{	return sortRows;
+	}
+
+	/**
+	 * Whether the entries of every row are sorted by column, with no column
+	 * appearing twice in a row. This is what scipy calls canonical format.
+	 */
+	public boolean hasCanonicalFormat()
+	{	return canonical;
+	}
+
+	/**
+	 * Sorts the entries of every row by column, using a new fork-join pool with
+	 * one thread for each processor. Does nothing if the rows are already sorted.
+	 * @see #sortIndices(ForkJoinPool)
+	 */
+	public void sortIndices()
+	{	if (canonical)
+			return;
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try
+		{	sortIndices (pool);
+		}
+		finally
+		{	pool.shutdown();
+		}
+	}
+
+	/**
+	 * Sorts the entries of every row by column, on the given pool, which works
+	 * through separate ranges of rows in parallel. No rows should be added while
+	 * this is running.
+	 * @throws IllegalArgumentException if a row contains the same column more
+	 * than once, as it then can't be put in canonical format. That row is left as
+	 * it was, though others may have been sorted.
+	 */
+	public void sortIndices (ForkJoinPool pool)
+	{	if (!canonical)
+		{	pool.invoke (new SortTask (0, rows));
+			canonical = true;
+		}
+	}
+
+	/**
+	 * Sorts the rows in the given range, splitting it in two until there are few
+	 * enough entries to sort in one go.
+	 */
+	private final class SortTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int fromRow;
+		private final int toRow;
+
+		SortTask (int fromRow, int toRow)
+		{	this.fromRow = fromRow;
+			this.toRow   = toRow;
+		}
+
+		@Override
+		protected void compute()
+		{	long nnz = indptr.getLong (toRow) - indptr.getLong (fromRow);
+			if (toRow - fromRow > 1 && nnz > SORT_CHUNK)
+			{	int mid = (fromRow + toRow) >>> 1;
+				invokeAll (new SortTask (fromRow, mid), new SortTask (mid, toRow));
+				return;
+			}
+
+			RowSorter sorter = new RowSorter (data.width());
+			for (int r = fromRow; r < toRow; r++)
+			{	long start = indptr.getLong (r);
+				sorter.sort (indices, data, start, (int) (indptr.getLong (r + 1) - start));
+			}
+		}
+	}
+
+	/**
+	 * A read-only view of the column indices of the non-zero entries
+	 */
+	public IntBigList getIndices()
+	{	return indices.asIntBigList();
+	}
+
+	/**
+	 * A read-only view of the offsets into the indices and data of the
+	 * start of each row, with one extra entry at the end for the total
+	 * number of non-zero entries.
+	 */
+	public LongBigList getIndptr()
+	{	return indptr.asLongBigList();
+	}
+
+	/**
+	 * The number of non-zero entries in this matrix
+	 */
+	public long getNonZeroCount()
+	{	return indices.size();
+	}
+
+	/**
+	 * The numpy type in which the data are written out
+	 */
+	public NpyDataType getDataType()
+	{	return dataType;
+	}
+
+	/**
+	 * Allocates the memory in which this matrix is stored
+	 */
+	SegmentAllocator storage()
+	{	return storage;
+	}
+
+	/**
+	 * The type in which indices and indptr should be written out, the smallest
+	 * which can hold the number of non-zero entries.
+	 */
+	NpyDataType indexType()
+	{	return NpyDataType.indexTypeFor (getNonZeroCount());
+	}
+
+	/**
+	 * The type in which the indices are written out, see {@link #setNarrowing(boolean)}
+	 */
+	NpyDataType indicesOutputType()
+	{	return narrowing ? NpyDataType.narrowIndexTypeFor (Math.max (0, cols - 1)) : indexType();
+	}
+
+	/**
+	 * The type in which indptr is written out, see {@link #setNarrowing(boolean)}
+	 */
+	NpyDataType indptrOutputType()
+	{	return narrowing ? NpyDataType.narrowIndexTypeFor (getNonZeroCount()) : indexType();
+	}
+
+	/**
+	 * The type in which the data are written out, see {@link #setNarrowing(boolean)}.
+	 * The data are never written in a wider type than they're stored in.
+	 */
+	NpyDataType dataOutputType()
+	{	if (!narrowing || !dataType.isInteger() || getNonZeroCount() == 0)
+			return dataType;
+		NpyDataType narrowest = NpyDataType.narrowestFor (minValue, maxValue);
+		return narrowest == NpyDataType.BOOL || narrowest.width() < dataType.width() ? narrowest : dataType;
+	}
+
+	/**
+	 * Whether every value in the data is known to fit in the given integer type,
+	 * no wider than the type the data are stored in, which is only known if
+	 * we're narrowing.
+	 */
+	boolean dataFits (NpyDataType dtype)
+	{	if (!narrowing || !dataType.isInteger() || !dtype.isInteger() || dtype.width() > dataType.width())
+			return false;
+		return getNonZeroCount() == 0 || (minValue >= dtype.minValue() && maxValue <= dtype.maxValue());
+	}
+
+	/**
+	 * The indices stored in their segments, for writing out
+	 */
+	ChunkedBuffer indicesBuffer()
+	{	return indices;
+	}
+
+	/**
+	 * The indptr stored in its segments, for writing out
+	 */
+	ChunkedBuffer indptrBuffer()
+	{	return indptr;
+	}
+
+	/**
+	 * The data stored in its segments, for writing out
+	 */
+	ChunkedBuffer dataBuffer()
+	{	return data;
+	}
+
+	public int getRows()
+	{	return rows;
+	}
+
+	public int getCols()
+	{	return cols;
+	}
+
+	/**
+	 * Writes out three files which can be used to reconstitute a single Scipy sparse CSR matrix
+	 * This are the indices, the indptr and the data. Provide a file prefix, and three files
+	 * will be created, each with the numpy array in the appropriate NPY format.
+	 * @param filePrefix the filename prefix used for all these files.
+	 * @return the paths to the indices, indptr and data files in that order.
+	 * @throws Exception
+	 * @throws IOException
+	 */
+	public Path[] writeToFiles (Path filePrefix) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ false))
+		{	return wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Writes out the same three files as {@link #writeToFiles(Path)}, except that
+	 * the files are pre-sized and filled in through memory-mapped windows. This
+	 * is worthwhile for very large matrices, see {@link CsrMatrixWriter#setMemoryMapped(boolean)}
+	 * @param filePrefix the filename prefix used for all these files.
+	 * @return the paths to the indices, indptr and data files in that order.
+	 * @throws Exception
+	 */
+	public Path[] writeToMappedFiles (Path filePrefix) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ false))
+		{	wtr.setMemoryMapped (true);
+			return wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Writes out the same three files as {@link #writeToFiles(Path)}, except that
+	 * all three are written at the same time, each by a task submitted to the
+	 * given executor, see {@link CsrMatrixWriter#setExecutor(ExecutorService)}
+	 * @param filePrefix the filename prefix used for all these files.
+	 * @param executor the executor on which the files are written, which is not
+	 * shut down afterwards.
+	 * @return the paths to the indices, indptr and data files in that order.
+	 * @throws Exception
+	 */
+	public Path[] writeToFiles (Path filePrefix, ExecutorService executor) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ false))
+		{	wtr.setExecutor (executor);
+			return wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Appends the rows of this matrix to the end of a matrix already written out
+	 * to three files by {@link #writeToFiles(Path)}, or by numpy, rewriting only
+	 * the shapes in the headers of the files rather than the existing rows. The
+	 * existing matrix must have the same data type as this.
+	 * @param filePrefix the filename prefix of the existing files.
+	 * @return the paths to the indices, indptr and data files in that order.
+	 * @throws Exception
+	 */
+	public Path[] appendToFiles (Path filePrefix) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ false, /* compress = */ false, /* append = */ true))
+		{	return wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Writes out this to a single CSR sparse matrix file, in the ".npz" format used
+	 * by <code>scipy.sparse.save_npz</code>, so it can be read back in with
+	 * <code>scipy.sparse.load_npz</code>.
+	 * @param filePrefix the filename prefix, to which ".npz" is appended
+	 * @return the path to the single archive file.
+	 * @throws Exception
+	 * @throws IOException
+	 */
+	public Path[] writeToFile (Path filePrefix) throws Exception
+	{	return writeToFile (filePrefix, /* compress = */ false);
+	}
+
+	/**
+	 * Writes out this to a single CSR sparse matrix file, in the ".npz" format used
+	 * by <code>scipy.sparse.save_npz</code>, so it can be read back in with
+	 * <code>scipy.sparse.load_npz</code>.
+	 * @param filePrefix the filename prefix, to which ".npz" is appended
+	 * @param compress if true the arrays in the archive are deflated.
+	 * @return the path to the single archive file.
+	 * @throws Exception
+	 * @throws IOException
+	 */
+	public Path[] writeToFile (Path filePrefix, boolean compress) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ true, compress))
+		{	return wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Writes out this to a single sparse matrix file, in the ".npz" format used by
+	 * <code>scipy.sparse.save_npz</code>, in the given format, so that
+	 * <code>scipy.sparse.load_npz</code> returns a matrix of the matching type.
+	 * Matrices written in CSC format are first transposed in parallel, see
+	 * {@link #transpose()}, which needs as much memory again as this.
+	 * @param filePrefix the filename prefix, to which ".npz" is appended
+	 * @param format the format in which to write the matrix
+	 * @param compress if true the arrays in the archive are deflated.
+	 * @return the path to the single archive file.
+	 * @throws Exception
+	 */
+	public Path[] writeToFile (Path filePrefix, SparseFormat format, boolean compress) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ true, compress))
+		{	wtr.setFormat (format);
+			return wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Writes out this to a single compressed CSR sparse matrix file, in the ".npz"
+	 * format used by <code>scipy.sparse.save_npz</code>. Blocks of each array are
+	 * compressed in parallel, see {@link CsrMatrixWriter#setExecutor(ExecutorService)}
+	 * @param filePrefix the filename prefix, to which ".npz" is appended
+	 * @param compressionLevel the level at which to compress the arrays, as for
+	 * {@link java.util.zip.Deflater}
+	 * @param executor the executor on which blocks are compressed, which is not shut
+	 * down afterwards.
+	 * @return the path to the single archive file.
+	 * @throws Exception
+	 */
+	public Path[] writeToFile (Path filePrefix, int compressionLevel, ExecutorService executor) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ true, /* compress = */ true))
+		{	wtr.setCompressionLevel (compressionLevel);
+			wtr.setExecutor (executor);
+			return wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Writes out this as a single CSR sparse matrix archive, in the ".npz" format
+	 * used by <code>scipy.sparse.save_npz</code>, to the given channel, which is
+	 * left open, e.g. to send it over a socket or pipe without first writing it to
+	 * disk. Statistics are not written, even if collected.
+	 * See {@link CsrMatrixWriter#CsrMatrixWriter(WritableByteChannel, boolean)}.
+	 * @param channel the channel to which the archive is written
+	 * @param compress if true the arrays in the archive are deflated.
+	 * @throws Exception
+	 */
+	public void writeTo (WritableByteChannel channel, boolean compress) throws Exception
+	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (channel, compress))
+		{	wtr.writeCsrMatrix(this);
+		}
+	}
+
+	/**
+	 * Writes out this as a single CSR sparse matrix archive to the given stream,
+	 * which is flushed but left open.
+	 * @see #writeTo(WritableByteChannel, boolean)
+	 */
+	public void writeTo (OutputStream out, boolean compress) throws Exception
+	{	writeTo (Channels.newChannel (out), compress);
+		out.flush();
+	}
+}
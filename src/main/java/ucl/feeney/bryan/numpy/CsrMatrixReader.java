@@ -0,0 +1,251 @@
+package ucl.feeney.bryan.numpy;
+
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.appendFileNameSuffix;
+import it.unimi.dsi.fastutil.bytes.ByteBigList;
+import it.unimi.dsi.fastutil.chars.CharBigList;
+import it.unimi.dsi.fastutil.ints.AbstractIntBigList;
+import it.unimi.dsi.fastutil.ints.IntBigList;
+import it.unimi.dsi.fastutil.longs.AbstractLongBigList;
+import it.unimi.dsi.fastutil.longs.LongBigList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.Charsets;
+
+/**
+ * Reads back a CSR sparse matrix, either from the three files written by
+ * {@link CsrMatrixBuilder#writeToFiles(Path)}, or from a ".npz" archive written
+ * by {@link CsrMatrixBuilder#writeToFile(Path)} or <code>scipy.sparse.save_npz</code>.
+ * <p>
+ * The arrays are memory-mapped rather than read in (see {@link NpyArray}), so a
+ * matrix of any size is opened almost immediately, and rows can be read in any
+ * order: the entries of row <code>r</code> are those from
+ * {@link #getRowStart(int)} up to {@link #getRowEnd(int)} in the indices and data.
+ * <p>
+ * Archive entries can only be mapped if they're stored uncompressed. Indices and
+ * indptr may be 32 or 64-bit ints, or narrowed unsigned bytes or shorts, and are
+ * presented as ints and longs respectively whichever they are.
+ */
+public final class CsrMatrixReader
+{
+	/** The most we'll read of the small entry recording the matrix format */
+	private final static int MAX_FORMAT_LEN = 1024;
+
+	private final NpyArray    indices;
+	private final NpyArray    indptr;
+	private final NpyArray    data;
+	private final int         cols;
+
+	private final IntBigList  indicesView;
+	private final LongBigList indptrView;
+
+	private CsrMatrixReader (NpyArray indices, NpyArray indptr, NpyArray data, int cols) throws IOException
+	{	if (indices.size() != data.size())
+			throw new IOException ("There are " + indices.size() + " indices but " + data.size() + " data");
+		if (indptr.size() < 1)
+			throw new IOException ("indptr must have at least one entry");
+
+		this.indices     = indices;
+		this.indptr      = indptr;
+		this.data        = data;
+		this.cols        = cols;
+		this.indicesView = asInts (indices);
+		this.indptrView  = asLongs (indptr);
+	}
+
+	/**
+	 * Opens the three files, indices, indptr and data, written with the given prefix.
+	 * @param filePrefix the prefix of the files, as given when writing them
+	 * @param cols the number of columns in the matrix, which isn't recorded in the files
+	 */
+	public static CsrMatrixReader openFiles (Path filePrefix, int cols) throws IOException
+	{	return new CsrMatrixReader (
+			NpyArray.map (appendFileNameSuffix (filePrefix, CsrMatrixWriter.INDICES)),
+			NpyArray.map (appendFileNameSuffix (filePrefix, CsrMatrixWriter.INDPTR)),
+			NpyArray.map (appendFileNameSuffix (filePrefix, CsrMatrixWriter.DATA)),
+			cols);
+	}
+
+	/**
+	 * Opens a ".npz" archive of a CSR matrix, as written by <code>scipy.sparse.save_npz</code>
+	 * without compression.
+	 * @param path the path of the archive itself
+	 */
+	public static CsrMatrixReader openArchive (Path path) throws IOException
+	{	try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ))
+		{	ZipArchiveReader archive = new ZipArchiveReader (channel);
+
+			ZipArchiveReader.Entry format = archive.getEntry ("format.npy");
+			if (format != null)
+			{	// A '|S3' array, which NpyArray can't map, but as it's always three bytes
+				// at the end of the entry we can just check those.
+				String tag = new String (readEntry (channel, archive, format), Charsets.US_ASCII).trim();
+				if (!tag.endsWith ("csr"))
+					throw new IOException ("The matrix in " + path + " is not in CSR format");
+			}
+
+			NpyArray shape = mapEntry (channel, archive, "shape.npy");
+			if (shape.size() != 2)
+				throw new IOException ("The shape of the matrix in " + path + " should have two dimensions, not " + shape.size());
+			long cols = asLongs (shape).getLong (1);
+
+			return new CsrMatrixReader (
+				mapEntry (channel, archive, "indices.npy"),
+				mapEntry (channel, archive, "indptr.npy"),
+				mapEntry (channel, archive, "data.npy"),
+				(int) cols);
+		}
+	}
+
+	private static NpyArray mapEntry (FileChannel channel, ZipArchiveReader archive, String name) throws IOException
+	{	ZipArchiveReader.Entry entry = archive.getEntry (name);
+		if (entry == null)
+			throw new IOException ("The archive has no " + name + " entry");
+		if (entry.method != ZipArchiveWriter.STORED)
+			throw new IOException ("The " + name + " entry is compressed, and so can't be memory-mapped");
+		return NpyArray.map (channel, archive.dataOffset (entry), entry.size);
+	}
+
+	private static byte[] readEntry (FileChannel channel, ZipArchiveReader archive, ZipArchiveReader.Entry entry) throws IOException
+	{	if (entry.method != ZipArchiveWriter.STORED || entry.size > MAX_FORMAT_LEN)
+			throw new IOException ("The " + entry.name + " entry should be small and uncompressed");
+		byte[] bytes = new byte[(int) entry.size];
+		ByteBuffer buf = ByteBuffer.wrap (bytes);
+		long pos = archive.dataOffset (entry);
+		while (buf.hasRemaining())
+			if (channel.read (buf, pos + buf.position()) < 0)
+				throw new IOException ("Unexpected end of archive reading " + entry.name);
+		return bytes;
+	}
+
+	/**
+	 * Presents an array of integers, of any width up to 64 bits, as ints. Narrow
+	 * unsigned indices, see {@link CsrMatrixBuilder#setNarrowing(boolean)}, are
+	 * widened as they're read.
+	 */
+	private static IntBigList asInts (NpyArray array) throws IOException
+	{	if (array.getDataType() == NpyDataType.INT32)
+			return array.asIntBigList();
+
+		final LongBigList longs = asLongs (array);
+		return new AbstractIntBigList() {
+			@Override
+			public int getInt (long index)
+			{	return (int) longs.getLong (index);
+			}
+
+			@Override
+			public long size64()
+			{	return longs.size64();
+			}
+		};
+	}
+
+	/**
+	 * Presents an array of integers, of any width up to 64 bits, as longs
+	 */
+	private static LongBigList asLongs (NpyArray array) throws IOException
+	{	switch (array.getDataType())
+		{	case INT64:
+				return array.asLongBigList();
+			case INT32:
+				final IntBigList ints = array.asIntBigList();
+				return new AbstractLongBigList() {
+					@Override
+					public long getLong (long index)
+					{	return ints.getInt (index);
+					}
+
+					@Override
+					public long size64()
+					{	return ints.size64();
+					}
+				};
+			case UINT16:
+				final CharBigList chars = array.asCharBigList();
+				return new AbstractLongBigList() {
+					@Override
+					public long getLong (long index)
+					{	return chars.getChar (index);
+					}
+
+					@Override
+					public long size64()
+					{	return chars.size64();
+					}
+				};
+			case UINT8:
+				final ByteBigList bytes = array.asByteBigList();
+				return new AbstractLongBigList() {
+					@Override
+					public long getLong (long index)
+					{	return bytes.getByte (index) & 0xFF;
+					}
+
+					@Override
+					public long size64()
+					{	return bytes.size64();
+					}
+				};
+			default:
+				throw new IOException ("Expected an array of ints, not " + array.getDataType());
+		}
+	}
+
+	public int getRows()
+	{	return (int) (indptr.size() - 1);
+	}
+
+	public int getCols()
+	{	return cols;
+	}
+
+	public long getNonZeroCount()
+	{	return indices.size();
+	}
+
+	public NpyDataType getDataType()
+	{	return data.getDataType();
+	}
+
+	/**
+	 * The offset into the indices and data of the first entry in the given row
+	 */
+	public long getRowStart (int row)
+	{	return indptrView.getLong (row);
+	}
+
+	/**
+	 * The offset into the indices and data just past the last entry in the given row
+	 */
+	public long getRowEnd (int row)
+	{	return indptrView.getLong (row + 1);
+	}
+
+	/**
+	 * A read-only view of the column indices of the non-zero entries
+	 */
+	public IntBigList getIndices()
+	{	return indicesView;
+	}
+
+	/**
+	 * A read-only view of the offsets into the indices and data of the
+	 * start of each row, with one extra entry at the end for the total
+	 * number of non-zero entries.
+	 */
+	public LongBigList getIndptr()
+	{	return indptrView;
+	}
+
+	/**
+	 * The non-zero values, through whichever of its views matches {@link #getDataType()}
+	 */
+	public NpyArray getData()
+	{	return data;
+	}
+}
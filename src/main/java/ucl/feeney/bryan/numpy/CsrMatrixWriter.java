@@ -1,17 +1,27 @@
 package ucl.feeney.bryan.numpy;
 
-import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.shorts.ShortList;
-
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.apache.commons.io.Charsets;
 import org.apache.commons.lang3.StringUtils;
@@ -23,13 +33,19 @@ import org.slf4j.LoggerFactory;
 /**
  * A slightly hacky class that writes out a sparse matrix to disk in a numpy compatible
  * format. Typically this is in the three elements that can be used to construct
- * a numpy sparse CSR matrix: the indices, the ind_ptr, and data. The data is stored as
- * 16-bit integers for compactness.
+ * a numpy sparse CSR matrix: the indices, the ind_ptr, and data. The data is written
+ * in whichever type the builder holds it, e.g. 16-bit integers for compactness.
+ * <p>
+ * If you want, you can instead have this write a single ".npz" archive, in the format
+ * written by <code>scipy.sparse.save_npz</code>, which can be loaded in one go with
+ * <code>scipy.sparse.load_npz</code>. The arrays are written straight into the archive,
+ * optionally compressed, so this is no more expensive than writing the three files.
  * <p>
- * If you want, you can have this launch a python script which will simply read in the
- * three individual files, combined them into a single matrix, then write out again. 
- * However note that this could take quite some time, as the whole matrix has to be
- * loaded into memory!
+ * The builder stores its arrays in little-endian order, so they're written out as they
+ * are, segment by segment, through a channel.
+ * Alternatively, for very large outputs, the files can be pre-sized and filled
+ * through memory-mapped windows, see {@link #setMemoryMapped(boolean)}. The three
+ * files can also be written at the same time, see {@link #setExecutor(ExecutorService)}.
  * <p>
  * For true big-data problems we'd write out a bunch of sparse vectors instead to a single
  * large file, say, and load them in one at a time via memmap.However for experimentation,
@@ -42,78 +58,159 @@ class CsrMatrixWriter implements AutoCloseable
 	// There are better ways of doing this, but none are worth my time...
 	public final static String PYTHON_PATH = "/opt/local/bin/python3";
 	
-	private final static String INDICES = "-indices.npy";
-	private final static String INDPTR  = "-indptr.npy";
-	private final static String DATA    = "-data.npy";
+	final static String INDICES = "-indices.npy";
+	final static String INDPTR  = "-indptr.npy";
+	final static String DATA    = "-data.npy";
 	
-	private final static int BLOCK_SIZE = 16;
-	
-	private final static byte[] NPY_HEADER;
-	static {
-		byte[] hdr = "XNUMPY".getBytes(Charsets.US_ASCII);
-		hdr[0] = (byte) 0x93;
-		NPY_HEADER = hdr;
-	}
+	/** The suffix of the single-file archive written when recombining */
+	final static String NPZ = ".npz";
 	
-	private final static byte   NPY_MAJ_VERSION = 1;
-	private final static byte   NPY_MIN_VERSION = 0;
+	/** Buffer size used to write out small, fixed-size arrays */
+	private final static int SMALL_BUFFER_SIZE = 1024;
 	
-	/** 
-	 * A python script used to load int th intermediate array files,
-	 * combine them into a single scipy.sparse matrix, then save that
-	 * out.
-	 */
-	private final static String PY_COMBINE_SCRIPT = 
-		   "import numpy as np; "
-		 + "import scipy.sparse as ssp; "
-		 + "import pickle as pkl; "
-
-		 + "indices = np.load('%s'); "
-		 + "indptr  = np.load('%s'); "
-		 + "data    = np.load('%s'); "
-		
-		 + "mat = ssp.csr_matrix((data, indices, indptr)); "
-		 + "f = open('%s', 'wb'); "
-     + "pkl.dump(mat, f); "
-     + "f.close(); ";
+	/** The number of row indices expanded from indptr at a time, when writing COO matrices */
+	private final static int ROW_BUFFER_SIZE = 64 * 1024;
 	
 	/** 
-	 * if true launch a Python script on close which combines the three outputs into
-	 * a single matrix and deletes the intermeida files
+	 * if true write out a single scipy-compatible ".npz" archive instead of three
+	 * separate files.
 	 */
 	private final boolean recombine;
 	
+	/**
+	 * if true, and if we're recombining, deflate the arrays in the archive. 
+	 */
+	private final boolean compress;
+	
+	/**
+	 * If true, the matrix is appended to the rows in existing files instead of
+	 * replacing them, see {@link #appendCsrMatrix(CsrMatrixBuilder)}
+	 */
+	private final boolean append;
+	
+	/**
+	 * if true, and if we're not recombining, fill each file through memory-mapped
+	 * windows rather than writing it through a buffer.
+	 */
+	private boolean memoryMapped;
+	
+	/**
+	 * the compression level used when deflating the arrays in the archive.
+	 */
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	
+	/**
+	 * if set, and if we're not recombining, the three files are written at the
+	 * same time, each by its own task submitted to this. If we're recombining
+	 * and compressing, blocks of each array are compressed in parallel on this.
+	 */
+	private ExecutorService executor;
+	
+	/**
+	 * Told about each array and matrix written, taken from the builder of the
+	 * matrix being written
+	 */
+	private MetricsListener metrics = MetricsListener.NONE;
+	
+	/**
+	 * The format in which matrices are written to archives
+	 */
+	private SparseFormat format = SparseFormat.CSR;
+	
 	/**
 	 * The path, including the file-name. This is essentially a prefix to which
 	 * "-indices.npy", "-indptr.npy" and "-data.npy" will be appended. If 
-	 * recombine is set to true, these intermediate files will be deleted, and
-	 * this becomes a prefix to which just ".npy" is appended
+	 * recombine is set to true, this becomes a prefix to which just ".npz" is
+	 * appended. This is null if we're writing an archive to a stream.
 	 */
 	private final Path filePrefix;
 	
-	private Path                 indicesPath;
-	private BufferedOutputStream indices;
+	private Path             indicesPath;
+	private FileChannel      indices;
 	
-	private Path                 indptrPath;
-	private BufferedOutputStream indptr;
+	private Path             indptrPath;
+	private FileChannel      indptr;
 	
-	private Path                 dataPath;
-	private BufferedOutputStream data;
+	private Path             dataPath;
+	private FileChannel      data;
+	
+	private Path             archivePath;
+	private ZipArchiveWriter archive;
 	
 	/**
 	 * Creates a new writer. Throws an exception if one or more of the files cannot be
 	 * created.
 	 * @param filePrefix the prefix of all the files that will be created
-	 * @param recombine if true after all the files have been created and populated
-	 * we launch a Python script to load them in, merged them into a single CSR matrix
-	 * object, and write them out again.
+	 * @param recombine if true we write out a single ".npz" archive containing a
+	 * scipy sparse CSR matrix, instead of three separate files.
 	 */
 	public CsrMatrixWriter(Path filePrefix, boolean recombine) throws IOException {
+		this (filePrefix, recombine, /* compress = */ false);
+	}
+	
+	/**
+	 * Creates a new writer. Throws an exception if one or more of the files cannot be
+	 * created.
+	 * @param filePrefix the prefix of all the files that will be created
+	 * @param recombine if true we write out a single ".npz" archive containing a
+	 * scipy sparse CSR matrix, instead of three separate files.
+	 * @param compress if true, and we're recombining, the arrays in the archive are
+	 * deflated, as with <code>scipy.sparse.save_npz(..., compressed=True)</code>
+	 */
+	public CsrMatrixWriter(Path filePrefix, boolean recombine, boolean compress) throws IOException {
+		this (filePrefix, recombine, compress, /* append = */ false);
+	}
+	
+	/**
+	 * Creates a new writer which, if append is true, opens the three existing
+	 * files with the given prefix so that rows can be added to the end of the
+	 * matrix they hold. Archives can't be appended to.
+	 */
+	CsrMatrixWriter(Path filePrefix, boolean recombine, boolean compress, boolean append) throws IOException {
 		super();
+		if (append && recombine)
+			throw new IllegalArgumentException ("Matrices can only be appended to separate files, not archives");
 		this.filePrefix = filePrefix;
 		this.recombine = recombine;
+		this.compress = compress;
+		this.append = append;
+		
+		if (recombine)
+			openArchive();
+		else
+			openStreams();
+	}
+
+	/**
+	 * Creates a new writer which writes a single ".npz" archive, as when
+	 * recombining, to the given channel, e.g. a pipe, a socket or standard output,
+	 * rather than to a file. The channel needn't be able to seek, and if it can't,
+	 * each entry of the archive is followed by a data descriptor giving its size and
+	 * checksum, which scipy and other zip readers accept. As sequential readers such
+	 * as <code>ZipInputStream</code> only accept data descriptors after deflated
+	 * entries, arrays are then deflated even if not compressing, at level 0, so they
+	 * can't be memory-mapped by {@link CsrMatrixReader} if the archive is saved to a
+	 * file. Only one matrix should be written, and no statistics files are written
+	 * alongside it.
+	 * <p>
+	 * The channel is left open when this is closed, so more may be written to it
+	 * after the archive.
+	 * @param channel the channel to which the archive is written.
+	 * @param compress if true the arrays in the archive are deflated, as with
+	 * <code>scipy.sparse.save_npz(..., compressed=True)</code>
+	 * @throws IOException if the position of a seekable channel can't be read
+	 */
+	public CsrMatrixWriter(WritableByteChannel channel, boolean compress) throws IOException {
+		super();
+		this.filePrefix = null;
+		this.recombine = true;
+		this.compress = compress;
+		this.append = false;
 		
-		openStreams();
+		archive = channel instanceof SeekableByteChannel
+			? new ZipArchiveWriter ((SeekableByteChannel) channel)
+			: new ZipArchiveWriter (channel);
+		archive.setCloseChannel (false);
 	}
 
 	/**
@@ -127,62 +224,482 @@ class CsrMatrixWriter implements AutoCloseable
 		indptrPath  = appendFileNameSuffix(filePrefix, INDPTR);
 		dataPath    = appendFileNameSuffix(filePrefix, DATA);
 		
-		indices = newBufferedOutputStream(indicesPath);
-		indptr  = newBufferedOutputStream(indptrPath);
-		data    = newBufferedOutputStream(dataPath);
+		indices = newFileChannel(indicesPath);
+		indptr  = newFileChannel(indptrPath);
+		data    = newFileChannel(dataPath);
 	}
 
-	private BufferedOutputStream newBufferedOutputStream(Path path) throws IOException {
-		return new BufferedOutputStream (Files.newOutputStream (path));
+	/**
+	 * Opens the single archive file to which the three arrays are written, along
+	 * with the format and shape scipy needs to reconstruct the matrix.
+	 */
+	private void openArchive() throws IOException
+	{	archivePath = appendFileNameSuffix(filePrefix, NPZ);
+		archive     = new ZipArchiveWriter (newFileChannel (archivePath));
+	}
+
+	private FileChannel newFileChannel(Path path) throws IOException {
+		if (append)
+			return FileChannel.open (path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		
+		// We need to be able to read as well as write to memory-map the file
+		return FileChannel.open (path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+	
+	/**
+	 * If set, then each of the three files is pre-sized to its final length, and
+	 * filled in through {@link java.nio.MappedByteBuffer} windows instead of being
+	 * written through a buffer. Writes are then simple stores to memory, and the
+	 * operating system takes care of writing them out to disk. This is worthwhile
+	 * for very large outputs, in the tens of gigabytes. Files larger than 2GB
+	 * are written through several successive windows.
+	 * <p>
+	 * This has no effect when recombining the arrays into a single archive.
+	 */
+	public void setMemoryMapped (boolean memoryMapped)
+	{	this.memoryMapped = memoryMapped;
+	}
+	
+	public boolean isMemoryMapped()
+	{	return memoryMapped;
+	}
+	
+	/**
+	 * If set, then the indices, indptr and data files are written at the same time,
+	 * each by its own task submitted to the given executor, rather than one after the
+	 * other on the calling thread. As the files are independent, on storage which
+	 * can sustain several streams at once this cuts the time taken to roughly that
+	 * needed to write the largest of them. The executor is not shut down afterwards.
+	 * <p>
+	 * If any of the tasks fail, the others are still allowed to finish, and all the
+	 * failures are reported together, see {@link MergedException}.
+	 * <p>
+	 * When recombining the arrays into a single compressed archive, the arrays are
+	 * instead split into blocks which are deflated in parallel on the executor, which
+	 * makes compression nearly as fast as writing the arrays uncompressed. The output
+	 * is an ordinary deflated entry, readable by <code>numpy.load</code>.
+	 * @param executor the executor on which to write the files, or null to write
+	 * them one at a time on the calling thread.
+	 */
+	public void setExecutor (ExecutorService executor)
+	{	this.executor = executor;
+	}
+	
+	public ExecutorService getExecutor()
+	{	return executor;
+	}
+	
+	/**
+	 * Sets the level at which the arrays are compressed, when writing a compressed
+	 * archive, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+	 * The default is {@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public void setCompressionLevel (int compressionLevel)
+	{	if ((compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION)
+		 && compressionLevel != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException ("Invalid compression level " + compressionLevel);
+		this.compressionLevel = compressionLevel;
+	}
+	
+	public int getCompressionLevel()
+	{	return compressionLevel;
+	}
+	
+	/**
+	 * Sets the format in which matrices are written, when recombining them into an
+	 * archive. CSC matrices are transposed in parallel, on a fork-join pool, before
+	 * being written, and COO matrices have the row of each entry expanded out of
+	 * indptr as it's written. Separate files can only be written in CSR format.
+	 */
+	public void setFormat (SparseFormat format)
+	{	if (format != SparseFormat.CSR && !recombine)
+			throw new IllegalStateException ("Only archives can hold matrices in " + format + " format");
+		this.format = format;
+	}
+	
+	public SparseFormat getFormat()
+	{	return format;
+	}
+	
+	/**
+	 * Creates the output through which an array, along with its header, will be
+	 * written.
+	 * @param channel the channel to write to
+	 * @param length the total length in bytes of the header and array
+	 */
+	private LittleEndianOutput newOutput (WritableByteChannel channel, long length) throws IOException
+	{	return memoryMapped && channel instanceof FileChannel
+			? new MappedFileWriter ((FileChannel) channel, length)
+			: new LittleEndianChannelWriter (channel);
 	}
 
 	
 	/**
 	 * Writes out the three data-structures required of a sparse scipy array and
 	 * into three separate files. See class documentation for more on this.
+	 * <p>
+	 * If the builder has collected statistics, they're written alongside, see
+	 * {@link MatrixStatistics}, unless we're appending, as they only cover the
+	 * rows being appended.
 	 * @param csr the matrix to write out
-	 * @return the paths to the indices, indptr and data files in that order.
+	 * @return the paths to the indices, indptr and data files in that order, or
+	 * the archive, followed by those of the statistics, if any.
 	 * @throws Exception 
 	 */
-	public Path[] writeCsrShortMatrix (CsrShortMatrixBuilder csr) throws Exception
-	{	writeNumpyArray (indices, csr.getIndices());
-		writeNumpyArray (indptr,  csr.getIndptr());
-		writeNumpyArray (data,    csr.getData());
+	public Path[] writeCsrMatrix (CsrMatrixBuilder csr) throws Exception
+	{	metrics = csr.getMetricsListener();
+		long start = System.nanoTime();
+		Path[] paths = recombine ? writeCsrArchive (csr)
+		             : append    ? appendCsrMatrix (csr)
+		             : writeCsrFiles (csr);
+		if (csr.getStatistics() != null && !append && filePrefix != null)
+		{	Path[] stats  = csr.getStatistics().writeTo (filePrefix);
+			Path[] matrix = paths;
+			paths = Arrays.copyOf (matrix, matrix.length + stats.length);
+			System.arraycopy (stats, 0, paths, matrix.length, stats.length);
+		}
+		metrics.matrixWritten (paths, csr.getAllocatedBytes(), System.nanoTime() - start, recombine);
+		return paths;
+	}
+	
+	/**
+	 * Writes out the three arrays to their own files
+	 * @return the paths to the indices, indptr and data files in that order.
+	 */
+	private Path[] writeCsrFiles (CsrMatrixBuilder csr) throws Exception
+	{	long start = System.nanoTime();
+		long bytes;
+		if (executor == null)
+			bytes = writeNumpyArray ("indices", indices, csr.indicesBuffer(), csr.indicesOutputType())
+			      + writeNumpyArray ("indptr",  indptr,  csr.indptrBuffer(),  csr.indptrOutputType())
+			      + writeNumpyArray ("data",    data,    csr.dataBuffer(),    csr.dataOutputType());
+		else
+			bytes = writeConcurrently (csr);
+		logThroughput (bytes, System.nanoTime() - start);
 		
-		if (! recombine)
-			return new Path[] { indicesPath, indptrPath, dataPath };
-	
-		// otherwise launch a Python script to build a sparse matrix from 
-		// these three files, and then use Python itself to save that sparse
-		// matrix out as a single file, finally deleting the intermediate files.
-		//
-		// Note that this essentially _doubles_ the memory usage
+		return new Path[] { indicesPath, indptrPath, dataPath };
+	}
+	
+	/**
+	 * Writes out the three arrays to their files at the same time, on the executor,
+	 * waiting for all of them to finish.
+	 * @return the total number of bytes written
+	 */
+	private long writeConcurrently (CsrMatrixBuilder csr) throws Exception
+	{	List<Future<Long>> tasks = new ArrayList<>(3);
+		tasks.add (submitNumpyArray ("indices", indices, csr.indicesBuffer(), csr.indicesOutputType()));
+		tasks.add (submitNumpyArray ("indptr",  indptr,  csr.indptrBuffer(),  csr.indptrOutputType()));
+		tasks.add (submitNumpyArray ("data",    data,    csr.dataBuffer(),    csr.dataOutputType()));
 		
-		close();
-//		indicesPath.toFile().deleteOnExit();
-//		indptrPath.toFile().deleteOnExit();
-//		dataPath.toFile().deleteOnExit();
+		long bytes = 0;
+		Exception err = null;
+		for (Future<Long> task : tasks)
+		{	try
+			{	bytes += task.get();
+			}
+			catch (ExecutionException ee)
+			{	Throwable cause = ee.getCause();
+				err = MergedException.merge (err, cause instanceof Exception
+					? (Exception) cause
+					: new IOException (cause.getMessage(), cause));
+			}
+			catch (InterruptedException ie)
+			{	// Stop waiting, and stop the tasks that haven't finished yet.
+				for (Future<Long> other : tasks)
+					other.cancel (/* mayInterruptIfRunning = */ true);
+				Thread.currentThread().interrupt();
+				err = MergedException.merge (err, ie);
+				break;
+			}
+		}
 		
-		Path combinedPath = appendFileNameSuffix(filePrefix, ".pkl");
-		String pyScript   = String.format (
-			PY_COMBINE_SCRIPT,
-			indicesPath.toString(),
-			indptrPath.toString(),
-			dataPath.toString(),
-			combinedPath.toString()
-		);
+		if (err != null)
+			throw err;
+		return bytes;
+	}
+	
+	/**
+	 * Appends the rows of the given matrix to the matrix in the three existing
+	 * files, without reading or rewriting any of the rows already there. The
+	 * new indices and data are written after the existing ones, the new row
+	 * offsets are shifted by the last entry in the existing indptr, and then
+	 * the shape in each file's header is overwritten in place.
+	 * <p>
+	 * The headers are only rewritten once all the arrays have been extended, so
+	 * if this fails part way through the files still hold the original matrix.
+	 * Everything that could stop the append, such as mismatched types or a
+	 * header with no room for the new shape, is checked before anything is
+	 * written. We always reserve enough room when writing headers, as does numpy.
+	 * <p>
+	 * The arrays are always written one at a time through buffers; the executor
+	 * and memory-mapping options are ignored.
+	 * @param csr the rows to append, which must have the same number of columns
+	 * and data type as the existing matrix.
+	 * @return the paths to the indices, indptr and data files in that order.
+	 */
+	private Path[] appendCsrMatrix (CsrMatrixBuilder csr) throws Exception
+	{	long start = System.nanoTime();
+		
+		NpyHeader indicesHeader = NpyHeader.decode (indices, 0);
+		NpyHeader indptrHeader  = NpyHeader.decode (indptr,  0);
+		NpyHeader dataHeader    = NpyHeader.decode (data,    0);
+		checkIndexType (indicesHeader, indicesPath);
+		checkIndexType (indptrHeader,  indptrPath);
+		if (dataHeader.dtype != csr.getDataType() && !csr.dataFits (dataHeader.dtype))
+			throw new IOException ("Can't append " + csr.getDataType() + " data to the " + dataHeader.dtype + " data in " + dataPath);
+		
+		long nnz  = indicesHeader.size();
+		long rows = indptrHeader.size() - 1;
+		if (dataHeader.size() != nnz)
+			throw new IOException ("There are " + nnz + " indices in " + indicesPath + " but " + dataHeader.size() + " data in " + dataPath);
+		if (rows < 0 || readIndex (indptr, indptrHeader, rows) != nnz)
+			throw new IOException ("The last entry in " + indptrPath + " doesn't match the " + nnz + " non-zero entries in the matrix");
+		
+		long newNnz  = nnz  + csr.getNonZeroCount();
+		long newRows = rows + csr.getRows();
+		if (newNnz > indptrHeader.dtype.maxValue())
+			throw new IOException ("The " + indptrHeader.dtype + " offsets in " + indptrPath + " can't address " + newNnz + " non-zero entries, the matrix must be rewritten");
+		if (csr.getCols() - 1 > indicesHeader.dtype.maxValue())
+			throw new IOException ("The " + indicesHeader.dtype + " indices in " + indicesPath + " can't hold the indices of " + csr.getCols() + " columns");
+		
+		byte[] newIndicesHeader = resizedHeader (indicesHeader, newNnz,      indicesPath);
+		byte[] newIndptrHeader  = resizedHeader (indptrHeader,  newRows + 1, indptrPath);
+		byte[] newDataHeader    = resizedHeader (dataHeader,    newNnz,      dataPath);
+		
+		// Shift the offsets of the new rows past the existing entries, skipping their leading zero
+		ChunkedBuffer offsets = new ChunkedBuffer (SegmentAllocator.heap(), 8, csr.getRows());
+		offsets.resize (csr.getRows());
+		csr.indptrBuffer().copyLongsTo (1, offsets, 0, csr.getRows(), nnz);
+		
+		long bytes = appendNumpyArray ("indices", indices, indicesHeader, nnz,      csr.indicesBuffer(), newIndicesHeader)
+		           + appendNumpyArray ("indptr",  indptr,  indptrHeader,  rows + 1, offsets,             newIndptrHeader)
+		           + appendNumpyArray ("data",    data,    dataHeader,    nnz,      csr.dataBuffer(),    newDataHeader);
+		
+		writeHeader (indices, newIndicesHeader);
+		writeHeader (indptr,  newIndptrHeader);
+		writeHeader (data,    newDataHeader);
+		logThroughput (bytes, System.nanoTime() - start);
+		
+		return new Path[] { indicesPath, indptrPath, dataPath };
+	}
+	
+	private static void checkIndexType (NpyHeader header, Path path) throws IOException
+	{	if (header.shape.length != 1)
+			throw new IOException ("Expected a 1-D array in " + path + ", not one with " + header.shape.length + " dimensions");
+		if (!header.dtype.isInteger() || header.dtype == NpyDataType.BOOL)
+			throw new IOException ("Expected integers in " + path + ", not " + header.dtype);
+	}
+	
+	/**
+	 * Creates a header for the given array with its new length, which must fit in
+	 * exactly the space taken by the existing header.
+	 */
+	private static byte[] resizedHeader (NpyHeader header, long len, Path path) throws IOException
+	{	byte[] result = NpyHeader.encode (header.dtype, header.fortranOrder, new long[] { len }, header.length);
+		if (result.length != header.length)
+			throw new IOException ("The header of " + path + " has no room for a length of " + len + ", the matrix must be rewritten");
+		return result;
+	}
+	
+	/**
+	 * Reads the integer at the given index in a file
+	 */
+	private static long readIndex (FileChannel channel, NpyHeader header, long index) throws IOException
+	{	ByteBuffer buf = ByteBuffer.allocate (header.dtype.width()).order (ByteOrder.LITTLE_ENDIAN);
+		long pos = header.length + index * header.dtype.width();
+		while (buf.hasRemaining())
+			if (channel.read (buf, pos + buf.position()) < 0)
+				throw new IOException ("Unexpected end of file reading entry " + index);
+		buf.flip();
+		switch (header.dtype)
+		{	case UINT8:  return buf.get() & 0xFF;
+			case INT8:   return buf.get();
+			case UINT16: return buf.getShort() & 0xFFFF;
+			case INT16:  return buf.getShort();
+			case INT32:  return buf.getInt();
+			default:     return buf.getLong();
+		}
+	}
+	
+	/**
+	 * Writes out the given array after the existing elements in a file, and cuts
+	 * off anything past them, such as the remains of an earlier failed append.
+	 * @return the number of bytes written
+	 */
+	private long appendNumpyArray (String name, FileChannel channel, NpyHeader header, long len, ChunkedBuffer array, byte[] newHeader) throws IOException
+	{	long start = System.nanoTime();
+		long end   = newHeader.length + (len + array.size()) * header.dtype.width();
+		channel.position (header.length + len * header.dtype.width());
+		LittleEndianOutput out = new LittleEndianChannelWriter (channel);
+		array.writeTo (out, header.dtype);
+		out.flush();
+		if (channel.size() > end)
+			channel.truncate (end);
+		reportArray (name, header.dtype, array.size(), out, System.nanoTime() - start);
+		return out.getBytesWritten();
+	}
+	
+	private static void writeHeader (FileChannel channel, byte[] header) throws IOException
+	{	ByteBuffer buf = ByteBuffer.wrap (header);
+		while (buf.hasRemaining())
+			channel.write (buf, buf.position());
+	}
+	
+	/**
+	 * Submits a task to the executor to write out a numpy array to the given channel
+	 * @see #writeNumpyArray(String, WritableByteChannel, ChunkedBuffer, NpyDataType)
+	 */
+	private Future<Long> submitNumpyArray (final String name, final WritableByteChannel channel, final ChunkedBuffer array, final NpyDataType dtype)
+	{	return executor.submit (new Callable<Long>() {
+			@Override
+			public Long call() throws IOException
+			{	return writeNumpyArray (name, channel, array, dtype);
+			}
+		});
+	}
+	
+	/**
+	 * Writes out the three arrays, along with the matrix format and shape, as
+	 * entries in a single archive which can be read by <code>scipy.sparse.load_npz</code>
+	 * <p>
+	 * In CSC format, the arrays written are those of the transposed matrix. In COO
+	 * format, the column of each entry is in "col.npy", and its row in "row.npy",
+	 * both narrowed, if the matrix is narrowing, to the types which can hold the
+	 * largest column and row respectively.
+	 * @param csr the matrix to write out
+	 * @return the path to the archive.
+	 */
+	private Path[] writeCsrArchive (CsrMatrixBuilder csr) throws Exception
+	{	long start = System.nanoTime();
+		long bytes = 0;
+		
+		CsrMatrixBuilder arrays = format == SparseFormat.CSC ? transpose (csr) : csr;
+		if (format == SparseFormat.COO)
+		{	try (WritableByteChannel entry = openArchiveEntry ("row.npy"))
+			{	NpyDataType rowType = csr.isNarrowing() ? NpyDataType.narrowIndexTypeFor (Math.max (0, csr.getRows() - 1)) : NpyDataType.INT32;
+				bytes += writeRowIndices ("row", entry, csr, rowType);
+			}
+			try (WritableByteChannel entry = openArchiveEntry ("col.npy"))
+			{	bytes += writeNumpyArray ("col", entry, csr.indicesBuffer(), csr.isNarrowing() ? csr.indicesOutputType() : NpyDataType.INT32);
+			}
+		}
+		else
+		{	try (WritableByteChannel entry = openArchiveEntry ("indices.npy"))
+			{	bytes += writeNumpyArray ("indices", entry, arrays.indicesBuffer(), arrays.indicesOutputType());
+			}
+			try (WritableByteChannel entry = openArchiveEntry ("indptr.npy"))
+			{	bytes += writeNumpyArray ("indptr", entry, arrays.indptrBuffer(), arrays.indptrOutputType());
+			}
+		}
+		try (WritableByteChannel entry = openArchiveEntry ("format.npy"))
+		{	LittleEndianChannelWriter out = new LittleEndianChannelWriter (entry, SMALL_BUFFER_SIZE);
+			byte[] tag = format.tag().getBytes (Charsets.US_ASCII);
+			out.write (NpyHeader.encode ("|S" + tag.length, /* fortranOrder = */ false));
+			out.write (tag);
+			out.flush();
+		}
+		try (WritableByteChannel entry = openArchiveEntry ("shape.npy"))
+		{	LittleEndianChannelWriter out = new LittleEndianChannelWriter (entry, SMALL_BUFFER_SIZE);
+			out.write (NpyHeader.encode (NpyDataType.INT64, /* fortranOrder = */ false, 2));
+			out.writeLong (csr.getRows());
+			out.writeLong (csr.getCols());
+			out.flush();
+		}
+		try (WritableByteChannel entry = openArchiveEntry ("data.npy"))
+		{	bytes += writeNumpyArray ("data", entry, arrays.dataBuffer(), csr.dataOutputType());
+		}
+		
+		archive.close();
+		logThroughput (bytes, System.nanoTime() - start);
+		return archivePath == null ? new Path[0] : new Path[] { archivePath };
+	}
+	
+	/**
+	 * Transposes the matrix on a new fork-join pool, or if there is one, the
+	 * executor we've been given.
+	 */
+	private CsrMatrixBuilder transpose (CsrMatrixBuilder csr)
+	{	if (executor instanceof ForkJoinPool)
+			return Transposer.transpose (csr, (ForkJoinPool) executor);
 		
+		ForkJoinPool pool = new ForkJoinPool();
 		try
-		{	Pair<String, String> output = shellExec (new String[] { pythonPath(), "-c", pyScript });
-			String err = output.getRight().trim();
-			if (! err.isEmpty())
-				throw new IOException ("Failed to combine arrays into a matrix due to script error: " + err);
-			
-			return new Path[] { combinedPath };
+		{	return Transposer.transpose (csr, pool);
+		}
+		finally
+		{	pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Writes out the row of every entry, for the COO format, expanding them from
+	 * indptr a block at a time rather than storing them all.
+	 * @param dtype the type in which the rows are written, one of |u1, &lt;u2 or
+	 * &lt;i4, which must be able to hold the last row.
+	 * @return the number of bytes written
+	 */
+	private long writeRowIndices (String name, WritableByteChannel channel, CsrMatrixBuilder csr, NpyDataType dtype) throws IOException
+	{	long start = System.nanoTime();
+		long nnz   = csr.getNonZeroCount();
+		byte[] header = NpyHeader.encode (dtype, /* fortranOrder = */ false, nnz);
+		LittleEndianOutput out = newOutput (channel, header.length + dtype.width() * nnz);
+		out.write (header);
+		
+		ChunkedBuffer indptr = csr.indptrBuffer();
+		int[]   rows    = new int[ROW_BUFFER_SIZE];
+		byte[]  narrow8  = dtype == NpyDataType.UINT8  ? new byte[ROW_BUFFER_SIZE]  : null;
+		short[] narrow16 = dtype == NpyDataType.UINT16 ? new short[ROW_BUFFER_SIZE] : null;
+		int     len     = 0;
+		for (int row = 0; row < csr.getRows(); row++)
+		{	for (long i = indptr.getLong (row), end = indptr.getLong (row + 1); i < end; i++)
+			{	if (len == rows.length)
+				{	writeRows (out, rows, len, narrow8, narrow16);
+					len = 0;
+				}
+				rows[len++] = row;
+			}
+		}
+		writeRows (out, rows, len, narrow8, narrow16);
+		out.flush();
+		
+		reportArray (name, dtype, nnz, out, System.nanoTime() - start);
+		return out.getBytesWritten();
+	}
+	
+	/**
+	 * Writes out a block of row indices, narrowed into whichever of the given
+	 * arrays isn't null, or as ints if both are.
+	 */
+	private static void writeRows (LittleEndianOutput out, int[] rows, int len, byte[] narrow8, short[] narrow16) throws IOException
+	{	if (narrow8 != null)
+		{	for (int i = 0; i < len; i++)
+				narrow8[i] = (byte) rows[i];
+			out.write (narrow8, 0, len);
 		}
-		catch (InterruptedException ie)
-		{	throw new IOException ("Interrupted while waiting for the Python recombination script to finish: " + ie.getMessage(), ie);
+		else if (narrow16 != null)
+		{	for (int i = 0; i < len; i++)
+				narrow16[i] = (short) rows[i];
+			out.writeShorts (narrow16, 0, len);
 		}
+		else
+			out.writeInts (rows, 0, len);
+	}
+	
+	/**
+	 * Starts a new entry in the archive, returning the channel to write it to.
+	 * Closing the channel completes the entry.
+	 */
+	private WritableByteChannel openArchiveEntry (String name) throws IOException
+	{	return compress
+			? archive.openEntry (name, ZipArchiveWriter.DEFLATED, compressionLevel, executor)
+			: archive.openEntry (name, ZipArchiveWriter.STORED,   Deflater.NO_COMPRESSION);
+	}
+	
+	private void logThroughput (long bytes, long nanos)
+	{	double secs = Math.max (nanos, 1) / 1E9;
+		LOG.info (String.format ("Wrote %,d bytes to %s in %.3fs (%.1f MB/s)",
+			bytes, filePrefix == null ? "stream" : filePrefix, secs, bytes / secs / (1024 * 1024)));
 	}
 
 	final static String pythonPath()
@@ -232,69 +749,38 @@ class CsrMatrixWriter implements AutoCloseable
 	}
 	
 	/**
-	 * Writes out a numpy array to a file, including the header.
-	 * @param arr the array to write out
-	 * @throws IOException 
-	 */
-	private void writeNumpyArray (OutputStream out, IntList array) throws IOException
-	{	writeHeader (out, Integer.TYPE, array.size());
-		for (int i = 0; i < array.size(); i++)
-			writeLEInt (out, array.get(i));
-	}
-	
-	/**
-	 * Writes out a numpy array to a file, including the header.
-	 * @param arr the array to write out
+	 * Writes out a numpy array to a file, including the header. As the array
+	 * is already stored in little-endian order, its segments are just copied
+	 * out, unless it has to be converted to a different width on the way.
+	 * @param name the name of the array, for the metrics listener
+	 * @param channel the channel to write to
+	 * @param array the array to write out
+	 * @param dtype the type in which to write out the elements in the array
+	 * @return the number of bytes written
 	 * @throws IOException 
 	 */
-	private void writeNumpyArray (OutputStream out, ShortList array) throws IOException
-	{	writeHeader (out, Short.TYPE, array.size());
-		for (int i = 0; i < array.size(); i++)
-			writeLEShort (out, array.get(i));
+	private long writeNumpyArray (String name, WritableByteChannel channel, ChunkedBuffer array, NpyDataType dtype) throws IOException
+	{	long start = System.nanoTime();
+		// Leave room for the length to grow, should rows be appended later
+		int reserved  = NpyHeader.reservedLength (dtype, /* fortranOrder = */ false, 1);
+		byte[] header = NpyHeader.encode (dtype, /* fortranOrder = */ false, new long[] { array.size() }, reserved);
+		LittleEndianOutput out = newOutput (channel, header.length + (long) dtype.width() * array.size());
+		out.write (header);
+		array.writeTo (out, dtype);
+		out.flush();
+		reportArray (name, dtype, array.size(), out, System.nanoTime() - start);
+		return out.getBytesWritten();
 	}
 	
 	/**
-	 * Writes out a standard numpy header, with the standard data type. Don't
-	 * call this directly, it's called already by {@link #writeNumpyArray(OutputStream, IntList)}
-	 * @param out the write to write to. We assume this is an ASCII writer.
-	 * @param datatype acceptable values for this are currently Integer.class
-	 * and Short.class
-	 * @param len length of the numpy array to be stored.
+	 * Tells the metrics listener about an array, splitting the total time taken
+	 * into the time spent filling the output's buffers, and emptying them.
 	 */
-	private void writeHeader (OutputStream out, Class<?> datatype, int len) throws IOException
-	{
-		// Magic number and format version.
-		out.write(NPY_HEADER);
-		out.write(NPY_MAJ_VERSION);
-		out.write(NPY_MIN_VERSION);
-		
-		// Describes the data to be written. Padded with space characteres to be an even
-		// multiple of the block size. Terminated with a newline. Prefixed with a header length.
-		String dataHeader = 
-			  "{ 'descr': '" + toDataTypeStr (datatype)
-			+ "', 'fortran_order': False"
-			+ ", 'shape': (" + len + ",), "
-			+ "}";
-		int hdrLen    = dataHeader.length() + 1; // +1 for a terminating newline.
-		int minHdrLen = hdrLen + (hdrLen % BLOCK_SIZE);
-		
-		dataHeader = dataHeader + StringUtils.repeat(' ', minHdrLen - hdrLen) + '\n';
-		
-		writeLEShort (out, (short) minHdrLen);
-		out.write (dataHeader.getBytes(Charsets.US_ASCII));
+	private void reportArray (String name, NpyDataType dtype, long elements, LittleEndianOutput out, long nanos)
+	{	long flushNanos = out.getFlushNanos();
+		metrics.arrayWritten (name, dtype, elements, out.getBytesWritten(), Math.max (0, nanos - flushNanos), flushNanos);
 	}
 	
-	/**
-	 * Writes a little-endian short to the given output stream
-	 * @param out the stream
-	 * @param value the short value
-	 * @throws IOException 
-	 */
-	private void writeLEShort (OutputStream out, short value) throws IOException
-	{	out.write ( value        & 0x00FF);
-		out.write ((value >> 8)  & 0x00FF);
-	}	
-	
 	/**
 	 * Writes a little-endian int to the given output stream
 	 * @param out the stream
@@ -310,41 +796,38 @@ class CsrMatrixWriter implements AutoCloseable
 	}
 	
 	/**
-	 * Converts a Java class to a python datatype String. Currently only Integer
-	 * and Short are supported.
-	 */
-	private String toDataTypeStr(Class<?> datatype)
-	{
-		if (datatype == Integer.class || datatype == Integer.TYPE)
-			return "<i4";
-		else if (datatype == Short.class || datatype == Short.TYPE)
-			return "<i2";
-		else
-			throw new IllegalArgumentException("Don't know the corresponding Python datatype for " + datatype.getSimpleName());
-	}
-
-
-	/**
-	 * Tries to close all three streams in use. Note that exceptions may get lost
-	 * if two or more streams throw an exception while closing.
+	 * Tries to close all three streams in use, or the archive if we're recombining. 
+	 * If more than one of them fails to close, the failures are reported together,
+	 * see {@link MergedException}.
 	 */
 	public void close() throws Exception
 	{	Exception err  = close (indices);
 		err = MergedException.merge (err, close (indptr));
-		err = MergedException.merge (err, close(data));
+		err = MergedException.merge (err, close (data));
+		err = MergedException.merge (err, close (archive));
+		
+		// Only report the first time, as archives are closed as soon as they're written
+		MetricsListener listener = metrics;
+		metrics = MetricsListener.NONE;
+		listener.writerClosed (filePrefix);
 		
 		if (err != null)
 			throw err;
 	}
 	
-	private IOException close (Closeable c)
-	{	try
+	private IOException close (AutoCloseable c)
+	{	if (c == null)
+			return null;
+		try
 		{	c.close();
 			return null;
 		}
 		catch (IOException ioe)
 		{	return ioe;
 		}
+		catch (Exception e)
+		{	return new IOException (e.getMessage(), e);
+		}
 	}
 	
 	/**
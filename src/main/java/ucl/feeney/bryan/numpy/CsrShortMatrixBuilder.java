@@ -1,29 +1,16 @@
 package ucl.feeney.bryan.numpy;
 
 import it.unimi.dsi.fastutil.ints.Int2ShortMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.shorts.ShortArrayList;
-import it.unimi.dsi.fastutil.shorts.ShortList;
-
-import java.io.IOException;
-import java.nio.file.Path;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.shorts.ShortBigList;
 
 /**
  * Creates a class emulating a Scipy CSR sparse matrix where the data are 16-bit signed ints.
  * <p>
- * This is implemented to make it easier to build such a matrix and then subsequently write it
- * out (see {@link CsrMatrixWriter}). It's not suitable for any sort of arithmetic.
+ * See {@link CsrMatrixBuilder} for how the matrix is stored and written out.
  */
-public class CsrShortMatrixBuilder
+public class CsrShortMatrixBuilder extends CsrMatrixBuilder
 {
-	private final IntList indices;
-	private final IntList indptr; // points to the start of each row in the indices
-	private final ShortList data; // the actual non-zero values.
-	
-	private int rows;
-	private int cols;
-	
 	/**
 	 * Creates a new builder
 	 * @param cols the actual number of columns in this matrix
@@ -32,93 +19,132 @@ public class CsrShortMatrixBuilder
 	 * will be per row.
 	 */
 	public CsrShortMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint)
-	{	this.cols = cols;
-		this.rows = 0;
-		
-		indices = new IntArrayList(rowSizeHint * nonZeroColSizeHint);
-		indptr  = new IntArrayList(rowSizeHint);
-		data    = new ShortArrayList(rowSizeHint * nonZeroColSizeHint); 
-		
-		indptr.add (indices.size()); // indptr has always got one more entry than the
-	}                                // number of rows, such that the last entry is the
-	                                 // effectively the length of the indices / data lists.
+	{	this (cols, rowSizeHint, nonZeroColSizeHint, SegmentAllocator.heap());
+	}
 	
 	/**
-	 * Creates a new bulider
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param rowSizeHint a guess as to how many rows there will be
+	 * @param nonZeroColSizeHint a guess as to how many non-zero entries there
+	 * will be per row.
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrShortMatrixBuilder(int cols, int rowSizeHint, int nonZeroColSizeHint, SegmentAllocator storage)
+	{	super (cols, rowSizeHint, nonZeroColSizeHint, storage, NpyDataType.INT16);
+	}
+	
+	/**
+	 * Creates a new builder
 	 * @param cols the actual number of columns in this matrix
 	 */
 	public CsrShortMatrixBuilder(int cols)
-	{	this.cols = cols;
-		
-		indices = new IntArrayList();
-		indptr  = new IntArrayList();
-		data    = new ShortArrayList();
-		
-		indptr.add (indices.size()); // indptr has always got one more entry than the
-	}                                // number of rows, such that the last entry is the
-	                                 // effectively the length of the indices / data lists.
+	{	this (cols, SegmentAllocator.heap());
+	}
+	
+	/**
+	 * Creates a new builder
+	 * @param cols the actual number of columns in this matrix
+	 * @param storage allocates the memory in which the matrix is stored.
+	 */
+	public CsrShortMatrixBuilder(int cols, SegmentAllocator storage)
+	{	this (cols, 0, 0, storage);
+	}
+	
 	/**
 	 * Adds a row to this matrix. Values are copied over, so the vector
-	 * object can be cleared and re-used.
-	 * @param vector
+	 * object can be cleared and re-used. Where the map supports it, its
+	 * entries are iterated without creating an object for each one.
+	 * @param vector the non-zero entries in the row, keyed by column.
+	 * @throws IllegalArgumentException if a column is outside the matrix, in
+	 * which case the row isn't added.
 	 */
 	public void addRow (Int2ShortMap vector)
-	{	for (Int2ShortMap.Entry entry : vector.int2ShortEntrySet())
-		{	indices.add (entry.getIntKey());
-			data.add (entry.getShortValue());
+	{	ObjectIterator<Int2ShortMap.Entry> iter = entries (vector);
+		while (iter.hasNext())
+		{	Int2ShortMap.Entry entry = iter.next();
+			indices.addInt (checkColumn (entry.getIntKey()));
+			data.addShort (entry.getShortValue());
 		}
-		indptr.add (indices.size());
-		++rows;
-	}
-
-	public IntList getIndices()
-	{	return indices;
+		endRow();
 	}
 
-	public IntList getIndptr()
-	{	return indptr;
-	}
+	/**
+	 * Adds a row to this matrix from parallel arrays of columns and values. The
+	 * given portions of the arrays are copied over in bulk, so they can be re-used.
+	 * @param cols the columns of the non-zero entries
+	 * @param vals the values of the non-zero entries
+	 * @param off the offset in both arrays of the row's first entry
+	 * @param len the number of entries in the row
+	 * @throws IllegalArgumentException if a column is outside the matrix, or
+	 * appears more than once, in which case nothing is added.
+	 */
+	public void addRow (int[] cols, short[] vals, int off, int len)
+	{	if (off < 0 || len < 0 || len > cols.length - off || len > vals.length - off)
+			throw new IndexOutOfBoundsException ("Entries [" + off + ", " + ((long) off + len) + ") are out of bounds for arrays of lengths " + cols.length + " and " + vals.length);
+		checkColumns (cols, off, len);
 
-	public ShortList getData()
-	{	return data;
-	}
-	
-	public int getRows()
-	{	return rows;
+		indices.addInts (cols, off, len);
+		data.addShorts (vals, off, len);
+		endRow();
 	}
 	
-	public int getCols()
-	{	return cols;
+	/**
+	 * Adds a row to this matrix from a dense array of values, of which only the
+	 * non-zero values are stored.
+	 * @param dense the value of every column in the row, the array may be shorter
+	 * than the number of columns, in which case the remainder are taken to be zero.
+	 */
+	public void addRow (short[] dense)
+	{	if (dense.length > getCols())
+			throw new IllegalArgumentException ("Dense row has " + dense.length + " columns, but the matrix only has " + getCols());
+
+		for (int c = 0; c < dense.length; c++)
+		{	if (dense[c] != 0)
+			{	indices.addInt (c);
+				data.addShort (dense[c]);
+			}
+		}
+		endRow();
 	}
 	
 	/**
-	 * Writes out three files which can be used to reconstitute a single Scipy sparse CSR matrix
-	 * This are the indices, the indptr and the data. Provide a file prefix, and three files
-	 * will be created, each with the numpy array in the appropriate NPY format.
-	 * @param filePrefix the filename prefix used for all these files.
-	 * @return the paths to the indices, indptr and data files in that order.
-	 * @throws Exception 
-	 * @throws IOException 
+	 * Appends a block of rows, already in CSR form, to this matrix. The indices
+	 * and data are copied over in bulk, and the row offsets are rebased onto
+	 * the end of this matrix. The block may be a slice of a larger matrix, in
+	 * which case its first row starts at <code>indptr[0]</code> rather than zero.
+	 * @param indptr the offsets of the start of each row of the block into its
+	 * indices and data, with one extra entry at the end for the end of the last row
+	 * @param blockIndices the columns of the block's non-zero entries
+	 * @param blockData the values of the block's non-zero entries
+	 * @throws IllegalArgumentException if a column is outside the matrix, or
+	 * appears more than once in a row, in which case nothing is added.
 	 */
-	public Path[] writeToFiles (Path filePrefix) throws Exception
-	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ false))
-		{	return wtr.writeCsrShortMatrix(this);
-		}
+	public void addRows (int[] indptr, int[] blockIndices, short[] blockData)
+	{	if (indptr.length == 0)
+			throw new IllegalArgumentException ("indptr must have one more entry than there are rows");
+
+		int first = indptr[0];
+		int last  = indptr[indptr.length - 1];
+		for (int r = 1; r < indptr.length; r++)
+			if (indptr[r] < indptr[r - 1])
+				throw new IllegalArgumentException ("Row " + (r - 1) + " ends at " + indptr[r] + ", before it starts at " + indptr[r - 1]);
+		if (first < 0 || last > blockIndices.length || last > blockData.length)
+			throw new IndexOutOfBoundsException ("Entries [" + first + ", " + last + ") are out of bounds for arrays of lengths " + blockIndices.length + " and " + blockData.length);
+		for (int r = 1; r < indptr.length; r++)
+			checkColumns (blockIndices, indptr[r - 1], indptr[r] - indptr[r - 1]);
+
+		long base = indices.size() - first;
+		indices.addInts (blockIndices, first, last - first);
+		data.addShorts (blockData, first, last - first);
+		for (int r = 1; r < indptr.length; r++)
+			endRow (base + indptr[r]);
 	}
 	
 	/**
-	 * Writes out this to a single CSR sparse matrix file. Note that this requires us
-	 * to write out temporary files, then execute a Python script, so this will use
-	 * <emph>twice</emph> as much memory as {@link #writeToFiles(Path)}
-	 * will be created, each with the numpy array in the appropriate NPY format.
-	 * @param filePrefix the filename prefix used for all these files.
-	 * @return the paths to the indices, indptr and data files in that order.
-	 * @throws Exception 
-	 * @throws IOException 
+	 * A read-only view of the non-zero values
 	 */
-	public Path[] writeToFile (Path filePrefix) throws Exception
-	{	try (CsrMatrixWriter wtr = new CsrMatrixWriter (filePrefix, /* combine = */ true))
-		{	return wtr.writeCsrShortMatrix(this);
-		}
+	public ShortBigList getData()
+	{	return data.asShortBigList();
 	}
 }
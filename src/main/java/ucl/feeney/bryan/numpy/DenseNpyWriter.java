@@ -0,0 +1,240 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes out a dense 2-D matrix to an NPY file one vector at a time, so a matrix
+ * of any size can be written without holding it in memory.
+ * <p>
+ * In C order, the default in numpy, the matrix is stored row by row, so rows are
+ * appended, each with a fixed number of columns. In Fortran order it's stored
+ * column by column, so columns are appended, each with a fixed number of rows.
+ * Either way, as we don't know how many vectors there will be, the file starts
+ * with a header with space reserved for any shape, which is overwritten with
+ * the final shape on {@link #close()}.
+ * <p>
+ * Vectors are encoded in bulk into a fixed-size buffer, and written out as it
+ * fills, so the memory used doesn't depend on the size of the matrix. Several
+ * vectors may be appended at once from a single flat array.
+ */
+public class DenseNpyWriter implements AutoCloseable
+{
+	/** Vectors are accumulated until they exceed this many bytes, then written out */
+	private final static int BUFFER_SIZE = 1024 * 1024;
+
+	private final Path                      path;
+	private final FileChannel               channel;
+	private final LittleEndianChannelWriter out;
+	private final int                       headerLen;
+
+	private final NpyDataType dtype;
+	private final int         vectorLength;
+	private final boolean     fortranOrder;
+
+	private long    vectors;
+	private boolean closed;
+
+	/**
+	 * Creates a new writer, creating (or truncating) the file to hold the matrix.
+	 * @param path the path of the file
+	 * @param dtype the type of the matrix elements
+	 * @param vectorLength the number of elements in each vector appended: the
+	 * number of columns in C order, or the number of rows in Fortran order.
+	 * @param fortranOrder if true, columns are appended, rather than rows.
+	 * @throws IOException if the file could not be created.
+	 */
+	public DenseNpyWriter (Path path, NpyDataType dtype, int vectorLength, boolean fortranOrder) throws IOException
+	{	if (vectorLength < 0)
+			throw new IllegalArgumentException ("Negative vector length " + vectorLength);
+
+		this.path         = path;
+		this.dtype        = dtype;
+		this.vectorLength = vectorLength;
+		this.fortranOrder = fortranOrder;
+
+		channel = FileChannel.open (path, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		out = new LittleEndianChannelWriter (channel, BUFFER_SIZE);
+
+		byte[] header = header();
+		headerLen = header.length;
+		out.write (header);
+	}
+
+	/**
+	 * Creates a header for the matrix written so far, padded out so that it's
+	 * always the same length whatever the final shape of the matrix.
+	 */
+	private byte[] header()
+	{	int reserved = NpyHeader.reservedLength (dtype, fortranOrder, 2);
+		return NpyHeader.encode (dtype, fortranOrder, getShape(), reserved);
+	}
+
+	/**
+	 * Checks the matrix is of one of the given types, and the given portion of an
+	 * array holds a whole number of vectors, returning the number.
+	 */
+	private int checkVectors (int off, int len, int arrayLen, NpyDataType... allowed)
+	{	if (closed)
+			throw new IllegalStateException ("This writer has already been closed");
+		if (!Arrays.asList (allowed).contains (dtype))
+			throw new IllegalArgumentException ("This matrix holds " + dtype + " elements, not " + Arrays.toString (allowed));
+		if (off < 0 || len < 0 || off + len > arrayLen)
+			throw new IndexOutOfBoundsException ("Range [" + off + ", " + (off + len) + ") is out of bounds for an array of length " + arrayLen);
+		if (vectorLength == 0 ? len != 0 : len % vectorLength != 0)
+			throw new IllegalArgumentException ("Expected a multiple of " + vectorLength + " elements, not " + len);
+		return vectorLength == 0 ? 0 : len / vectorLength;
+	}
+
+	/**
+	 * Appends a single vector, a row in C order, or a column in Fortran order.
+	 */
+	public void append (double[] vector) throws IOException
+	{	append (vector, 0, vector.length);
+	}
+
+	/**
+	 * Appends the given portion of the array, which holds one or more vectors
+	 * one after the other.
+	 */
+	public void append (double[] vectors, int off, int len) throws IOException
+	{	int count = checkVectors (off, len, vectors.length, NpyDataType.FLOAT64);
+		out.writeDoubles (vectors, off, len);
+		this.vectors += count;
+	}
+
+	/** @see #append(double[]) */
+	public void append (float[] vector) throws IOException
+	{	append (vector, 0, vector.length);
+	}
+
+	/** @see #append(double[], int, int) */
+	public void append (float[] vectors, int off, int len) throws IOException
+	{	int count = checkVectors (off, len, vectors.length, NpyDataType.FLOAT32);
+		out.writeFloats (vectors, off, len);
+		this.vectors += count;
+	}
+
+	/** @see #append(double[]) */
+	public void append (long[] vector) throws IOException
+	{	append (vector, 0, vector.length);
+	}
+
+	/** @see #append(double[], int, int) */
+	public void append (long[] vectors, int off, int len) throws IOException
+	{	int count = checkVectors (off, len, vectors.length, NpyDataType.INT64);
+		out.writeLongs (vectors, off, len);
+		this.vectors += count;
+	}
+
+	/** @see #append(double[]) */
+	public void append (int[] vector) throws IOException
+	{	append (vector, 0, vector.length);
+	}
+
+	/** @see #append(double[], int, int) */
+	public void append (int[] vectors, int off, int len) throws IOException
+	{	int count = checkVectors (off, len, vectors.length, NpyDataType.INT32);
+		out.writeInts (vectors, off, len);
+		this.vectors += count;
+	}
+
+	/** @see #append(double[]) */
+	public void append (short[] vector) throws IOException
+	{	append (vector, 0, vector.length);
+	}
+
+	/**
+	 * Appends the given portion of the array, which holds one or more vectors
+	 * one after the other, to a matrix of signed or unsigned 16-bit ints.
+	 */
+	public void append (short[] vectors, int off, int len) throws IOException
+	{	int count = checkVectors (off, len, vectors.length, NpyDataType.INT16, NpyDataType.UINT16);
+		out.writeShorts (vectors, off, len);
+		this.vectors += count;
+	}
+
+	/** @see #append(double[]) */
+	public void append (byte[] vector) throws IOException
+	{	append (vector, 0, vector.length);
+	}
+
+	/**
+	 * Appends the given portion of the array, which holds one or more vectors
+	 * one after the other, to a matrix of signed or unsigned 8-bit ints, or of
+	 * booleans stored as 0 or 1.
+	 */
+	public void append (byte[] vectors, int off, int len) throws IOException
+	{	int count = checkVectors (off, len, vectors.length, NpyDataType.INT8, NpyDataType.UINT8, NpyDataType.BOOL);
+		out.write (vectors, off, len);
+		this.vectors += count;
+	}
+
+	public Path getPath()
+	{	return path;
+	}
+
+	public NpyDataType getDataType()
+	{	return dtype;
+	}
+
+	public boolean isFortranOrder()
+	{	return fortranOrder;
+	}
+
+	/**
+	 * The number of vectors appended so far: rows in C order, columns in Fortran
+	 * order.
+	 */
+	public long getVectorCount()
+	{	return vectors;
+	}
+
+	/**
+	 * The shape of the matrix written so far
+	 */
+	public long[] getShape()
+	{	return fortranOrder
+			? new long[] { vectorLength, vectors }
+			: new long[] { vectors, vectorLength };
+	}
+
+	/**
+	 * Writes out any buffered vectors, overwrites the placeholder header with the
+	 * final shape, and closes the file.
+	 */
+	@Override
+	public void close() throws Exception
+	{	if (closed)
+			return;
+		closed = true;
+
+		Exception err = null;
+		try
+		{	out.flush();
+			byte[] header = header();
+			if (header.length != headerLen)
+				throw new IOException ("The final header of " + header.length + " bytes doesn't fit the " + headerLen + " reserved");
+			ByteBuffer buf = ByteBuffer.wrap (header);
+			while (buf.hasRemaining())
+				channel.write (buf, buf.position());
+		}
+		catch (IOException ioe)
+		{	err = ioe;
+		}
+
+		try
+		{	channel.close();
+		}
+		catch (IOException ioe)
+		{	err = MergedException.merge (err, ioe);
+		}
+		if (err != null)
+			throw err;
+	}
+}
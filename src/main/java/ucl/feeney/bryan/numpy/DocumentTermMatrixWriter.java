@@ -0,0 +1,184 @@
+package ucl.feeney.bryan.numpy;
+
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.appendFileNameSuffix;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns a stream of documents, each a sequence of tokens, into a document-term
+ * matrix of counts, with a row for each document and a column for each distinct
+ * term, written out as it goes.
+ * <p>
+ * Any number of threads may call {@link #addDocument(Iterator)} at once. Terms
+ * are given columns by a shared {@link Vocabulary}, and each thread counts the
+ * terms of its documents in a map of its own, which is cleared and re-used for
+ * every document, so nothing is allocated per document once the maps have grown
+ * to the size of the longest. The rows are written out on a background thread,
+ * see {@link AsyncCsrMatrixWriter}, in the order their documents were finished.
+ * <p>
+ * Counts are stored as 16-bit ints, and so are capped at {@link Short#MAX_VALUE}.
+ * As the number of columns has to be fixed up front, the vocabulary has a fixed
+ * capacity, and tokens of new terms found once it's full are dropped, and
+ * counted, see {@link #getDroppedTokens()}.
+ * <p>
+ * When this is closed, the vocabulary is written alongside the matrix, to a file
+ * ending "-vocab.txt", see {@link Vocabulary#writeTo(Path)}.
+ */
+public class DocumentTermMatrixWriter implements AutoCloseable
+{
+	/** The suffix of the file holding the vocabulary */
+	final static String VOCAB = "-vocab.txt";
+
+	private final AsyncCsrMatrixWriter out;
+	private final Vocabulary           vocab;
+	private final Path                 vocabPath;
+
+	private final ThreadLocal<Int2ShortOpenHashMap> counts = new ThreadLocal<Int2ShortOpenHashMap>() {
+		@Override
+		protected Int2ShortOpenHashMap initialValue()
+		{	return new Int2ShortOpenHashMap();
+		}
+	};
+
+	private final AtomicLong tokens  = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private boolean          closed;
+
+	/**
+	 * Creates a new writer, creating (or truncating) the files which will hold the
+	 * matrix, with up to {@link AsyncCsrMatrixWriter#DEFAULT_CAPACITY} documents
+	 * waiting to be written at a time.
+	 * @param filePrefix the prefix of all the files that will be created, see
+	 * {@link CsrMatrixWriter}
+	 * @param maxTerms the most distinct terms there may be, which is the number
+	 * of columns in the matrix.
+	 * @throws IOException if one or more of the files could not be created.
+	 */
+	public DocumentTermMatrixWriter (Path filePrefix, int maxTerms) throws IOException
+	{	this (filePrefix, new Vocabulary (maxTerms), AsyncCsrMatrixWriter.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new writer, creating (or truncating) the files which will hold the
+	 * matrix.
+	 * @param filePrefix the prefix of all the files that will be created, see
+	 * {@link CsrMatrixWriter}
+	 * @param vocab the vocabulary, which may already hold some terms, e.g. to give
+	 * the same columns to the same terms as another matrix. Its capacity is the
+	 * number of columns in the matrix.
+	 * @param bufferedDocs the most documents which may be waiting to be written
+	 * before the threads adding them have to wait.
+	 * @throws IOException if one or more of the files could not be created.
+	 */
+	public DocumentTermMatrixWriter (Path filePrefix, Vocabulary vocab, int bufferedDocs) throws IOException
+	{	this.vocab     = vocab;
+		this.vocabPath = appendFileNameSuffix (filePrefix, VOCAB);
+		this.out       = new AsyncCsrMatrixWriter (filePrefix, vocab.getCapacity(), bufferedDocs);
+	}
+
+	/**
+	 * Counts the terms in a document, and adds the counts to the matrix as a new
+	 * row. This may be called by several threads at once.
+	 * @param tokens the tokens of the document, each a term
+	 * @return the index of the document's row in the matrix
+	 * @throws IOException if an earlier row could not be written, in which case no
+	 * more documents can be added.
+	 * @throws InterruptedException if interrupted while waiting to add the row
+	 */
+	public long addDocument (Iterator<String> tokens) throws IOException, InterruptedException
+	{	Int2ShortOpenHashMap row = counts.get();
+		row.clear();
+
+		long count = 0, drop = 0;
+		while (tokens.hasNext())
+		{	int col = vocab.idOf (tokens.next());
+			++count;
+			if (col < 0)
+				++drop;
+			else if (row.addTo (col, (short) 1) == Short.MAX_VALUE)
+				row.put (col, Short.MAX_VALUE);
+		}
+		this.tokens.addAndGet (count);
+		if (drop > 0)
+			dropped.addAndGet (drop);
+
+		return out.addRow (row);
+	}
+
+	/**
+	 * @see #addDocument(Iterator)
+	 */
+	public long addDocument (Iterable<String> tokens) throws IOException, InterruptedException
+	{	return addDocument (tokens.iterator());
+	}
+
+	public Vocabulary getVocabulary()
+	{	return vocab;
+	}
+
+	/**
+	 * The number of documents added so far, some of which may still be waiting to
+	 * be written.
+	 */
+	public long getDocumentCount()
+	{	return out.getRows();
+	}
+
+	/**
+	 * The number of tokens read so far, including those dropped.
+	 */
+	public long getTokenCount()
+	{	return tokens.get();
+	}
+
+	/**
+	 * The number of tokens of new terms found after the vocabulary filled up,
+	 * which are missing from the matrix.
+	 */
+	public long getDroppedTokens()
+	{	return dropped.get();
+	}
+
+	/**
+	 * @return the paths to the indices, indptr, data and vocabulary files in that
+	 * order.
+	 */
+	public Path[] getPaths()
+	{	Path[] matrix = out.getPaths();
+		return new Path[] { matrix[0], matrix[1], matrix[2], vocabPath };
+	}
+
+	/**
+	 * Waits for every document to be written, closes the matrix files, and writes
+	 * out the vocabulary. No documents should be added once this has been called.
+	 * Failures writing the matrix and the vocabulary are reported together, see
+	 * {@link MergedException}.
+	 */
+	@Override
+	public synchronized void close() throws Exception
+	{	if (closed)
+			return;
+		closed = true;
+
+		Exception err = null;
+		try
+		{	out.close();
+		}
+		catch (Exception e)
+		{	err = e;
+		}
+
+		try
+		{	vocab.writeTo (vocabPath);
+		}
+		catch (IOException ioe)
+		{	err = MergedException.merge (err, ioe);
+		}
+		if (err != null)
+			throw err;
+	}
+}
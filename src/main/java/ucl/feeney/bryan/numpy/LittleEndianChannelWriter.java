@@ -0,0 +1,89 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encodes primitives, and arrays of primitives, in little-endian order into a
+ * large buffer, which is written out to a channel whenever it fills up.
+ * <p>
+ * As arrays are copied into the buffer in bulk (see {@link LittleEndianOutput})
+ * this runs at close to the speed of the disk. For the same reason, when writing
+ * to a file we use a direct buffer, which the channel can write out without
+ * copying it first.
+ * <p>
+ * This does not close the underlying channel, as callers often need to do
+ * further work with it (e.g. rewrite a header) once the data has been written.
+ */
+final class LittleEndianChannelWriter extends LittleEndianOutput
+{
+	final static int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final WritableByteChannel out;
+	private long                      bytesWritten;
+
+	/**
+	 * Creates a writer with a buffer of the default size
+	 */
+	LittleEndianChannelWriter (WritableByteChannel out)
+	{	this (out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a writer with a buffer of the given size, which must be at least eight
+	 * bytes.
+	 */
+	LittleEndianChannelWriter (WritableByteChannel out, int bufferSize)
+	{	if (bufferSize < 8)
+			throw new IllegalArgumentException ("Buffer size must be at least 8 bytes, not " + bufferSize);
+
+		this.out = out;
+		this.buf = (out instanceof FileChannel
+			? ByteBuffer.allocateDirect (bufferSize)
+			: ByteBuffer.allocate (bufferSize)).order (ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	protected void nextBuffer (int minRemaining) throws IOException
+	{	flush();
+	}
+
+	/**
+	 * Large buffers are written straight out to the channel, rather than being
+	 * copied through our own buffer first.
+	 */
+	@Override
+	void write (ByteBuffer src) throws IOException
+	{	if (src.remaining() < buf.capacity())
+		{	super.write (src);
+			return;
+		}
+
+		flush();
+		long start = System.nanoTime();
+		while (src.hasRemaining())
+			bytesWritten += out.write (src);
+		flushNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Writes out everything in the buffer to the underlying channel.
+	 */
+	@Override
+	void flush() throws IOException
+	{	long start = System.nanoTime();
+		buf.flip();
+		while (buf.hasRemaining())
+			bytesWritten += out.write (buf);
+		buf.clear();
+		flushNanos += System.nanoTime() - start;
+	}
+
+	@Override
+	long getBytesWritten()
+	{	return bytesWritten;
+	}
+}
@@ -0,0 +1,175 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes primitives, and arrays of primitives, in little-endian order into a
+ * buffer. What happens when the buffer fills up is left to subclasses: it might
+ * be written out to a channel, or it might be a window onto a memory-mapped file,
+ * in which case we just move on to the next window.
+ * <p>
+ * Arrays are copied into the buffer in bulk, through an int, short or long view of
+ * it, rather than one byte at a time.
+ */
+abstract class LittleEndianOutput
+{
+	/** The buffer currently being filled, always in little-endian order */
+	protected ByteBuffer buf;
+
+	/** The time spent handing full buffers on to the destination, see {@link #getFlushNanos()} */
+	protected long flushNanos;
+
+	/**
+	 * Called when there's not enough space left in the buffer for the next value:
+	 * subclasses should make sure that on return {@link #buf} has at least the
+	 * given number of bytes remaining.
+	 */
+	protected abstract void nextBuffer (int minRemaining) throws IOException;
+
+	/**
+	 * Writes out everything written so far to the underlying destination.
+	 */
+	abstract void flush() throws IOException;
+
+	/**
+	 * The total number of bytes written out so far, which may exclude anything still
+	 * in the buffer until {@link #flush()} is called.
+	 */
+	abstract long getBytesWritten();
+
+	/**
+	 * The time spent so far writing out full buffers, or moving on to the next
+	 * one, as opposed to filling them.
+	 */
+	long getFlushNanos()
+	{	return flushNanos;
+	}
+
+	/**
+	 * Makes sure there are at least the given number of bytes free in the buffer
+	 */
+	private void ensureRemaining (int bytes) throws IOException
+	{	if (buf.remaining() < bytes)
+			nextBuffer (bytes);
+	}
+
+	void write (byte[] bytes) throws IOException
+	{	write (bytes, 0, bytes.length);
+	}
+
+	void write (byte[] src, int off, int len) throws IOException
+	{	while (len > 0)
+		{	ensureRemaining (1);
+			int n = Math.min (len, buf.remaining());
+			buf.put (src, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out the remaining contents of the given buffer, which is assumed to
+	 * already be in little-endian order.
+	 */
+	void write (ByteBuffer src) throws IOException
+	{	while (src.hasRemaining())
+		{	ensureRemaining (1);
+			int n = Math.min (src.remaining(), buf.remaining());
+			ByteBuffer chunk = src.duplicate();
+			chunk.limit (chunk.position() + n);
+			buf.put (chunk);
+			src.position (src.position() + n);
+		}
+	}
+
+	void writeByte (byte value) throws IOException
+	{	ensureRemaining (1);
+		buf.put (value);
+	}
+
+	void writeShort (short value) throws IOException
+	{	ensureRemaining (2);
+		buf.putShort (value);
+	}
+
+	void writeInt (int value) throws IOException
+	{	ensureRemaining (4);
+		buf.putInt (value);
+	}
+
+	void writeLong (long value) throws IOException
+	{	ensureRemaining (8);
+		buf.putLong (value);
+	}
+
+	/**
+	 * Writes out the given portion of the array, in little-endian order
+	 */
+	void writeShorts (short[] src, int off, int len) throws IOException
+	{	while (len > 0)
+		{	ensureRemaining (2);
+			int n = Math.min (len, buf.remaining() / 2);
+			buf.asShortBuffer().put (src, off, n);
+			buf.position (buf.position() + n * 2);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out the given portion of the array, in little-endian order
+	 */
+	void writeInts (int[] src, int off, int len) throws IOException
+	{	while (len > 0)
+		{	ensureRemaining (4);
+			int n = Math.min (len, buf.remaining() / 4);
+			buf.asIntBuffer().put (src, off, n);
+			buf.position (buf.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out the given portion of the array, in little-endian order
+	 */
+	void writeLongs (long[] src, int off, int len) throws IOException
+	{	while (len > 0)
+		{	ensureRemaining (8);
+			int n = Math.min (len, buf.remaining() / 8);
+			buf.asLongBuffer().put (src, off, n);
+			buf.position (buf.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out the given portion of the array, in little-endian order
+	 */
+	void writeFloats (float[] src, int off, int len) throws IOException
+	{	while (len > 0)
+		{	ensureRemaining (4);
+			int n = Math.min (len, buf.remaining() / 4);
+			buf.asFloatBuffer().put (src, off, n);
+			buf.position (buf.position() + n * 4);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out the given portion of the array, in little-endian order
+	 */
+	void writeDoubles (double[] src, int off, int len) throws IOException
+	{	while (len > 0)
+		{	ensureRemaining (8);
+			int n = Math.min (len, buf.remaining() / 8);
+			buf.asDoubleBuffer().put (src, off, n);
+			buf.position (buf.position() + n * 8);
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Fills a file of a known size through a succession of memory-mapped windows, so
+ * that writes are just stores to memory, and the operating system takes care of
+ * writing the pages back to disk. There's no intermediate buffer to copy through.
+ * <p>
+ * A single mapping is limited to 2GB, so larger files are written through several
+ * windows, each mapped in turn as the previous one fills up.
+ * <p>
+ * As with {@link LittleEndianChannelWriter} the channel is not closed, however
+ * it must have been opened for both reading and writing for the file to be mapped.
+ */
+final class MappedFileWriter extends LittleEndianOutput
+{
+	/** The default size of each window, a multiple of the page size on every platform we know of */
+	final static int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long        start;
+	private final long        end;
+	private final int         windowSize;
+
+	/** The offset in the file of the start of the current window */
+	private long windowStart;
+
+	/**
+	 * Creates a new writer which will fill the given number of bytes of the file,
+	 * starting at the channel's current position. The file is extended to the full
+	 * length immediately.
+	 */
+	MappedFileWriter (FileChannel channel, long length) throws IOException
+	{	this (channel, length, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Creates a new writer which will fill the given number of bytes of the file,
+	 * starting at the channel's current position, mapping at most windowSize bytes
+	 * at a time. The file is extended to the full length immediately.
+	 */
+	MappedFileWriter (FileChannel channel, long length, int windowSize) throws IOException
+	{	if (windowSize < 8)
+			throw new IllegalArgumentException ("Window size must be at least 8 bytes, not " + windowSize);
+
+		this.channel    = channel;
+		this.start      = channel.position();
+		this.end        = start + length;
+		this.windowSize = windowSize;
+
+		// Pre-size the file, so it's allocated in one go rather than a window at a time.
+		if (length > 0 && channel.size() < end)
+			channel.write (ByteBuffer.wrap (new byte[1]), end - 1);
+
+		map (start);
+	}
+
+	/**
+	 * Maps the window starting at the given offset in the file.
+	 */
+	private void map (long offset) throws IOException
+	{	long start = System.nanoTime();
+		windowStart = offset;
+		buf = channel.map (MapMode.READ_WRITE, offset, Math.min (windowSize, end - offset))
+		             .order (ByteOrder.LITTLE_ENDIAN);
+		flushNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Moves on to the next window, which starts exactly where we left off.
+	 */
+	@Override
+	protected void nextBuffer (int minRemaining) throws IOException
+	{	long pos = windowStart + buf.position();
+		if (end - pos < minRemaining)
+			throw new IOException ("Attempted to write past the end of the " + (end - start) + " bytes reserved in the file");
+
+		map (pos);
+	}
+
+	/**
+	 * Moves the channel's position to the end of the data written so far. The
+	 * data itself is left for the operating system to write back to disk.
+	 */
+	@Override
+	void flush() throws IOException
+	{	channel.position (windowStart + buf.position());
+	}
+
+	@Override
+	long getBytesWritten()
+	{	return windowStart + buf.position() - start;
+	}
+}
@@ -0,0 +1,201 @@
+package ucl.feeney.bryan.numpy;
+
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.appendFileNameSuffix;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Statistics of the columns and rows of a matrix, collected as its rows are
+ * added, see {@link CsrMatrixBuilder#setCollectStatistics(boolean)}.
+ * <p>
+ * For each column we count the rows in which it's non-zero (its document
+ * frequency, if rows are documents and columns terms), and total and find the
+ * maximum of its non-zero values. For each row we keep its number of non-zero
+ * entries and their total. Integer data are totalled as 64-bit ints, so sums
+ * are exact; floating-point data as doubles.
+ * <p>
+ * When the matrix is written out, the statistics are written alongside it as
+ * five NPY files, ending "-col_df.npy", "-col_sum.npy", "-col_max.npy",
+ * "-row_nnz.npy" and "-row_sum.npy".
+ */
+public final class MatrixStatistics
+{
+	final static String COL_DF  = "-col_df.npy";
+	final static String COL_SUM = "-col_sum.npy";
+	final static String COL_MAX = "-col_max.npy";
+	final static String ROW_NNZ = "-row_nnz.npy";
+	final static String ROW_SUM = "-row_sum.npy";
+
+	private final boolean floating;
+
+	private final int[]    colDf;
+	private final long[]   colSums;    // for integer data
+	private final long[]   colMax;
+	private final double[] colDoubleSums; // for floating-point data
+	private final double[] colDoubleMax;
+
+	private final ChunkedBuffer rowNnz;
+	private final ChunkedBuffer rowSums; // longs or doubles, as for the columns
+
+	MatrixStatistics (int cols, NpyDataType dataType, SegmentAllocator storage)
+	{	floating      = !dataType.isInteger();
+		colDf         = new int[cols];
+		colSums       = floating ? null : new long[cols];
+		colMax        = floating ? null : new long[cols];
+		colDoubleSums = floating ? new double[cols] : null;
+		colDoubleMax  = floating ? new double[cols] : null;
+		rowNnz        = new ChunkedBuffer (storage, 4, 0);
+		rowSums       = new ChunkedBuffer (storage, 8, 0);
+	}
+
+	/**
+	 * Adds the entries of a row, from the given range of the matrix's arrays.
+	 * @throws IllegalArgumentException if a column is outside the matrix, in which
+	 * case the statistics are left as they were.
+	 */
+	void addRow (CsrMatrixBuilder csr, long start, long end)
+	{	for (long i = start; i < end; i++)
+		{	int col = csr.indices.getInt (i);
+			if (col < 0 || col >= colDf.length)
+				throw new IllegalArgumentException ("Column " + col + " is out of range for a matrix with " + colDf.length + " columns");
+		}
+
+		if (floating)
+		{	double sum = 0;
+			for (long i = start; i < end; i++)
+			{	int    col   = csr.indices.getInt (i);
+				double value = csr.doubleValue (i);
+				colDoubleMax[col] = colDf[col]++ == 0 ? value : Math.max (colDoubleMax[col], value);
+				colDoubleSums[col] += value;
+				sum += value;
+			}
+			rowSums.addDouble (sum);
+		}
+		else
+		{	long sum = 0;
+			for (long i = start; i < end; i++)
+			{	int  col   = csr.indices.getInt (i);
+				long value = csr.longValue (i);
+				colMax[col] = colDf[col]++ == 0 ? value : Math.max (colMax[col], value);
+				colSums[col] += value;
+				sum += value;
+			}
+			rowSums.addLong (sum);
+		}
+		rowNnz.addInt ((int) (end - start));
+	}
+
+	public int getCols()
+	{	return colDf.length;
+	}
+
+	public long getRows()
+	{	return rowNnz.size();
+	}
+
+	/**
+	 * The number of rows in which the given column has a non-zero entry, or
+	 * rather, an explicitly stored entry.
+	 */
+	public int getDocumentFrequency (int col)
+	{	return colDf[col];
+	}
+
+	/**
+	 * The sum of the values in the given column. For integer data, this may
+	 * lose precision if the sum is beyond 2^53, though it's written out exactly.
+	 */
+	public double getColumnSum (int col)
+	{	return floating ? colDoubleSums[col] : colSums[col];
+	}
+
+	/**
+	 * The largest value stored in the given column, or 0 if it's empty. The
+	 * implicit zeros of a sparse matrix aren't considered, so if every value is
+	 * negative this is negative.
+	 */
+	public double getColumnMax (int col)
+	{	return floating ? colDoubleMax[col] : colMax[col];
+	}
+
+	public int getRowNonZeroCount (long row)
+	{	return rowNnz.getInt (row);
+	}
+
+	/**
+	 * The sum of the values in the given row.
+	 * @see #getColumnSum(int)
+	 */
+	public double getRowSum (long row)
+	{	return floating ? rowSums.getDouble (row) : rowSums.getLong (row);
+	}
+
+	/**
+	 * Writes out the statistics as NPY files, whose names are the given prefix
+	 * followed by the suffixes given in the class documentation. The column
+	 * counts are 32-bit ints, and the sums and maxima are 64-bit ints or doubles
+	 * as the data are integers or not.
+	 * @return the paths of the files written, in the order in which they're
+	 * listed in the class documentation.
+	 */
+	Path[] writeTo (Path filePrefix) throws IOException
+	{	NpyDataType valueType = floating ? NpyDataType.FLOAT64 : NpyDataType.INT64;
+		Path[] paths = new Path[] {
+			appendFileNameSuffix (filePrefix, COL_DF),
+			appendFileNameSuffix (filePrefix, COL_SUM),
+			appendFileNameSuffix (filePrefix, COL_MAX),
+			appendFileNameSuffix (filePrefix, ROW_NNZ),
+			appendFileNameSuffix (filePrefix, ROW_SUM)
+		};
+
+		try (FileChannel channel = open (paths[0]))
+		{	LittleEndianChannelWriter out = newOutput (channel, NpyDataType.INT32, colDf.length);
+			out.writeInts (colDf, 0, colDf.length);
+			out.flush();
+		}
+		try (FileChannel channel = open (paths[1]))
+		{	LittleEndianChannelWriter out = newOutput (channel, valueType, colDf.length);
+			if (floating)
+				out.writeDoubles (colDoubleSums, 0, colDoubleSums.length);
+			else
+				out.writeLongs (colSums, 0, colSums.length);
+			out.flush();
+		}
+		try (FileChannel channel = open (paths[2]))
+		{	LittleEndianChannelWriter out = newOutput (channel, valueType, colDf.length);
+			if (floating)
+				out.writeDoubles (colDoubleMax, 0, colDoubleMax.length);
+			else
+				out.writeLongs (colMax, 0, colMax.length);
+			out.flush();
+		}
+		try (FileChannel channel = open (paths[3]))
+		{	LittleEndianChannelWriter out = newOutput (channel, NpyDataType.INT32, rowNnz.size());
+			rowNnz.writeTo (out, NpyDataType.INT32);
+			out.flush();
+		}
+		try (FileChannel channel = open (paths[4]))
+		{	LittleEndianChannelWriter out = newOutput (channel, valueType, rowSums.size());
+			rowSums.writeTo (out, valueType);
+			out.flush();
+		}
+		return paths;
+	}
+
+	private static FileChannel open (Path path) throws IOException
+	{	return FileChannel.open (path, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Creates an output for a 1-D array, and writes its header
+	 */
+	private static LittleEndianChannelWriter newOutput (FileChannel channel, NpyDataType dtype, long len) throws IOException
+	{	LittleEndianChannelWriter out = new LittleEndianChannelWriter (channel);
+		out.write (NpyHeader.encode (dtype, /* fortranOrder = */ false, len));
+		return out;
+	}
+}
@@ -0,0 +1,175 @@
+package ucl.feeney.bryan.numpy;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MetricsListener} which adds up everything it's told, in atomic counters,
+ * so it can be shared between builders and writers on different threads without
+ * any locking. The totals can be read at any time.
+ * <p>
+ * Building rates are measured from the first row added, excluding the time
+ * spent writing matrices out.
+ */
+public class MetricsCounters implements MetricsListener
+{
+	/**
+	 * The totals for a single array, e.g. "data", over all the matrices written
+	 */
+	public final static class ArrayCounters
+	{	private final AtomicLong count       = new AtomicLong();
+		private final AtomicLong elements    = new AtomicLong();
+		private final AtomicLong bytes       = new AtomicLong();
+		private final AtomicLong encodeNanos = new AtomicLong();
+		private final AtomicLong flushNanos  = new AtomicLong();
+
+		/** The number of times the array has been written */
+		public long getCount()
+		{	return count.get();
+		}
+
+		public long getElements()
+		{	return elements.get();
+		}
+
+		public long getBytes()
+		{	return bytes.get();
+		}
+
+		public long getEncodeNanos()
+		{	return encodeNanos.get();
+		}
+
+		public long getFlushNanos()
+		{	return flushNanos.get();
+		}
+	}
+
+	private final AtomicLong rows          = new AtomicLong();
+	private final AtomicLong nnz           = new AtomicLong();
+	private final AtomicLong firstRowNanos = new AtomicLong();
+
+	private final ConcurrentMap<String, ArrayCounters> arrays = new ConcurrentHashMap<>();
+
+	private final AtomicLong matrices       = new AtomicLong();
+	private final AtomicLong writeNanos     = new AtomicLong();
+	private final AtomicLong recombineNanos = new AtomicLong();
+	private final AtomicLong peakFootprint  = new AtomicLong();
+
+	@Override
+	public void rowAdded (int rowNnz)
+	{	if (rows.getAndIncrement() == 0)
+			firstRowNanos.compareAndSet (0, System.nanoTime());
+		nnz.addAndGet (rowNnz);
+	}
+
+	@Override
+	public void arrayWritten (String name, NpyDataType dtype, long elements, long bytes, long encodeNanos, long flushNanos)
+	{	ArrayCounters counters = arrays.get (name);
+		if (counters == null)
+		{	ArrayCounters created = new ArrayCounters();
+			counters = arrays.putIfAbsent (name, created);
+			if (counters == null)
+				counters = created;
+		}
+		counters.count.incrementAndGet();
+		counters.elements.addAndGet (elements);
+		counters.bytes.addAndGet (bytes);
+		counters.encodeNanos.addAndGet (encodeNanos);
+		counters.flushNanos.addAndGet (flushNanos);
+	}
+
+	@Override
+	public void matrixWritten (Path[] paths, long footprintBytes, long nanos, boolean recombined)
+	{	matrices.incrementAndGet();
+		writeNanos.addAndGet (nanos);
+		if (recombined)
+			recombineNanos.addAndGet (nanos);
+
+		long peak = peakFootprint.get();
+		while (footprintBytes > peak && !peakFootprint.compareAndSet (peak, footprintBytes))
+			peak = peakFootprint.get();
+	}
+
+	@Override
+	public void writerClosed (Path filePrefix)
+	{
+	}
+
+	public long getRows()
+	{	return rows.get();
+	}
+
+	public long getNonZeroCount()
+	{	return nnz.get();
+	}
+
+	/**
+	 * The time spent building, from the first row added until now, less the time
+	 * spent writing matrices.
+	 */
+	public long getBuildNanos()
+	{	long first = firstRowNanos.get();
+		return first == 0 ? 0 : Math.max (0, System.nanoTime() - first - writeNanos.get());
+	}
+
+	public double getRowsPerSecond()
+	{	return perSecond (rows.get(), getBuildNanos());
+	}
+
+	public double getNonZerosPerSecond()
+	{	return perSecond (nnz.get(), getBuildNanos());
+	}
+
+	/**
+	 * The totals for each array written, keyed by name
+	 */
+	public Map<String, ArrayCounters> getArrays()
+	{	return new TreeMap<>(arrays);
+	}
+
+	public long getMatricesWritten()
+	{	return matrices.get();
+	}
+
+	/** The total time spent writing matrices out */
+	public long getWriteNanos()
+	{	return writeNanos.get();
+	}
+
+	/** The time spent writing matrices recombined into single archives */
+	public long getRecombineNanos()
+	{	return recombineNanos.get();
+	}
+
+	/** The most memory allocated by the builder of any matrix written */
+	public long getPeakFootprintBytes()
+	{	return peakFootprint.get();
+	}
+
+	private static double perSecond (long count, long nanos)
+	{	return nanos == 0 ? 0 : count * 1E9 / nanos;
+	}
+
+	/**
+	 * A multi-line summary of the totals
+	 */
+	public String summary()
+	{	StringBuilder sb = new StringBuilder();
+		sb.append (String.format ("Built %,d rows with %,d non-zero entries in %.3fs (%,.0f rows/s, %,.0f nnz/s)%n",
+			getRows(), getNonZeroCount(), getBuildNanos() / 1E9, getRowsPerSecond(), getNonZerosPerSecond()));
+		sb.append (String.format ("Wrote %,d matrices in %.3fs, %.3fs of it recombining, peak builder footprint %,d bytes",
+			getMatricesWritten(), getWriteNanos() / 1E9, getRecombineNanos() / 1E9, getPeakFootprintBytes()));
+		for (Map.Entry<String, ArrayCounters> entry : getArrays().entrySet())
+		{	ArrayCounters array = entry.getValue();
+			sb.append (String.format ("%n  %-8s %,d elements, %,d bytes, %.3fs encoding, %.3fs flushing (%.1f MB/s)",
+				entry.getKey(), array.getElements(), array.getBytes(), array.getEncodeNanos() / 1E9, array.getFlushNanos() / 1E9,
+				perSecond (array.getBytes(), array.getEncodeNanos() + array.getFlushNanos()) / (1024 * 1024)));
+		}
+		return sb.toString();
+	}
+}
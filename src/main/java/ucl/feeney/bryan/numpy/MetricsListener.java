@@ -0,0 +1,79 @@
+package ucl.feeney.bryan.numpy;
+
+import java.nio.file.Path;
+
+/**
+ * Is told what a builder, and the writer it uses, are doing, so that the time
+ * spent building and writing a matrix can be broken down. Set one on a builder
+ * with {@link CsrMatrixBuilder#setMetricsListener(MetricsListener)}.
+ * <p>
+ * {@link #rowAdded(int)} is called for every row, on the thread adding it, so
+ * it must be cheap. The other methods are called once per array or matrix, but
+ * may be called from several threads at once when arrays are written
+ * concurrently. See {@link MetricsCounters} for an implementation which simply
+ * adds everything up, and {@link Slf4jMetricsReporter} for one which logs the
+ * totals.
+ */
+public interface MetricsListener
+{
+	/**
+	 * A listener which ignores everything, the default.
+	 */
+	MetricsListener NONE = new MetricsListener() {
+		@Override
+		public void rowAdded (int nnz)
+		{
+		}
+
+		@Override
+		public void arrayWritten (String name, NpyDataType dtype, long elements, long bytes, long encodeNanos, long flushNanos)
+		{
+		}
+
+		@Override
+		public void matrixWritten (Path[] paths, long footprintBytes, long nanos, boolean recombined)
+		{
+		}
+
+		@Override
+		public void writerClosed (Path filePrefix)
+		{
+		}
+	};
+
+	/**
+	 * Called as each row is added to a builder
+	 * @param nnz the number of non-zero entries in the row
+	 */
+	void rowAdded (int nnz);
+
+	/**
+	 * Called once an array, indices, indptr or data, has been written out
+	 * @param name the name of the array, e.g. "indices"
+	 * @param dtype the type the elements were written as
+	 * @param elements the number of elements written
+	 * @param bytes the number of bytes written, header included
+	 * @param encodeNanos the time spent encoding the header and elements into
+	 * buffers
+	 * @param flushNanos the time spent handing full buffers to the file, or
+	 * archive entry, or mapping windows of the file. For compressed archives this
+	 * includes the time spent compressing.
+	 */
+	void arrayWritten (String name, NpyDataType dtype, long elements, long bytes, long encodeNanos, long flushNanos);
+
+	/**
+	 * Called once all the arrays of a matrix have been written out
+	 * @param paths the files written
+	 * @param footprintBytes the memory allocated by the builder to hold the matrix
+	 * @param nanos the total time taken to write the matrix
+	 * @param recombined true if the arrays were recombined into a single archive,
+	 * in which case nanos is the time spent writing the archive.
+	 */
+	void matrixWritten (Path[] paths, long footprintBytes, long nanos, boolean recombined);
+
+	/**
+	 * Called when the writer with the given prefix is closed. The prefix is null
+	 * if the writer was writing to a stream rather than to files.
+	 */
+	void writerClosed (Path filePrefix);
+}
@@ -0,0 +1,154 @@
+package ucl.feeney.bryan.numpy;
+
+import it.unimi.dsi.fastutil.booleans.BooleanBigList;
+import it.unimi.dsi.fastutil.bytes.ByteBigList;
+import it.unimi.dsi.fastutil.chars.CharBigList;
+import it.unimi.dsi.fastutil.doubles.DoubleBigList;
+import it.unimi.dsi.fastutil.floats.FloatBigList;
+import it.unimi.dsi.fastutil.ints.IntBigList;
+import it.unimi.dsi.fastutil.longs.LongBigList;
+import it.unimi.dsi.fastutil.shorts.ShortBigList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A numpy array read from an NPY file, or from an uncompressed entry in an
+ * ".npz" archive, by memory-mapping the data. Nothing is copied, so opening an
+ * array is quick however large it is, and the operating system reads in the
+ * pages as they're used.
+ * <p>
+ * The elements are accessed through read-only fastutil views, one for each
+ * type, of which only the one matching the array's type may be used. Arrays of
+ * any shape can be read, the views simply list the elements in the order they
+ * are stored.
+ * <p>
+ * The mapping stays valid after the file has been closed, and is released
+ * when this is garbage collected.
+ */
+public final class NpyArray
+{
+	/** Files are mapped in windows of 1GB, as a single mapping can't exceed 2GB */
+	private final static int WINDOW_SHIFT = 30;
+
+	private final NpyHeader     header;
+	private final ChunkedBuffer elements;
+
+	private NpyArray (NpyHeader header, ChunkedBuffer elements)
+	{	this.header   = header;
+		this.elements = elements;
+	}
+
+	/**
+	 * Maps the NPY file at the given path
+	 */
+	public static NpyArray map (Path path) throws IOException
+	{	try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ))
+		{	return map (channel, 0, channel.size());
+		}
+	}
+
+	/**
+	 * Maps an NPY file stored in the given portion of the channel, e.g. an entry
+	 * in an archive.
+	 * @param channel the channel to read from, which may be closed afterwards
+	 * @param start the offset in the channel of the start of the NPY header
+	 * @param length the length of the NPY file, header included
+	 */
+	static NpyArray map (FileChannel channel, long start, long length) throws IOException
+	{	NpyHeader header = NpyHeader.decode (channel, start);
+		long size  = header.size();
+		long bytes = size * header.dtype.width();
+		if (header.length + bytes > length)
+			throw new IOException ("The header describes " + bytes + " bytes of data, but there are only " + (length - header.length));
+
+		long dataStart = start + header.length;
+		int  windowLen = 1 << WINDOW_SHIFT;
+		ByteBuffer[] windows = new ByteBuffer[(int) ((bytes + windowLen - 1) >> WINDOW_SHIFT)];
+		for (int w = 0; w < windows.length; w++)
+		{	long offset = (long) w << WINDOW_SHIFT;
+			windows[w] = channel.map (MapMode.READ_ONLY, dataStart + offset, Math.min (windowLen, bytes - offset));
+		}
+
+		return new NpyArray (header, new ChunkedBuffer (windows, header.dtype.width(), size, WINDOW_SHIFT));
+	}
+
+	public NpyDataType getDataType()
+	{	return header.dtype;
+	}
+
+	/**
+	 * Whether multi-dimensional data are stored column by column
+	 */
+	public boolean isFortranOrder()
+	{	return header.fortranOrder;
+	}
+
+	public long[] getShape()
+	{	return header.shape.clone();
+	}
+
+	/**
+	 * The total number of elements in the array
+	 */
+	public long size()
+	{	return elements.size();
+	}
+
+	public ByteBigList asByteBigList()
+	{	checkType (NpyDataType.INT8, NpyDataType.UINT8);
+		return elements.asByteBigList();
+	}
+
+	public BooleanBigList asBooleanBigList()
+	{	checkType (NpyDataType.BOOL);
+		return elements.asBooleanBigList();
+	}
+
+	public ShortBigList asShortBigList()
+	{	checkType (NpyDataType.INT16);
+		return elements.asShortBigList();
+	}
+
+	public CharBigList asCharBigList()
+	{	checkType (NpyDataType.UINT16);
+		return elements.asCharBigList();
+	}
+
+	public IntBigList asIntBigList()
+	{	checkType (NpyDataType.INT32);
+		return elements.asIntBigList();
+	}
+
+	public LongBigList asLongBigList()
+	{	checkType (NpyDataType.INT64);
+		return elements.asLongBigList();
+	}
+
+	public FloatBigList asFloatBigList()
+	{	checkType (NpyDataType.FLOAT32);
+		return elements.asFloatBigList();
+	}
+
+	public DoubleBigList asDoubleBigList()
+	{	checkType (NpyDataType.FLOAT64);
+		return elements.asDoubleBigList();
+	}
+
+	/**
+	 * The elements, for those within the package that can deal with any type
+	 */
+	ChunkedBuffer elements()
+	{	return elements;
+	}
+
+	private void checkType (NpyDataType... allowed)
+	{	if (!Arrays.asList (allowed).contains (header.dtype))
+			throw new IllegalStateException ("This array holds " + header.dtype + " elements, not " + Arrays.toString (allowed));
+	}
+}
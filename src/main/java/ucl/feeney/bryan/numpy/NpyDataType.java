@@ -0,0 +1,137 @@
+package ucl.feeney.bryan.numpy;
+
+/**
+ * The numpy data types we know how to write out, along with the type strings
+ * used to describe them in NPY headers, and their widths in bytes. All
+ * multi-byte types are little-endian. Single-byte types have no byte order,
+ * which numpy marks with a "|".
+ */
+public enum NpyDataType
+{
+	BOOL    ("|b1", 1),
+	INT8    ("|i1", 1),
+	UINT8   ("|u1", 1),
+	INT16   ("<i2", 2),
+	UINT16  ("<u2", 2),
+	INT32   ("<i4", 4),
+	INT64   ("<i8", 8),
+	FLOAT32 ("<f4", 4),
+	FLOAT64 ("<f8", 8);
+
+	private final String descr;
+	private final int    width;
+
+	private NpyDataType (String descr, int width)
+	{	this.descr = descr;
+		this.width = width;
+	}
+
+	/**
+	 * The type string used for this type in the "descr" field of an NPY header
+	 */
+	public String descr()
+	{	return descr;
+	}
+
+	/**
+	 * The width of a single element of this type in bytes
+	 */
+	public int width()
+	{	return width;
+	}
+
+	/**
+	 * Returns the type described by the given type string, as found in an NPY
+	 * header. Single-byte types may be marked with any byte order, as numpy
+	 * ignores it, but multi-byte types must be little-endian.
+	 * @throws IllegalArgumentException if this isn't a type we know how to read
+	 */
+	public static NpyDataType forDescr (String descr)
+	{	for (NpyDataType dtype : values())
+		{	if (dtype.descr.equals (descr))
+				return dtype;
+			if (dtype.width == 1 && descr.length() == dtype.descr.length()
+			 && "<|=".indexOf (descr.charAt (0)) >= 0
+			 && descr.regionMatches (1, dtype.descr, 1, descr.length() - 1))
+				return dtype;
+		}
+		throw new IllegalArgumentException ("Unsupported numpy type '" + descr + "'");
+	}
+
+	/**
+	 * The smallest signed integer type which can index the given number of elements
+	 * (or hold the given value), as used for the indices and indptr arrays of a
+	 * sparse matrix.
+	 */
+	public static NpyDataType indexTypeFor (long maxValue)
+	{	return maxValue > Integer.MAX_VALUE ? INT64 : INT32;
+	}
+
+	/**
+	 * The narrowest integer type which can hold the given, non-negative, value,
+	 * using an unsigned type if that's narrower than {@link #indexTypeFor(long)}.
+	 * scipy converts such indices to its own index type on load.
+	 */
+	public static NpyDataType narrowIndexTypeFor (long maxValue)
+	{	return maxValue <= 0xFF   ? UINT8
+		     : maxValue <= 0xFFFF ? UINT16
+		     : indexTypeFor (maxValue);
+	}
+
+	/**
+	 * The narrowest type which can hold every integer in the given range: bool if
+	 * they're all 0 or 1, otherwise unsigned types are preferred over signed ones
+	 * for non-negative values, as they go twice as far.
+	 */
+	public static NpyDataType narrowestFor (long minValue, long maxValue)
+	{	if (minValue >= 0)
+			return maxValue <= 1      ? BOOL
+			     : maxValue <= 0xFF   ? UINT8
+			     : maxValue <= 0xFFFF ? UINT16
+			     : maxValue <= Integer.MAX_VALUE ? INT32 : INT64;
+
+		return minValue >= Byte.MIN_VALUE    && maxValue <= Byte.MAX_VALUE    ? INT8
+		     : minValue >= Short.MIN_VALUE   && maxValue <= Short.MAX_VALUE   ? INT16
+		     : minValue >= Integer.MIN_VALUE && maxValue <= Integer.MAX_VALUE ? INT32 : INT64;
+	}
+
+	/**
+	 * Whether this is one of the integer types, or bool, rather than a floating
+	 * point type.
+	 */
+	public boolean isInteger()
+	{	return this != FLOAT32 && this != FLOAT64;
+	}
+
+	/**
+	 * The smallest value this integer type can hold
+	 */
+	public long minValue()
+	{	switch (this)
+		{	case BOOL:
+			case UINT8:
+			case UINT16: return 0;
+			case INT8:   return Byte.MIN_VALUE;
+			case INT16:  return Short.MIN_VALUE;
+			case INT32:  return Integer.MIN_VALUE;
+			case INT64:  return Long.MIN_VALUE;
+			default:     throw new IllegalStateException (this + " is not an integer type");
+		}
+	}
+
+	/**
+	 * The largest value this integer type can hold
+	 */
+	public long maxValue()
+	{	switch (this)
+		{	case BOOL:   return 1;
+			case INT8:   return Byte.MAX_VALUE;
+			case UINT8:  return 0xFF;
+			case INT16:  return Short.MAX_VALUE;
+			case UINT16: return 0xFFFF;
+			case INT32:  return Integer.MAX_VALUE;
+			case INT64:  return Long.MAX_VALUE;
+			default:     throw new IllegalStateException (this + " is not an integer type");
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Encodes, and decodes, the header of an NPY file: the magic number, the format version, the
+ * length of the header dictionary, and the dictionary itself describing the
+ * data-type and shape of the array that follows.
+ * <p>
+ * We write format version 1.0, which stores the length of the dictionary in two
+ * bytes, unless the dictionary is longer than 65535 bytes, in which case we
+ * switch to version 2.0, which uses four.
+ * <p>
+ * Headers written by numpy, or by us, can be read back with {@link #decode(FileChannel, long)}.
+ * <p>
+ * Headers can be padded out to a given minimum length. This lets a writer reserve
+ * space for a header before it knows the final shape of the array, and then
+ * overwrite it in place once it does, as the header length never changes.
+ */
+final class NpyHeader
+{
+	/**
+	 * The total length of the header, including the magic number, is padded out
+	 * to a multiple of this, so the data itself is aligned (numpy uses 64 bytes
+	 * since version 1.14, older versions used 16)
+	 */
+	final static int BLOCK_SIZE = 64;
+
+	private final static byte[] MAGIC;
+	static {
+		byte[] hdr = "XNUMPY".getBytes(Charsets.US_ASCII);
+		hdr[0] = (byte) 0x93;
+		MAGIC = hdr;
+	}
+
+	private final static byte   V1_MAJ_VERSION = 1;
+	private final static byte   V2_MAJ_VERSION = 2;
+	private final static byte   MIN_VERSION    = 0;
+
+	/** magic number, two version bytes, and a two byte header length */
+	private final static int    V1_PREAMBLE_LEN = MAGIC.length + 2 + 2;
+
+	/** magic number, two version bytes, and a four byte header length */
+	private final static int    V2_PREAMBLE_LEN = MAGIC.length + 2 + 4;
+
+	/** The longest dictionary that can be stored in a version 1.0 header */
+	private final static int    V1_MAX_DICT_LEN = 0xFFFF;
+
+	/**
+	 * The largest value a dimension may have. We use this to determine how much space
+	 * to reserve for a header whose shape is not yet known.
+	 */
+	final static long MAX_DIM = Long.MAX_VALUE;
+
+	private final static Pattern DESCR         = Pattern.compile ("'descr'\\s*:\\s*'([^']*)'");
+	private final static Pattern FORTRAN_ORDER = Pattern.compile ("'fortran_order'\\s*:\\s*(True|False)");
+	private final static Pattern SHAPE         = Pattern.compile ("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+	/** The type, layout and shape of an array, as read from its header */
+	final NpyDataType dtype;
+	final boolean     fortranOrder;
+	final long[]      shape;
+
+	/** The total length of the header, magic number included, i.e. the offset of the data */
+	final int         length;
+
+	private NpyHeader (NpyDataType dtype, boolean fortranOrder, long[] shape, int length)
+	{	this.dtype        = dtype;
+		this.fortranOrder = fortranOrder;
+		this.shape        = shape;
+		this.length       = length;
+	}
+
+	/**
+	 * The number of elements in the array, the product of its dimensions
+	 */
+	long size()
+	{	long size = 1;
+		for (long dim : shape)
+			size *= dim;
+		return size;
+	}
+
+	/**
+	 * Creates a header describing an array of the given type and shape
+	 * @param dtype the type of the array elements
+	 * @param fortranOrder whether multi-dimensional data is stored in column order
+	 * @param shape the dimensions of the array
+	 * @return the complete header, ready to be written out before the data.
+	 */
+	static byte[] encode (NpyDataType dtype, boolean fortranOrder, long... shape)
+	{	return encode (dtype.descr(), fortranOrder, shape, 0);
+	}
+
+	/**
+	 * Creates a header describing an array of the given type and shape
+	 * @param descr the numpy data type string, e.g. "&lt;i4"
+	 * @param fortranOrder whether multi-dimensional data is stored in column order
+	 * @param shape the dimensions of the array
+	 * @return the complete header, ready to be written out before the data.
+	 */
+	static byte[] encode (String descr, boolean fortranOrder, long... shape)
+	{	return encode (descr, fortranOrder, shape, 0);
+	}
+
+	/**
+	 * Creates a header describing an array of the given type and shape, padded
+	 * with spaces so that it is at least the given number of bytes long
+	 * @see #encode(String, boolean, long[], int)
+	 */
+	static byte[] encode (NpyDataType dtype, boolean fortranOrder, long[] shape, int minLen)
+	{	return encode (dtype.descr(), fortranOrder, shape, minLen);
+	}
+
+	/**
+	 * Creates a header describing an array of the given type and shape, padded
+	 * with spaces so that it is at least the given number of bytes long
+	 * @param descr the numpy data type string, e.g. "&lt;i4"
+	 * @param fortranOrder whether multi-dimensional data is stored in column order
+	 * @param shape the dimensions of the array
+	 * @param minLen the minimum length of the complete header, magic number
+	 * included. If this is a multiple of {@link #BLOCK_SIZE} and the header fits
+	 * the result will be exactly this length.
+	 * @return the complete header, ready to be written out before the data.
+	 */
+	static byte[] encode (String descr, boolean fortranOrder, long[] shape, int minLen)
+	{	StringBuilder dict = new StringBuilder();
+		dict.append ("{'descr': '").append (descr).append ("', ")
+		    .append ("'fortran_order': ").append (fortranOrder ? "True" : "False").append (", ")
+		    .append ("'shape': (");
+		for (int d = 0; d < shape.length; d++)
+		{	if (shape[d] < 0)
+				throw new IllegalArgumentException ("Negative dimension " + shape[d] + " in array shape");
+			dict.append (shape[d]).append (shape.length == 1 ? "," : (d < shape.length - 1 ? ", " : ""));
+		}
+		dict.append ("), }");
+
+		// Pad with spaces so the data is aligned, and terminate with a newline.
+		int preambleLen = V1_PREAMBLE_LEN;
+		int totalLen    = paddedLength (preambleLen, dict.length(), minLen);
+		if (totalLen - preambleLen > V1_MAX_DICT_LEN)
+		{	preambleLen = V2_PREAMBLE_LEN;
+			totalLen    = paddedLength (preambleLen, dict.length(), minLen);
+		}
+
+		int dictLen  = totalLen - preambleLen;
+		int unpadded = preambleLen + dict.length() + 1;
+		String padded = dict.toString() + StringUtils.repeat (' ', totalLen - unpadded) + '\n';
+
+		ByteBuffer result = ByteBuffer.allocate (totalLen).order (ByteOrder.LITTLE_ENDIAN);
+		result.put (MAGIC);
+		if (preambleLen == V1_PREAMBLE_LEN)
+		{	result.put (V1_MAJ_VERSION).put (MIN_VERSION);
+			result.putShort ((short) dictLen);
+		}
+		else
+		{	result.put (V2_MAJ_VERSION).put (MIN_VERSION);
+			result.putInt (dictLen);
+		}
+		result.put (padded.getBytes (Charsets.US_ASCII));
+
+		return result.array();
+	}
+
+	/**
+	 * The total length of a header, a multiple of {@link #BLOCK_SIZE}, given the
+	 * length of the preamble and the dictionary, and the required minimum length.
+	 */
+	private static int paddedLength (int preambleLen, int dictLen, int minLen)
+	{	long totalLen = Math.max (preambleLen + dictLen + 1L, minLen); // +1 for the newline
+		totalLen      = ((totalLen + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+		if (totalLen > Integer.MAX_VALUE)
+			throw new IllegalArgumentException ("Header of " + totalLen + " bytes is too long for an NPY file");
+		return (int) totalLen;
+	}
+
+	/**
+	 * Reads the header of an NPY file which starts at the given position in
+	 * the channel. This is the inverse of {@link #encode(NpyDataType, boolean, long...)}
+	 * and accepts format versions 1.0, 2.0 and 3.0.
+	 * @throws IOException if the header can't be read, or isn't a valid NPY
+	 * header describing a type we know about.
+	 */
+	static NpyHeader decode (FileChannel channel, long position) throws IOException
+	{	ByteBuffer preamble = ByteBuffer.allocate (V2_PREAMBLE_LEN).order (ByteOrder.LITTLE_ENDIAN);
+		readFully (channel, preamble, position);
+		for (int i = 0; i < MAGIC.length; i++)
+			if (preamble.get (i) != MAGIC[i])
+				throw new IOException ("Not an NPY file, the magic number is missing");
+
+		int  major = preamble.get (MAGIC.length);
+		int  preambleLen;
+		long dictLen;
+		if (major == V1_MAJ_VERSION)
+		{	preambleLen = V1_PREAMBLE_LEN;
+			dictLen     = preamble.getShort (MAGIC.length + 2) & 0xFFFF;
+		}
+		else if (major == V2_MAJ_VERSION || major == 3) // 3.0 differs only in allowing UTF-8 in field names
+		{	preambleLen = V2_PREAMBLE_LEN;
+			dictLen     = preamble.getInt (MAGIC.length + 2) & 0xFFFFFFFFL;
+		}
+		else
+			throw new IOException ("Unsupported NPY format version " + major + "." + preamble.get (MAGIC.length + 1));
+		if (preambleLen + dictLen > Integer.MAX_VALUE)
+			throw new IOException ("NPY header of " + dictLen + " bytes is too long");
+
+		ByteBuffer dictBytes = ByteBuffer.allocate ((int) dictLen);
+		readFully (channel, dictBytes, position + preambleLen);
+		String dict = new String (dictBytes.array(), Charsets.UTF_8);
+
+		Matcher descr        = DESCR.matcher (dict);
+		Matcher fortranOrder = FORTRAN_ORDER.matcher (dict);
+		Matcher shape        = SHAPE.matcher (dict);
+		if (!descr.find() || !fortranOrder.find() || !shape.find())
+			throw new IOException ("Malformed NPY header " + dict.trim());
+
+		NpyDataType dtype;
+		long[]      dims;
+		try
+		{	dtype = NpyDataType.forDescr (descr.group (1));
+
+			String[] parts = StringUtils.split (shape.group (1), ", ");
+			dims = new long[parts.length];
+			for (int d = 0; d < parts.length; d++)
+				dims[d] = Long.parseLong (parts[d].trim());
+		}
+		catch (IllegalArgumentException iae) // includes NumberFormatException
+		{	throw new IOException ("Malformed NPY header " + dict.trim() + ": " + iae.getMessage(), iae);
+		}
+
+		return new NpyHeader (dtype, fortranOrder.group (1).equals ("True"), dims, (int) (preambleLen + dictLen));
+	}
+
+	private static void readFully (FileChannel channel, ByteBuffer buf, long position) throws IOException
+	{	while (buf.hasRemaining())
+		{	int n = channel.read (buf, position);
+			if (n < 0)
+				throw new IOException ("Unexpected end of file while reading NPY header");
+			position += n;
+		}
+	}
+
+	/**
+	 * Returns the length of a header large enough to hold any shape with the
+	 * given number of dimensions. Headers written with this as their minimum
+	 * length can always be overwritten later with the final shape.
+	 */
+	static int reservedLength (NpyDataType dtype, boolean fortranOrder, int dims)
+	{	long[] maxShape = new long[dims];
+		for (int d = 0; d < dims; d++)
+			maxShape[d] = MAX_DIM;
+		return encode (dtype, fortranOrder, maxShape).length;
+	}
+}
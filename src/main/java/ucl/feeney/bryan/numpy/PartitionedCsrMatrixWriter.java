@@ -0,0 +1,310 @@
+package ucl.feeney.bryan.numpy;
+
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.appendFileNameSuffix;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.Charsets;
+
+/**
+ * Writes a matrix too large to hold in memory as a series of partitions, each a
+ * self-contained CSR matrix of consecutive rows, in its own ".npz" archive, so
+ * consumers can load, or memory-map (see {@link CsrMatrixReader}), just the
+ * partitions they need.
+ * <p>
+ * Rows are added to the builder returned by {@link #partition()}, e.g.
+ * <code>writer.partition().addRow(row)</code>. Once that builder holds the maximum
+ * number of rows, or bytes, a partition may have, the next call writes it out and
+ * starts a new one. Subclasses create the builders, so partitions can hold any
+ * type of data.
+ * <p>
+ * Partitions can be written out in parallel, while the next one fills, by setting
+ * an executor with {@link #setExecutor(ExecutorService)}. If one of those fails
+ * to be written, no more partitions can be added, and the failure is reported by
+ * {@link #close()}, which then doesn't write the manifest.
+ * <p>
+ * When this is closed, a manifest is written alongside the partitions, a
+ * tab-separated table with a row for each partition giving its file name, the
+ * global index of its first row, its number of rows, the global index of its
+ * first non-zero entry, its number of non-zero entries and the size of its
+ * file in bytes. Then for each of the indices, indptr and data, it gives the
+ * offset in the file of the array's entry, the start of its NPY header, and
+ * the number of bytes it takes up there, so a consumer can memory-map just the
+ * arrays it needs without reading the archive's directory, as long as the
+ * partitions aren't compressed. A comment at the top gives the shape of the
+ * full matrix.
+ */
+public abstract class PartitionedCsrMatrixWriter<B extends CsrMatrixBuilder> implements AutoCloseable
+{
+	/** The suffix of the manifest listing the partitions */
+	final static String MANIFEST = "-manifest.tsv";
+
+	/** The entries of each archive whose location is given in the manifest, in order */
+	private final static String[] ARRAYS = { "indices", "indptr", "data" };
+
+	/**
+	 * What we record about each partition for the manifest
+	 */
+	private final static class Partition
+	{	final Path path;
+		final long firstRow;
+		final int  rows;
+		final long firstNnz;
+		final long nnz;
+		/** The size of the file, then the offset and length of each of the ARRAYS */
+		long[] layout;
+
+		Partition (Path path, long firstRow, int rows, long firstNnz, long nnz)
+		{	this.path     = path;
+			this.firstRow = firstRow;
+			this.rows     = rows;
+			this.firstNnz = firstNnz;
+			this.nnz      = nnz;
+		}
+	}
+
+	private final Path    filePrefix;
+	private final int     maxRows;
+	private final long    maxBytes;
+	private final boolean compress;
+
+	private ExecutorService executor;
+	private final int       maxPending = Runtime.getRuntime().availableProcessors();
+
+	private final List<Partition>     partitions = new ArrayList<>();
+	private final Deque<Future<long[]>> pending  = new ArrayDeque<>();
+	private final Deque<Partition>    pendingPartitions = new ArrayDeque<>();
+
+	private B       current;
+	private int     cols = -1;
+	private long    rows;
+	private long    nnz;
+	private boolean closed;
+
+	/** The failure writing a partition on the executor, if any */
+	private Exception failure;
+
+	/**
+	 * Creates a new writer.
+	 * @param filePrefix the prefix of all the files created, to which "-00000.npz",
+	 * "-00001.npz" and so on are appended for the partitions, and "-manifest.tsv"
+	 * for the manifest.
+	 * @param maxRows the most rows a partition may hold, or zero for no limit
+	 * @param maxBytes roughly the most bytes a partition's arrays may occupy, or zero
+	 * for no limit. A partition is written once it reaches this, so it may be exceeded
+	 * by up to the size of a row.
+	 * @param compress if true, the arrays in each partition's archive are deflated,
+	 * though they can then no longer be memory-mapped.
+	 */
+	public PartitionedCsrMatrixWriter (Path filePrefix, int maxRows, long maxBytes, boolean compress)
+	{	if (maxRows <= 0 && maxBytes <= 0)
+			throw new IllegalArgumentException ("The size of a partition must be limited by rows, bytes, or both");
+
+		this.filePrefix = filePrefix;
+		this.maxRows    = maxRows;
+		this.maxBytes   = maxBytes;
+		this.compress   = compress;
+	}
+
+	/**
+	 * Creates a new, empty, builder for the next partition. Every builder must have
+	 * the same number of columns.
+	 */
+	protected abstract B newPartition();
+
+	/**
+	 * If set, full partitions are written out by tasks submitted to the given
+	 * executor, so the next partition can be filled in the meantime. A few
+	 * partitions may be held in memory while they wait to be written. The executor
+	 * is not shut down when this is closed.
+	 */
+	public void setExecutor (ExecutorService executor)
+	{	this.executor = executor;
+	}
+
+	public ExecutorService getExecutor()
+	{	return executor;
+	}
+
+	/**
+	 * Returns the builder to which the next row should be added. If the current
+	 * partition is full, it's written out first, and a new one started.
+	 */
+	public B partition() throws Exception
+	{	if (closed)
+			throw new IllegalStateException ("This writer has been closed");
+		checkFailure();
+
+		if (current != null && isFull (current))
+		{	writePartition();
+			current = null;
+		}
+		if (current == null)
+		{	current = newPartition();
+			if (cols < 0)
+				cols = current.getCols();
+			else if (current.getCols() != cols)
+				throw new IllegalStateException ("All partitions must have " + cols + " columns, not " + current.getCols());
+		}
+		return current;
+	}
+
+	private boolean isFull (B partition)
+	{	if (maxRows > 0 && partition.getRows() >= maxRows)
+			return true;
+
+		int indexWidth = partition.indexType().width();
+		long bytes = partition.getNonZeroCount() * (indexWidth + partition.getDataType().width())
+		           + (partition.getRows() + 1L) * indexWidth;
+		return maxBytes > 0 && bytes >= maxBytes;
+	}
+
+	/**
+	 * Writes out the current partition, either straight away, or by a task on the
+	 * executor. The partition is only recorded once it's been written, or handed
+	 * to the executor, so if writing it fails here, the next call tries again,
+	 * rather than the manifest listing it twice.
+	 */
+	private void writePartition() throws Exception
+	{	final B         matrix = current;
+		final Path      prefix = appendFileNameSuffix (filePrefix, String.format ("-%05d", partitions.size()));
+		Partition partition = new Partition (appendFileNameSuffix (prefix, CsrMatrixWriter.NPZ),
+			rows, matrix.getRows(), nnz, matrix.getNonZeroCount());
+
+		Callable<long[]> task = new Callable<long[]>() {
+			@Override
+			public long[] call() throws Exception
+			{	return layout (matrix.writeToFile (prefix, compress)[0]);
+			}
+		};
+		if (executor == null)
+			partition.layout = task.call();
+		else
+		{	if (pending.size() >= maxPending)
+			{	awaitOldest();
+				checkFailure();
+			}
+			pending.add (executor.submit (task));
+			pendingPartitions.add (partition);
+		}
+
+		partitions.add (partition);
+		rows += matrix.getRows();
+		nnz  += matrix.getNonZeroCount();
+	}
+
+	/**
+	 * Reads back where each of the arrays is in the given archive, for the manifest
+	 */
+	private static long[] layout (Path archive) throws IOException
+	{	long[] layout = new long[1 + 2 * ARRAYS.length];
+		try (FileChannel channel = FileChannel.open (archive, StandardOpenOption.READ))
+		{	layout[0] = channel.size();
+			ZipArchiveReader reader = new ZipArchiveReader (channel);
+			for (int a = 0; a < ARRAYS.length; a++)
+			{	ZipArchiveReader.Entry entry = reader.getEntry (ARRAYS[a] + ".npy");
+				if (entry == null)
+					throw new IOException ("The archive " + archive + " has no " + ARRAYS[a] + " entry");
+				layout[1 + 2 * a] = reader.dataOffset (entry);
+				layout[2 + 2 * a] = entry.compressedSize;
+			}
+		}
+		return layout;
+	}
+
+	/**
+	 * Waits for the oldest partition being written on the executor to finish,
+	 * recording the failure if it couldn't be written.
+	 */
+	private void awaitOldest()
+	{	Future<long[]> task      = pending.pop();
+		Partition      partition = pendingPartitions.pop();
+		try
+		{	partition.layout = task.get();
+		}
+		catch (ExecutionException ee)
+		{	Throwable cause = ee.getCause();
+			failure = MergedException.merge (failure, cause instanceof Exception ? (Exception) cause : ee);
+		}
+		catch (InterruptedException ie)
+		{	Thread.currentThread().interrupt();
+			failure = MergedException.merge (failure, ie);
+		}
+	}
+
+	private void checkFailure() throws IOException
+	{	if (failure != null)
+			throw new IOException ("Partitions can no longer be added, as an earlier one could not be written", failure);
+	}
+
+	/**
+	 * The number of partitions started so far
+	 */
+	public int getPartitionCount()
+	{	return partitions.size() + (current == null ? 0 : 1);
+	}
+
+	public Path getManifestPath()
+	{	return appendFileNameSuffix (filePrefix, MANIFEST);
+	}
+
+	/**
+	 * Writes out the last partition, waits for any still being written, and then
+	 * writes the manifest. Failures writing any of the partitions are reported
+	 * together, see {@link MergedException}, in which case there's no manifest.
+	 */
+	@Override
+	public void close() throws Exception
+	{	if (closed)
+			return;
+
+		Exception err = null;
+		try
+		{	if (failure == null && current != null && current.getRows() > 0)
+				writePartition();
+		}
+		catch (Exception e)
+		{	if (failure == null) // otherwise it's just the failure, reported below
+				err = e;
+		}
+		current = null;
+		closed  = true;
+
+		while (! pending.isEmpty())
+			awaitOldest();
+		err = MergedException.merge (failure, err);
+		if (err != null)
+			throw err;
+
+		writeManifest();
+	}
+
+	private void writeManifest() throws IOException
+	{	try (BufferedWriter out = Files.newBufferedWriter (getManifestPath(), Charsets.UTF_8))
+		{	out.write (String.format ("# shape: (%d, %d), nnz: %d%n", rows, Math.max (cols, 0), nnz));
+			out.write ("file\tfirst_row\trows\tfirst_nnz\tnnz\tbytes");
+			for (String array : ARRAYS)
+				out.write ("\t" + array + "_offset\t" + array + "_bytes");
+			out.newLine();
+			for (Partition p : partitions)
+			{	out.write (p.path.getFileName() + "\t" + p.firstRow + "\t" + p.rows + "\t" + p.firstNnz + "\t" + p.nnz);
+				for (long value : p.layout)
+					out.write ("\t" + value);
+				out.newLine();
+			}
+		}
+	}
+}
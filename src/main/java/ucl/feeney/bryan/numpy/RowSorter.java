@@ -0,0 +1,73 @@
+package ucl.feeney.bryan.numpy;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the entries of a row of a CSR matrix by column, in place, moving the
+ * data along with the indices. The data can be of any type, as it's moved
+ * about as raw bytes.
+ * <p>
+ * Each column is packed together with the entry's position in the row into a
+ * single long, so one primitive sort of those orders the columns and gives the
+ * permutation to apply to the data. The scratch arrays are kept between rows,
+ * so a sorter should only be used by one thread at a time.
+ */
+final class RowSorter
+{
+	private final int width;
+
+	private long[] keys   = new long[0];
+	private byte[] values = new byte[0];
+	private byte[] sorted = new byte[0];
+
+	/**
+	 * Creates a sorter for rows whose data are the given number of bytes wide
+	 */
+	RowSorter (int width)
+	{	this.width = width;
+	}
+
+	/**
+	 * Sorts the row whose entries start at the given offset in the indices and
+	 * data, so it's in scipy's canonical format.
+	 * @throws IllegalArgumentException if the row contains the same column more
+	 * than once, in which case it's left as it was. Scipy would sum the values of
+	 * such entries, but how to add them up depends on the type of the data, so
+	 * we leave that to the caller.
+	 */
+	void sort (ChunkedBuffer indices, ChunkedBuffer data, long from, int len)
+	{	if (isSorted (indices, from, len))
+			return;
+
+		if (keys.length < len)
+		{	keys   = new long[len];
+			values = new byte[len * width];
+			sorted = new byte[len * width];
+		}
+
+		for (int i = 0; i < len; i++)
+			keys[i] = ((long) indices.getInt (from + i) << 32) | i;
+		Arrays.sort (keys, 0, len);
+		for (int i = 1; i < len; i++)
+			if ((keys[i] >>> 32) == (keys[i - 1] >>> 32))
+				throw new IllegalArgumentException ("Column " + (int) (keys[i] >>> 32) + " appears more than once in the row starting at entry " + from);
+
+		data.getBytes (from, values, len);
+		for (int i = 0; i < len; i++)
+		{	indices.setInt (from + i, (int) (keys[i] >>> 32));
+			System.arraycopy (values, (int) keys[i] * width, sorted, i * width, width);
+		}
+		data.setBytes (from, sorted, len);
+	}
+
+	/**
+	 * Whether the columns of the given row are strictly ascending, i.e. sorted,
+	 * without duplicates.
+	 */
+	static boolean isSorted (ChunkedBuffer indices, long from, int len)
+	{	for (int i = 1; i < len; i++)
+			if (indices.getInt (from + i - 1) >= indices.getInt (from + i))
+				return false;
+		return true;
+	}
+}
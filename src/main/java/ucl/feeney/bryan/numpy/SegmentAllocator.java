@@ -0,0 +1,89 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Allocates the fixed-size segments in which the builders store the arrays of a
+ * sparse matrix. The choice of allocator determines where the matrix lives while
+ * it's being built: on the Java heap, in native memory outside the heap, or in
+ * memory-mapped temporary files which the operating system can page out to disk.
+ * <p>
+ * Segments are never resized or copied once they're full, so a matrix can grow
+ * without ever needing twice its size in memory, and, for the off-heap allocators,
+ * without adding to the work of the garbage collector.
+ * <p>
+ * Use one of the static factory methods, or subclass this to allocate memory in
+ * some other way.
+ */
+public abstract class SegmentAllocator
+{
+	private final static SegmentAllocator HEAP = new SegmentAllocator() {
+		@Override
+		public ByteBuffer allocate (int capacity)
+		{	return ByteBuffer.allocate (capacity);
+		}
+	};
+
+	private final static SegmentAllocator DIRECT = new SegmentAllocator() {
+		@Override
+		public ByteBuffer allocate (int capacity)
+		{	return ByteBuffer.allocateDirect (capacity);
+		}
+	};
+
+	/**
+	 * Allocates a new, zeroed, segment with the given capacity in bytes. The
+	 * byte order of the segment doesn't matter, as the caller will set it.
+	 */
+	public abstract ByteBuffer allocate (int capacity) throws IOException;
+
+	/**
+	 * Allocates segments as arrays on the Java heap. This is the default.
+	 */
+	public static SegmentAllocator heap()
+	{	return HEAP;
+	}
+
+	/**
+	 * Allocates segments as direct buffers, outside of the Java heap. The maximum
+	 * amount of memory that can be allocated in this way is limited by the
+	 * <code>-XX:MaxDirectMemorySize</code> JVM option. The memory is freed when
+	 * the builder is garbage collected.
+	 */
+	public static SegmentAllocator direct()
+	{	return DIRECT;
+	}
+
+	/**
+	 * Allocates segments as memory-mapped temporary files in the given directory,
+	 * so the operating system can page them out to disk if memory runs short.
+	 * The files are deleted as soon as they're mapped (where the platform allows
+	 * it) so nothing is left behind, the space is released when the builder is
+	 * garbage collected.
+	 */
+	public static SegmentAllocator mapped (final Path tempDir)
+	{	return new SegmentAllocator() {
+			@Override
+			public ByteBuffer allocate (int capacity) throws IOException
+			{	Path file = Files.createTempFile (tempDir, "segment", ".tmp");
+				try (FileChannel channel = FileChannel.open (file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+				{	return channel.map (MapMode.READ_WRITE, 0, capacity);
+				}
+				finally
+				{	try
+					{	Files.delete (file);
+					}
+					catch (IOException ioe)
+					{	file.toFile().deleteOnExit(); // e.g. Windows, where mapped files can't be deleted
+					}
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,197 @@
+package ucl.feeney.bryan.numpy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lets several threads build a single CSR sparse matrix at once, without any
+ * locking. Each thread adds its rows to its own shard, an ordinary builder such
+ * as a {@link CsrShortMatrixBuilder}, and once they're all done the shards are
+ * merged into one matrix, which can then be written out as usual.
+ * <p>
+ * The rows of the merged matrix are those of the first shard, followed by those
+ * of the second, and so on, so the order is the same however the threads were
+ * scheduled, as long as each thread always works on the same shard.
+ * <p>
+ * Merging copies the arrays of every shard into the merged matrix in parallel,
+ * on a fork-join pool, so for a while both the shards and the merged matrix are
+ * held in memory.
+ * <p>
+ * The merged matrix narrows its output, and collects statistics, if the shards
+ * do, in which case it scans its rows again once they're in place. It's given
+ * the metrics listener of the first shard, which is usually shared by them all.
+ */
+public final class ShardedCsrMatrixBuilder<B extends CsrMatrixBuilder>
+{
+	/** Ranges longer than this many elements are split up between tasks when merging */
+	private final static long COPY_CHUNK = 1 << 20;
+
+	private final List<B> shards;
+
+	/**
+	 * Creates a new builder from the given shards, which must all have the same
+	 * number of columns and type of data. Rows may already have been added to them.
+	 * @throws IllegalArgumentException if there are no shards, or they don't match
+	 */
+	public ShardedCsrMatrixBuilder (List<? extends B> shards)
+	{	if (shards.isEmpty())
+			throw new IllegalArgumentException ("There must be at least one shard");
+
+		B first = shards.get (0);
+		for (B shard : shards)
+		{	if (shard.getCols() != first.getCols())
+				throw new IllegalArgumentException ("All shards must have " + first.getCols() + " columns, not " + shard.getCols());
+			if (shard.getDataType() != first.getDataType())
+				throw new IllegalArgumentException ("All shards must hold " + first.getDataType() + " data, not " + shard.getDataType());
+		}
+		this.shards = Collections.unmodifiableList (new ArrayList<B> (shards));
+	}
+
+	/**
+	 * The shard to which the given worker should add its rows. A shard must only
+	 * ever be used by one thread at a time.
+	 */
+	public B getShard (int index)
+	{	return shards.get (index);
+	}
+
+	public int getShardCount()
+	{	return shards.size();
+	}
+
+	/**
+	 * Merges the shards into a single matrix, using a new fork-join pool with
+	 * one thread for each processor.
+	 */
+	public CsrMatrixBuilder merge()
+	{	ForkJoinPool pool = new ForkJoinPool();
+		try
+		{	return merge (pool);
+		}
+		finally
+		{	pool.shutdown();
+		}
+	}
+
+	/**
+	 * Merges the shards into a single matrix, copying their arrays in parallel on
+	 * the given pool. No more rows should be added to the shards while this is
+	 * running.
+	 * <p>
+	 * The offsets in each shard's indptr already form a prefix sum of its row
+	 * lengths, so we only need the exclusive prefix sum of the shard totals to
+	 * rebase them, which is cheap, after which every shard's indptr can be
+	 * rebased in parallel with its indices and data.
+	 * @throws IllegalArgumentException if some shards narrow their output, or
+	 * collect statistics, and others don't.
+	 */
+	public CsrMatrixBuilder merge (ForkJoinPool pool)
+	{	B first = shards.get (0); // there's always at least one, see the constructor
+		for (B shard : shards)
+		{	if (shard.isNarrowing() != first.isNarrowing())
+				throw new IllegalArgumentException ("Either all shards or none must narrow their output, but shard " + shards.indexOf (shard) + (shard.isNarrowing() ? " does" : " doesn't"));
+			if ((shard.getStatistics() == null) != (first.getStatistics() == null))
+				throw new IllegalArgumentException ("Either all shards or none must collect statistics, but shard " + shards.indexOf (shard) + (shard.getStatistics() == null ? " doesn't" : " does"));
+		}
+
+		int    count    = shards.size();
+		long[] rowStart = new long[count + 1];
+		long[] nnzStart = new long[count + 1];
+		for (int s = 0; s < count; s++)
+		{	rowStart[s + 1] = rowStart[s] + shards.get (s).getRows();
+			nnzStart[s + 1] = nnzStart[s] + shards.get (s).getNonZeroCount();
+		}
+		if (rowStart[count] > Integer.MAX_VALUE)
+			throw new IllegalStateException ("The merged matrix would have " + rowStart[count] + " rows, more than the maximum of " + Integer.MAX_VALUE);
+
+		SegmentAllocator storage = first.storage();
+		ChunkedBuffer indices = new ChunkedBuffer (storage, 4, 0);
+		ChunkedBuffer indptr  = new ChunkedBuffer (storage, 8, 0);
+		ChunkedBuffer data    = new ChunkedBuffer (storage, first.getDataType().width(), 0);
+		indices.resize (nnzStart[count]);
+		indptr.resize  (rowStart[count] + 1);
+		data.resize    (nnzStart[count]);
+
+		final List<RecursiveAction> tasks = new ArrayList<>();
+		for (int s = 0; s < count; s++)
+		{	B shard = shards.get (s);
+			long nnz  = shard.getNonZeroCount();
+			long rows = shard.getRows();
+			tasks.add (new CopyTask (shard.indicesBuffer(), 0, indices, nnzStart[s], nnz, 0));
+			tasks.add (new CopyTask (shard.dataBuffer(),    0, data,    nnzStart[s], nnz, 0));
+			// The leading zero of each shard's indptr is replaced by the end of the previous shard
+			tasks.add (new CopyTask (shard.indptrBuffer(),  1, indptr,  rowStart[s] + 1, rows, nnzStart[s]));
+		}
+		pool.invoke (new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{	invokeAll (tasks);
+			}
+		});
+
+		boolean canonical = true;
+		for (B shard : shards)
+			canonical &= shard.hasCanonicalFormat();
+
+		MergedMatrix merged = new MergedMatrix (first.getCols(), (int) rowStart[count], canonical, storage, first.getDataType(), indices, indptr, data);
+		merged.setNarrowing (first.isNarrowing());
+		merged.setCollectStatistics (first.getStatistics() != null);
+		merged.setMetricsListener (first.getMetricsListener());
+		return merged;
+	}
+
+	/**
+	 * Copies a range of one buffer into another, adding a delta to each element
+	 * if it's non-zero, splitting the range in two until it's small enough to
+	 * copy in one go.
+	 */
+	private final static class CopyTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final ChunkedBuffer src;
+		private final long          from;
+		private final ChunkedBuffer dst;
+		private final long          dstFrom;
+		private final long          len;
+		private final long          delta;
+
+		CopyTask (ChunkedBuffer src, long from, ChunkedBuffer dst, long dstFrom, long len, long delta)
+		{	this.src     = src;
+			this.from    = from;
+			this.dst     = dst;
+			this.dstFrom = dstFrom;
+			this.len     = len;
+			this.delta   = delta;
+		}
+
+		@Override
+		protected void compute()
+		{	if (len > COPY_CHUNK)
+			{	long half = len / 2;
+				invokeAll (
+					new CopyTask (src, from,        dst, dstFrom,        half,       delta),
+					new CopyTask (src, from + half, dst, dstFrom + half, len - half, delta));
+			}
+			else if (delta == 0)
+				src.copyTo (from, dst, dstFrom, len);
+			else
+				src.copyLongsTo (from, dst, dstFrom, len, delta);
+		}
+	}
+
+	/**
+	 * The result of a merge, whose rows are all already in place.
+	 */
+	private final static class MergedMatrix extends CsrMatrixBuilder
+	{
+		MergedMatrix (int cols, int rows, boolean canonical, SegmentAllocator storage, NpyDataType dataType, ChunkedBuffer indices, ChunkedBuffer indptr, ChunkedBuffer data)
+		{	super (cols, rows, canonical, storage, dataType, indices, indptr, data);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package ucl.feeney.bryan.numpy;
+
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds up metrics like {@link MetricsCounters}, and logs a summary of the totals
+ * so far each time a writer is closed.
+ */
+public class Slf4jMetricsReporter extends MetricsCounters
+{
+	private final Logger log;
+
+	/**
+	 * Creates a reporter which logs to this class's logger
+	 */
+	public Slf4jMetricsReporter()
+	{	this (LoggerFactory.getLogger (Slf4jMetricsReporter.class));
+	}
+
+	public Slf4jMetricsReporter (Logger log)
+	{	this.log = log;
+	}
+
+	@Override
+	public void writerClosed (Path filePrefix)
+	{	if (log.isInfoEnabled())
+			log.info ("Metrics after writing " + filePrefix + "\n" + summary());
+	}
+}
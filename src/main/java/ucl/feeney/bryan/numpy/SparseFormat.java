@@ -0,0 +1,34 @@
+package ucl.feeney.bryan.numpy;
+
+/**
+ * The layouts in which a sparse matrix can be written to a ".npz" archive, each
+ * as saved by <code>scipy.sparse.save_npz</code> for the matrix type of the same
+ * name, so that <code>scipy.sparse.load_npz</code> returns a matrix of that type.
+ */
+public enum SparseFormat
+{
+	/** Compressed sparse rows: indices, indptr and data arrays, with one offset per row */
+	CSR ("csr"),
+
+	/**
+	 * Compressed sparse columns: indices, indptr and data arrays, with one offset
+	 * per column and the row of each entry in indices, for slicing by column
+	 */
+	CSC ("csc"),
+
+	/** Coordinates: row, col and data arrays, with the row and column of each entry */
+	COO ("coo");
+
+	private final String tag;
+
+	private SparseFormat (String tag)
+	{	this.tag = tag;
+	}
+
+	/**
+	 * The tag scipy records in the archive's "format.npy" entry
+	 */
+	public String tag()
+	{	return tag;
+	}
+}
@@ -0,0 +1,314 @@
+package ucl.feeney.bryan.numpy;
+
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.DATA;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.INDICES;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.INDPTR;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.appendFileNameSuffix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a CSR sparse matrix too large for the heap by holding at most a fixed
+ * budget of memory at a time. Once the rows added take up more than the budget,
+ * they're spilled to disk as a run, an ordinary set of CSR files, and a new,
+ * empty, builder is started.
+ * <p>
+ * Rows are added to the builder returned by {@link #builder()}, e.g.
+ * <code>spiller.builder().addRow(row)</code>. Subclasses create the builders, so
+ * the matrix can hold any type of data.
+ * <p>
+ * As the rows of each run follow on from those of the run before, the matrix is
+ * written out by {@link #writeToFiles(Path)} simply by concatenating the runs'
+ * arrays, shifting the row offsets of each run past the entries of the runs
+ * before it. Each file is read and written sequentially, a buffer at a time, so
+ * the size of the matrix is limited only by the disk. The rows still in memory
+ * are spilled first, so all runs are treated alike.
+ * <p>
+ * The runs are deleted when this is closed.
+ */
+public abstract class SpillingCsrMatrixBuilder<B extends CsrMatrixBuilder> implements AutoCloseable
+{
+	/** The size of the buffers through which runs are copied */
+	private final static int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * A set of rows spilled to disk
+	 */
+	private final static class Run
+	{	final Path[] files;
+		final Path   indices;
+		final Path   indptr;
+		final Path   data;
+		final long   nnz;
+
+		Run (Path[] files, long nnz)
+		{	this.files   = files;
+			this.indices = files[0];
+			this.indptr  = files[1];
+			this.data    = files[2];
+			this.nnz     = nnz;
+		}
+	}
+
+	private final Path spillDir;
+	private final long memoryBudget;
+
+	private Path            runDir;
+	private final List<Run> runs = new ArrayList<>();
+
+	private B           current;
+	private int         cols = -1;
+	private NpyDataType dataType;
+	private long        rows;
+	private long        nnz;
+	private boolean     closed;
+
+	/**
+	 * Creates a new builder.
+	 * @param spillDir the directory in which to create a temporary directory to
+	 * hold the runs.
+	 * @param memoryBudget the most bytes the rows in memory may occupy, as given
+	 * by {@link CsrMatrixBuilder#getAllocatedBytes()}. Rows are spilled once they
+	 * reach this, so it may be exceeded by up to the size of a row, plus the
+	 * unused space at the end of each buffer.
+	 */
+	public SpillingCsrMatrixBuilder (Path spillDir, long memoryBudget)
+	{	if (memoryBudget <= 0)
+			throw new IllegalArgumentException ("The memory budget must be positive, not " + memoryBudget);
+
+		this.spillDir     = spillDir;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Creates a new, empty, builder for the next run. Every builder must have the
+	 * same number of columns and type of data.
+	 */
+	protected abstract B newRun();
+
+	/**
+	 * Returns the builder to which the next row should be added. If the rows in
+	 * memory have reached the budget, they're spilled to disk first, and a new
+	 * builder started.
+	 */
+	public B builder() throws Exception
+	{	if (closed)
+			throw new IllegalStateException ("This builder has been closed");
+
+		if (current != null && current.getAllocatedBytes() >= memoryBudget)
+			spill();
+		if (current == null)
+		{	current = newRun();
+			if (cols < 0)
+			{	cols     = current.getCols();
+				dataType = current.getDataType();
+			}
+			else if (current.getCols() != cols)
+				throw new IllegalStateException ("All runs must have " + cols + " columns, not " + current.getCols());
+			else if (current.getDataType() != dataType)
+				throw new IllegalStateException ("All runs must hold " + dataType + " data, not " + current.getDataType());
+		}
+		return current;
+	}
+
+	/**
+	 * Writes out the rows in memory as a new run, and drops the builder
+	 */
+	private void spill() throws Exception
+	{	if (runDir == null)
+			runDir = Files.createTempDirectory (spillDir, "csr-runs");
+
+		Path prefix = runDir.resolve (String.format ("run-%05d", runs.size()));
+		runs.add (new Run (current.writeToFiles (prefix), current.getNonZeroCount()));
+		rows += current.getRows();
+		nnz  += current.getNonZeroCount();
+		current = null;
+	}
+
+	/**
+	 * The number of runs spilled to disk so far
+	 */
+	public int getRunCount()
+	{	return runs.size();
+	}
+
+	/**
+	 * The number of rows added so far, whether spilled or still in memory
+	 */
+	public long getRows()
+	{	return rows + (current == null ? 0 : current.getRows());
+	}
+
+	public long getNonZeroCount()
+	{	return nnz + (current == null ? 0 : current.getNonZeroCount());
+	}
+
+	/**
+	 * Writes out the whole matrix, in the three-file layout of
+	 * {@link CsrMatrixBuilder#writeToFiles(Path)}, by concatenating the runs. The
+	 * indices and indptr are 32-bit ints, unless there are too many entries, in
+	 * which case they're 64-bit. Narrowing (see {@link CsrMatrixBuilder#setNarrowing(boolean)})
+	 * isn't applied, as the range of the data isn't known until every run has been
+	 * built.
+	 * <p>
+	 * The runs are kept until this is closed, so more rows can be added afterwards,
+	 * and the larger matrix written out again.
+	 * @return the paths to the indices, indptr and data files in that order.
+	 */
+	public Path[] writeToFiles (Path filePrefix) throws Exception
+	{	if (closed)
+			throw new IllegalStateException ("This builder has been closed");
+		if (current != null && (current.getRows() > 0 || runs.isEmpty()))
+			spill();
+		current = null;
+		if (runs.isEmpty())
+			throw new IllegalStateException ("No rows have been added");
+
+		NpyDataType indexType = NpyDataType.indexTypeFor (nnz);
+
+		Path indicesPath = appendFileNameSuffix (filePrefix, INDICES);
+		Path indptrPath  = appendFileNameSuffix (filePrefix, INDPTR);
+		Path dataPath    = appendFileNameSuffix (filePrefix, DATA);
+
+		List<Path> indices = new ArrayList<>(runs.size());
+		List<Path> indptr  = new ArrayList<>(runs.size());
+		List<Path> data    = new ArrayList<>(runs.size());
+		long[]     shifts  = new long[runs.size()];
+		long       shift   = 0;
+		for (int i = 0; i < runs.size(); i++)
+		{	Run run = runs.get (i);
+			indices.add (run.indices);
+			indptr.add  (run.indptr);
+			data.add    (run.data);
+			shifts[i] = shift;
+			shift += run.nnz;
+		}
+
+		concatenate (indicesPath, indexType, nnz,      indices, null);
+		concatenate (indptrPath,  indexType, rows + 1, indptr,  shifts);
+		concatenate (dataPath,    dataType,  nnz,      data,    null);
+		return new Path[] { indicesPath, indptrPath, dataPath };
+	}
+
+	/**
+	 * Writes out a single array made up of the arrays in the given files, one
+	 * after the other, converting them to the given type if need be.
+	 * @param shifts if not null, the arrays are row offsets: each starts with a
+	 * zero, which is written only once, at the start, and the rest of the offsets
+	 * in each array are shifted by the corresponding amount.
+	 */
+	private static void concatenate (Path path, NpyDataType dtype, long len, List<Path> inputs, long[] shifts) throws IOException
+	{	try (FileChannel channel = FileChannel.open (path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{	LittleEndianChannelWriter out = new LittleEndianChannelWriter (channel, BUFFER_SIZE);
+			int reserved = NpyHeader.reservedLength (dtype, /* fortranOrder = */ false, 1);
+			out.write (NpyHeader.encode (dtype, /* fortranOrder = */ false, new long[] { len }, reserved));
+			if (shifts != null)
+				writeValue (out, dtype, 0);
+
+			ByteBuffer buf = ByteBuffer.allocateDirect (BUFFER_SIZE).order (ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < inputs.size(); i++)
+				copy (inputs.get (i), out, dtype, buf, shifts == null ? -1 : shifts[i]);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Copies the array in the given file to the output, as is if it's already of
+	 * the given type, otherwise converting it value by value.
+	 * @param shift the amount by which to shift row offsets, having skipped the
+	 * leading zero, or -1 if this isn't an array of row offsets.
+	 */
+	private static void copy (Path path, LittleEndianChannelWriter out, NpyDataType dtype, ByteBuffer buf, long shift) throws IOException
+	{	try (FileChannel in = FileChannel.open (path, StandardOpenOption.READ))
+		{	NpyHeader header = NpyHeader.decode (in, 0);
+			int  width = header.dtype.width();
+			long pos   = header.length + (shift < 0 ? 0 : width);
+			long end   = header.length + header.size() * width;
+			boolean convert = header.dtype != dtype || shift > 0;
+			if (convert && (!header.dtype.isInteger() || !dtype.isInteger()))
+				throw new IOException ("Can't convert the " + header.dtype + " array in " + path + " to " + dtype);
+
+			while (pos < end)
+			{	buf.clear();
+				buf.limit ((int) Math.min (buf.capacity() / width * width, end - pos));
+				while (buf.hasRemaining())
+				{	int n = in.read (buf, pos);
+					if (n < 0)
+						throw new IOException ("Unexpected end of file in " + path + " after " + pos + " bytes");
+					pos += n;
+				}
+				buf.flip();
+
+				if (convert)
+					while (buf.hasRemaining())
+						writeValue (out, dtype, readValue (buf, header.dtype) + Math.max (0, shift));
+				else
+					out.write (buf);
+			}
+		}
+	}
+
+	private static long readValue (ByteBuffer buf, NpyDataType dtype)
+	{	switch (dtype)
+		{	case INT8:   return buf.get();
+			case INT16:  return buf.getShort();
+			case UINT16: return buf.getShort() & 0xFFFF;
+			case INT32:  return buf.getInt();
+			case INT64:  return buf.getLong();
+			default:     return buf.get() & 0xFF; // BOOL and UINT8
+		}
+	}
+
+	private static void writeValue (LittleEndianChannelWriter out, NpyDataType dtype, long value) throws IOException
+	{	switch (dtype.width())
+		{	case 1:  out.writeByte ((byte) value);   break;
+			case 2:  out.writeShort ((short) value); break;
+			case 4:  out.writeInt ((int) value);     break;
+			default: out.writeLong (value);          break;
+		}
+	}
+
+	/**
+	 * Deletes the runs spilled to disk, and drops the rows still in memory
+	 */
+	@Override
+	public void close() throws Exception
+	{	if (closed)
+			return;
+		closed  = true;
+		current = null;
+
+		Exception err = null;
+		for (Run run : runs)
+		{	for (Path path : run.files) // including any statistics
+			{	try
+				{	Files.deleteIfExists (path);
+				}
+				catch (IOException ioe)
+				{	err = MergedException.merge (err, ioe);
+				}
+			}
+		}
+		runs.clear();
+
+		if (runDir != null)
+		{	try
+			{	Files.deleteIfExists (runDir);
+			}
+			catch (IOException ioe)
+			{	err = MergedException.merge (err, ioe);
+			}
+		}
+		if (err != null)
+			throw err;
+	}
+}
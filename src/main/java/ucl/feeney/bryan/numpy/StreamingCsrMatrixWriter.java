@@ -0,0 +1,294 @@
+package ucl.feeney.bryan.numpy;
+
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.DATA;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.INDICES;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.INDPTR;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriter.appendFileNameSuffix;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes out a sparse CSR matrix one row at a time, in the same three-file
+ * layout as {@link CsrMatrixWriter}, without ever holding the whole matrix in
+ * memory.
+ * <p>
+ * Each row is appended directly to the "-indices.npy" and "-data.npy" files,
+ * and its end offset to the "-indptr.npy" file. As we don't know the length of
+ * the arrays until we're done, each file starts with a header with enough space
+ * reserved for any shape, and on {@link #close()} we seek back and overwrite it
+ * with the final shape.
+ * <p>
+ * Rows are batched up in buffers of a fixed size before being written, so the memory
+ * used is bounded by the size of the largest row, and not the number of non-zero
+ * entries in the matrix.
+ * <p>
+ * The indptr array starts out as 32-bit ints. If the number of non-zero entries grows
+ * past 2^31 - 1 it's rewritten in place as 64-bit ints, and written as such from then on.
+ * The indices array is always written as 32-bit ints, as rewriting it would mean
+ * rewriting billions of entries; scipy converts it to match indptr on load.
+ */
+public class StreamingCsrMatrixWriter implements AutoCloseable
+{
+	/** Rows are accumulated until they exceed this many bytes, then written out */
+	private final static int BUFFER_SIZE = 256 * 1024;
+
+	/** The number of indptr entries converted at a time when promoting them to longs */
+	private final static int PROMOTION_CHUNK = 64 * 1024;
+
+	private final static NpyDataType INDEX_TYPE = NpyDataType.INT32;
+	private final static NpyDataType DATA_TYPE  = NpyDataType.INT16;
+
+	private final int cols;
+
+	private final Path                      indicesPath;
+	private final FileChannel               indices;
+	private final LittleEndianChannelWriter indicesOut;
+
+	private final Path                      indptrPath;
+	private final FileChannel               indptr;
+	private final LittleEndianChannelWriter indptrOut;
+	private NpyDataType                     indptrType = INDEX_TYPE;
+
+	private final Path                      dataPath;
+	private final FileChannel               data;
+	private final LittleEndianChannelWriter dataOut;
+
+	/** the current row, sized to the largest row seen so far */
+	private int[]   rowIndices = new int[16];
+	private short[] rowData    = new short[16];
+
+	private int  rows;
+	private long nnz;
+	private boolean closed;
+
+	/**
+	 * Creates a new streaming writer, creating (or truncating) the three files that
+	 * will hold the matrix.
+	 * @param filePrefix the prefix of all the files that will be created, see
+	 * {@link CsrMatrixWriter}
+	 * @param cols the number of columns in the matrix.
+	 * @throws IOException if one or more of the files could not be created.
+	 */
+	public StreamingCsrMatrixWriter (Path filePrefix, int cols) throws IOException
+	{	this.cols = cols;
+
+		indicesPath = appendFileNameSuffix (filePrefix, INDICES);
+		indptrPath  = appendFileNameSuffix (filePrefix, INDPTR);
+		dataPath    = appendFileNameSuffix (filePrefix, DATA);
+
+		indices = openChannel (indicesPath, INDEX_TYPE);
+		indptr  = openChannel (indptrPath,  INDEX_TYPE);
+		data    = openChannel (dataPath,    DATA_TYPE);
+
+		indicesOut = new LittleEndianChannelWriter (indices, BUFFER_SIZE);
+		indptrOut  = new LittleEndianChannelWriter (indptr,  BUFFER_SIZE);
+		dataOut    = new LittleEndianChannelWriter (data,    BUFFER_SIZE / 2);
+
+		indptrOut.writeInt (0); // indptr always has one more entry than rows
+	}
+
+	/**
+	 * Opens a file for writing, and writes out a placeholder header large enough
+	 * to be overwritten with any final shape.
+	 */
+	private static FileChannel openChannel (Path path, NpyDataType dtype) throws IOException
+	{	FileChannel channel = FileChannel.open (path, StandardOpenOption.CREATE,
+			StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		writeFully (channel, ByteBuffer.wrap (header (dtype, 0)));
+		return channel;
+	}
+
+	/**
+	 * Creates a header for a 1-D array of the given length, padded out so that it's
+	 * always the same length whatever the final length of the array.
+	 */
+	private static byte[] header (NpyDataType dtype, long len)
+	{	int reserved = NpyHeader.reservedLength (dtype, /* fortranOrder = */ false, 1);
+		return NpyHeader.encode (dtype, /* fortranOrder = */ false, new long[] { len }, reserved);
+	}
+
+	/**
+	 * Appends a row to the matrix. Values are written out (or buffered to be
+	 * written out) immediately, so the vector can be cleared and re-used.
+	 * @param vector the non-zero entries in the row, keyed by column.
+	 * @throws IOException if the row could not be written
+	 */
+	public void addRow (Int2ShortMap vector) throws IOException
+	{	ensureOpen();
+		int size = vector.size();
+		if (size > rowIndices.length)
+		{	rowIndices = new int[Math.max (size, rowIndices.length * 2)];
+			rowData    = new short[rowIndices.length];
+		}
+
+		int i = 0;
+		ObjectIterator<Int2ShortMap.Entry> iter = CsrMatrixBuilder.entries (vector);
+		while (iter.hasNext())
+		{	Int2ShortMap.Entry entry = iter.next();
+			rowIndices[i] = entry.getIntKey();
+			rowData[i]    = entry.getShortValue();
+			++i;
+		}
+		addRow (rowIndices, rowData, size);
+	}
+
+	/**
+	 * Appends a row to the matrix, given as parallel arrays of columns and values.
+	 * Values are written out (or buffered to be written out) immediately, so the
+	 * arrays can be re-used.
+	 * @param cols the columns of the non-zero entries in the row
+	 * @param values the values of the non-zero entries in the row
+	 * @param size the number of entries, at the start of each array
+	 * @throws IOException if the row could not be written
+	 */
+	public void addRow (int[] cols, short[] values, int size) throws IOException
+	{	ensureOpen();
+		for (int i = 0; i < size; i++)
+			if (cols[i] < 0 || cols[i] >= this.cols)
+				throw new IllegalArgumentException ("Column " + cols[i] + " is out of range for a matrix with " + this.cols + " columns");
+		if (indptrType == NpyDataType.INT32 && nnz + size > Integer.MAX_VALUE)
+			promoteIndptr();
+
+		indicesOut.writeInts (cols,   0, size);
+		dataOut.writeShorts  (values, 0, size);
+		nnz += size;
+
+		if (indptrType == NpyDataType.INT32)
+			indptrOut.writeInt ((int) nnz);
+		else
+			indptrOut.writeLong (nnz);
+		++rows;
+	}
+
+	/**
+	 * Rewrites the indptr entries written so far as longs instead of ints. As
+	 * each long is written to twice the offset its int was read from, we can do
+	 * this in place, working backwards from the end of the file.
+	 */
+	void promoteIndptr() throws IOException
+	{	indptrOut.flush();
+
+		int  headerLen = header (indptrType, 0).length;
+		long count     = rows + 1;
+		ByteBuffer ints  = ByteBuffer.allocate (PROMOTION_CHUNK * 4).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer longs = ByteBuffer.allocate (PROMOTION_CHUNK * 8).order (ByteOrder.LITTLE_ENDIAN);
+		for (long end = count; end > 0; )
+		{	long start = Math.max (0, end - PROMOTION_CHUNK);
+			int  n     = (int) (end - start);
+
+			ints.clear();
+			ints.limit (n * 4);
+			readFully (indptr, ints, headerLen + start * 4);
+			ints.flip();
+
+			longs.clear();
+			while (ints.hasRemaining())
+				longs.putLong (ints.getInt());
+			longs.flip();
+			writeFully (indptr, longs, headerLen + start * 8);
+
+			end = start;
+		}
+
+		indptrType = NpyDataType.INT64;
+		indptr.position (headerLen + count * 8);
+	}
+
+	private static void readFully (FileChannel channel, ByteBuffer buf, long pos) throws IOException
+	{	while (buf.hasRemaining())
+		{	int n = channel.read (buf, pos);
+			if (n < 0)
+				throw new IOException ("Unexpected end of file after " + pos + " bytes");
+			pos += n;
+		}
+	}
+
+	private static void writeFully (FileChannel channel, ByteBuffer buf, long pos) throws IOException
+	{	while (buf.hasRemaining())
+			pos += channel.write (buf, pos);
+	}
+
+	private static void writeFully (FileChannel channel, ByteBuffer buf) throws IOException
+	{	while (buf.hasRemaining())
+			channel.write (buf);
+	}
+
+	private void ensureOpen()
+	{	if (closed)
+			throw new IllegalStateException ("This writer has already been closed");
+	}
+
+	/**
+	 * @return the paths to the indices, indptr and data files in that order.
+	 */
+	public Path[] getPaths()
+	{	return new Path[] { indicesPath, indptrPath, dataPath };
+	}
+
+	public int getRows()
+	{	return rows;
+	}
+
+	public int getCols()
+	{	return cols;
+	}
+
+	public long getNonZeroCount()
+	{	return nnz;
+	}
+
+	/**
+	 * Writes out any buffered rows, overwrites the placeholder header in each file
+	 * with the final shape, and closes all three files. As with {@link CsrMatrixWriter#close()}
+	 * we try to close all three files even if one fails, and report all failures
+	 * together.
+	 */
+	@Override
+	public void close() throws Exception
+	{	if (closed)
+			return;
+		closed = true;
+
+		Exception err = finish (indices, indicesOut, INDEX_TYPE, nnz);
+		err = MergedException.merge (err, finish (indptr, indptrOut, indptrType, rows + 1));
+		err = MergedException.merge (err, finish (data,   dataOut,    DATA_TYPE,  nnz));
+
+		if (err != null)
+			throw err;
+	}
+
+	/**
+	 * Flushes the remaining contents of the buffer, patches the header, and
+	 * closes the channel, returning rather than throwing any error.
+	 */
+	private static Exception finish (FileChannel channel, LittleEndianChannelWriter out, NpyDataType dtype, long len)
+	{	IOException err = null;
+		try
+		{	out.flush();
+			writeFully (channel, ByteBuffer.wrap (header (dtype, len)), 0);
+		}
+		catch (IOException ioe)
+		{	err = ioe;
+		}
+		return MergedException.merge (err, close (channel));
+	}
+
+	private static IOException close (Closeable c)
+	{	try
+		{	c.close();
+			return null;
+		}
+		catch (IOException ioe)
+		{	return ioe;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package ucl.feeney.bryan.numpy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Transposes a CSR matrix, which gives the arrays of the original matrix in CSC
+ * format, by a parallel counting sort of its entries by column.
+ * <p>
+ * The rows are split into chunks of roughly equal numbers of non-zero entries.
+ * First each chunk counts the entries in each column, in parallel. Then a single
+ * pass over the columns turns the counts into the offset at which each chunk
+ * should start writing its entries for each column, chunk by chunk within
+ * each column. Finally each chunk scatters its entries to those offsets, again
+ * in parallel. As chunks and rows are visited in order, the rows within each
+ * column come out sorted, even if the columns within each row weren't.
+ * <p>
+ * Each chunk needs an offset for every column, so to keep these tables no larger
+ * than the matrix itself, matrices with few entries per column are split into
+ * fewer chunks.
+ */
+final class Transposer
+{
+	/** Matrices smaller than this are transposed in a single chunk */
+	private final static long MIN_CHUNK_NNZ = 1 << 16;
+
+	private Transposer()
+	{
+	}
+
+	/**
+	 * Returns the transpose of the given matrix, whose arrays are stored using the
+	 * same allocator. No more rows should be added to the matrix while this is
+	 * running.
+	 */
+	static CsrMatrixBuilder transpose (CsrMatrixBuilder csr, ForkJoinPool pool)
+	{	int  rows = csr.getRows();
+		int  cols = csr.getCols();
+		long nnz  = csr.getNonZeroCount();
+
+		long chunkCount = Math.min (pool.getParallelism(), nnz / Math.max (MIN_CHUNK_NNZ, cols));
+		int  chunks     = (int) Math.max (1, chunkCount);
+
+		// Split the rows so each chunk has about the same number of entries
+		int[] rowStart = new int[chunks + 1];
+		for (int c = 1; c < chunks; c++)
+			rowStart[c] = firstRowAtOrAfter (csr, nnz * c / chunks, rowStart[c - 1]);
+		rowStart[chunks] = rows;
+
+		final List<ChunkTask> tasks = new ArrayList<>(chunks);
+		for (int c = 0; c < chunks; c++)
+			tasks.add (new ChunkTask (csr, rowStart[c], rowStart[c + 1]));
+		invokeAll (pool, tasks);
+
+		// Turn the counts into offsets, column by column, chunk by chunk
+		SegmentAllocator storage = csr.storage();
+		ChunkedBuffer indptr = new ChunkedBuffer (storage, 8, cols + 1L);
+		indptr.resize (cols + 1L);
+		long offset = 0;
+		for (int col = 0; col < cols; col++)
+		{	indptr.setLong (col, offset);
+			for (ChunkTask task : tasks)
+			{	long count = task.offsets[col];
+				task.offsets[col] = offset;
+				offset += count;
+			}
+		}
+		indptr.setLong (cols, offset);
+
+		ChunkedBuffer indices = new ChunkedBuffer (storage, 4, nnz);
+		ChunkedBuffer data    = new ChunkedBuffer (storage, csr.getDataType().width(), nnz);
+		indices.resize (nnz);
+		data.resize    (nnz);
+		for (ChunkTask task : tasks)
+			task.scatterTo (indices, data);
+		invokeAll (pool, tasks);
+
+		// The rows within each column come out in order, whatever the order of the
+		// columns within each row, and no row holds a column twice, as every
+		// builder rejects such rows, so the transpose is always canonical.
+		return new Transposed (rows, cols, /* canonical = */ true, storage, csr.getDataType(), indices, indptr, data);
+	}
+
+	/**
+	 * Finds the first row, at or after the given one, which starts at or after
+	 * the given offset into the indices, by a binary search of indptr.
+	 */
+	private static int firstRowAtOrAfter (CsrMatrixBuilder csr, long offset, int from)
+	{	ChunkedBuffer indptr = csr.indptrBuffer();
+		int lo = from, hi = csr.getRows();
+		while (lo < hi)
+		{	int mid = (lo + hi) >>> 1;
+			if (indptr.getLong (mid) < offset)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static void invokeAll (ForkJoinPool pool, final List<ChunkTask> tasks)
+	{	for (ChunkTask task : tasks)
+			task.reinitialize();
+		pool.invoke (new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{	invokeAll (tasks);
+			}
+		});
+	}
+
+	/**
+	 * Counts the entries in each column of a range of rows, and later scatters
+	 * them into the transposed arrays.
+	 */
+	private final static class ChunkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final CsrMatrixBuilder csr;
+		private final int              fromRow;
+		private final int              toRow;
+
+		/** First the count of each column, then the next offset to write it to */
+		final long[] offsets;
+
+		private ChunkedBuffer dstIndices;
+		private ChunkedBuffer dstData;
+
+		ChunkTask (CsrMatrixBuilder csr, int fromRow, int toRow)
+		{	this.csr     = csr;
+			this.fromRow = fromRow;
+			this.toRow   = toRow;
+			this.offsets = new long[csr.getCols()];
+		}
+
+		/** Switches this from counting to scattering, when next invoked */
+		void scatterTo (ChunkedBuffer indices, ChunkedBuffer data)
+		{	this.dstIndices = indices;
+			this.dstData    = data;
+		}
+
+		@Override
+		protected void compute()
+		{	ChunkedBuffer indptr  = csr.indptrBuffer();
+			ChunkedBuffer indices = csr.indicesBuffer();
+			ChunkedBuffer data    = csr.dataBuffer();
+
+			long end = indptr.getLong (fromRow);
+			for (int row = fromRow; row < toRow; row++)
+			{	long start = end;
+				end = indptr.getLong (row + 1);
+				if (dstIndices == null)
+				{	for (long i = start; i < end; i++)
+					{	int col = indices.getInt (i);
+						if (col < 0 || col >= offsets.length)
+							throw new IllegalArgumentException ("Column " + col + " of row " + row + " is out of range for a matrix with " + offsets.length + " columns");
+						++offsets[col];
+					}
+				}
+				else
+				{	for (long i = start; i < end; i++)
+					{	long pos = offsets[indices.getInt (i)]++;
+						dstIndices.setInt (pos, row);
+						data.copyElementTo (i, dstData, pos);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The transpose, whose rows are the columns of the original
+	 */
+	private final static class Transposed extends CsrMatrixBuilder
+	{
+		/**
+		 * Creates the transpose of a matrix with the given number of rows and
+		 * columns, which are its number of columns and rows respectively.
+		 */
+		Transposed (int rows, int cols, boolean canonical, SegmentAllocator storage, NpyDataType dataType, ChunkedBuffer indices, ChunkedBuffer indptr, ChunkedBuffer data)
+		{	super (/* cols = */ rows, /* rows = */ cols, canonical, storage, dataType, indices, indptr, data);
+		}
+	}
+}
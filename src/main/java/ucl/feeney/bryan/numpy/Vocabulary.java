@@ -0,0 +1,126 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.Charsets;
+
+/**
+ * Maps terms to column ids, assigning each new term the next id in turn, and
+ * can be shared by many threads at once.
+ * <p>
+ * Terms already in the vocabulary, which are nearly all of them once it's warmed
+ * up, are looked up without any locking. A new term is added while holding one
+ * of a number of locks chosen by its hash code, so threads adding different
+ * terms rarely contend, while two threads adding the same term always agree on
+ * its id.
+ * <p>
+ * The vocabulary has a fixed capacity, the number of columns in the matrix;
+ * once it's full, new terms are given no id.
+ */
+public final class Vocabulary
+{
+	/** The number of locks over which new terms are spread, a power of two */
+	private final static int STRIPES = 64;
+
+	private final ConcurrentHashMap<String, Integer> ids;
+	private final Object[]      locks = new Object[STRIPES];
+	private final AtomicInteger size  = new AtomicInteger();
+	private final int           capacity;
+
+	/**
+	 * Creates a new, empty, vocabulary
+	 * @param capacity the most terms it may hold
+	 */
+	public Vocabulary (int capacity)
+	{	if (capacity <= 0)
+			throw new IllegalArgumentException ("The vocabulary must have room for at least one term, not " + capacity);
+
+		this.capacity = capacity;
+		this.ids      = new ConcurrentHashMap<> (Math.min (capacity, 1 << 16), 0.75f, STRIPES);
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Returns the id of the given term, adding it to the vocabulary if it's new.
+	 * @return the id, or -1 if the term is new, and the vocabulary is full.
+	 * @throws IllegalArgumentException if the term contains a line break, as it
+	 * couldn't then be written out.
+	 */
+	public int idOf (String term)
+	{	Integer id = ids.get (term);
+		if (id != null)
+			return id;
+
+		synchronized (locks[term.hashCode() & (STRIPES - 1)])
+		{	id = ids.get (term);
+			if (id != null)
+				return id;
+			if (term.indexOf ('\n') >= 0 || term.indexOf ('\r') >= 0)
+				throw new IllegalArgumentException ("Terms can't contain line breaks: " + term);
+
+			int next;
+			do
+			{	next = size.get();
+				if (next >= capacity)
+					return -1;
+			}
+			while (! size.compareAndSet (next, next + 1));
+
+			ids.put (term, next);
+			return next;
+		}
+	}
+
+	/**
+	 * Returns the id of the given term, or -1 if it's not in the vocabulary,
+	 * without adding it.
+	 */
+	public int lookup (String term)
+	{	Integer id = ids.get (term);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * The number of terms in the vocabulary
+	 */
+	public int size()
+	{	return size.get();
+	}
+
+	public int getCapacity()
+	{	return capacity;
+	}
+
+	/**
+	 * Returns the terms in the vocabulary, in order of their ids. No terms should
+	 * be added while this is running.
+	 */
+	public String[] getTerms()
+	{	String[] terms = new String[size()];
+		for (Map.Entry<String, Integer> entry : ids.entrySet())
+			if (entry.getValue() < terms.length)
+				terms[entry.getValue()] = entry.getKey();
+		return terms;
+	}
+
+	/**
+	 * Writes out the vocabulary as a UTF-8 text file with one term per line, each
+	 * ending with '\n', the term on line <code>i</code>, counting from zero, being
+	 * that of column <code>i</code>. No terms should be added while this is running.
+	 */
+	public void writeTo (Path path) throws IOException
+	{	try (BufferedWriter out = Files.newBufferedWriter (path, Charsets.UTF_8))
+		{	for (String term : getTerms())
+			{	out.write (term);
+				out.write ('\n');
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.Charsets;
+
+/**
+ * A minimal zip archive reader, the counterpart of {@link ZipArchiveWriter}, which
+ * reads the central directory of an archive to find where each entry's data lies
+ * in the file. It doesn't decompress anything: it's used to memory-map the arrays
+ * stored uncompressed in ".npz" archives.
+ * <p>
+ * Zip64 archives, and entries, are supported, as written by us, by numpy, and by
+ * Python's zipfile module.
+ */
+final class ZipArchiveReader
+{
+	private final static int LOCAL_HEADER_SIG   = 0x04034b50;
+	private final static int CENTRAL_HEADER_SIG = 0x02014b50;
+	private final static int ZIP64_END_SIG      = 0x06064b50;
+	private final static int ZIP64_LOCATOR_SIG  = 0x07064b50;
+	private final static int END_SIG            = 0x06054b50;
+
+	private final static short ZIP64_EXTRA_ID   = 0x0001;
+
+	private final static long MAX_32 = 0xFFFFFFFFL;
+	private final static int  MAX_16 = 0xFFFF;
+
+	private final static int LOCAL_HEADER_LEN   = 30;
+	private final static int CENTRAL_HEADER_LEN = 46;
+	private final static int END_LEN            = 22;
+	private final static int ZIP64_LOCATOR_LEN  = 20;
+	private final static int ZIP64_END_LEN      = 56;
+
+	/**
+	 * What the central directory tells us about an entry
+	 */
+	final static class Entry
+	{	final String name;
+		final int    method;
+		final long   compressedSize;
+		final long   size;
+		final long   headerOffset;
+
+		Entry (String name, int method, long compressedSize, long size, long headerOffset)
+		{	this.name           = name;
+			this.method         = method;
+			this.compressedSize = compressedSize;
+			this.size           = size;
+			this.headerOffset   = headerOffset;
+		}
+	}
+
+	private final FileChannel        channel;
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * Reads the central directory of the archive in the given channel, which
+	 * must remain open while this is used.
+	 */
+	ZipArchiveReader (FileChannel channel) throws IOException
+	{	this.channel = channel;
+
+		// The end record is followed by a comment of up to 64KB, so search back for it
+		long size = channel.size();
+		int  tail = (int) Math.min (size, END_LEN + MAX_16);
+		ByteBuffer buf = read (size - tail, tail);
+		int end = tail - END_LEN;
+		while (end >= 0 && buf.getInt (end) != END_SIG)
+			--end;
+		if (end < 0)
+			throw new IOException ("Not a zip archive, there is no end of central directory record");
+
+		long count     = buf.getShort (end + 10) & MAX_16;
+		long dirLength = buf.getInt (end + 12) & MAX_32;
+		long dirOffset = buf.getInt (end + 16) & MAX_32;
+		long endOffset = size - tail + end;
+		if ((count == MAX_16 || dirLength == MAX_32 || dirOffset == MAX_32) && endOffset >= ZIP64_LOCATOR_LEN)
+		{	ByteBuffer locator = read (endOffset - ZIP64_LOCATOR_LEN, ZIP64_LOCATOR_LEN);
+			if (locator.getInt (0) == ZIP64_LOCATOR_SIG)
+			{	ByteBuffer zip64End = read (locator.getLong (8), ZIP64_END_LEN);
+				if (zip64End.getInt (0) != ZIP64_END_SIG)
+					throw new IOException ("Corrupt zip archive, the Zip64 end of central directory record is missing");
+				count     = zip64End.getLong (32);
+				dirLength = zip64End.getLong (40);
+				dirOffset = zip64End.getLong (48);
+			}
+		}
+		if (dirLength > Integer.MAX_VALUE)
+			throw new IOException ("The central directory of " + dirLength + " bytes is too large");
+
+		ByteBuffer dir = read (dirOffset, (int) dirLength);
+		for (long e = 0; e < count; e++)
+		{	int pos = dir.position();
+			if (dir.getInt (pos) != CENTRAL_HEADER_SIG)
+				throw new IOException ("Corrupt zip archive, central directory entry " + e + " is missing");
+
+			int  method         = dir.getShort (pos + 10) & MAX_16;
+			long compressedSize = dir.getInt (pos + 20) & MAX_32;
+			long entrySize      = dir.getInt (pos + 24) & MAX_32;
+			int  nameLen        = dir.getShort (pos + 28) & MAX_16;
+			int  extraLen       = dir.getShort (pos + 30) & MAX_16;
+			int  commentLen     = dir.getShort (pos + 32) & MAX_16;
+			long headerOffset   = dir.getInt (pos + 42) & MAX_32;
+			String name = new String (dir.array(), pos + CENTRAL_HEADER_LEN, nameLen, Charsets.UTF_8);
+
+			// Values too large for their fields are in the Zip64 extra field, in this order
+			int extra = pos + CENTRAL_HEADER_LEN + nameLen;
+			int extraEnd = extra + extraLen;
+			while (extra + 4 <= extraEnd)
+			{	short id  = dir.getShort (extra);
+				int   len = dir.getShort (extra + 2) & MAX_16;
+				if (id == ZIP64_EXTRA_ID)
+				{	int field = extra + 4;
+					if (entrySize == MAX_32)
+					{	entrySize = dir.getLong (field);
+						field += 8;
+					}
+					if (compressedSize == MAX_32)
+					{	compressedSize = dir.getLong (field);
+						field += 8;
+					}
+					if (headerOffset == MAX_32)
+						headerOffset = dir.getLong (field);
+				}
+				extra += 4 + len;
+			}
+
+			entries.put (name, new Entry (name, method, compressedSize, entrySize, headerOffset));
+			dir.position (extraEnd + commentLen);
+		}
+	}
+
+	/**
+	 * Returns the entry with the given name, or null if there's no such entry
+	 */
+	Entry getEntry (String name)
+	{	return entries.get (name);
+	}
+
+	/**
+	 * Returns the offset in the file of the start of the given entry's data,
+	 * just after its local header.
+	 */
+	long dataOffset (Entry entry) throws IOException
+	{	ByteBuffer header = read (entry.headerOffset, LOCAL_HEADER_LEN);
+		if (header.getInt (0) != LOCAL_HEADER_SIG)
+			throw new IOException ("Corrupt zip archive, the local header of " + entry.name + " is missing");
+		int nameLen  = header.getShort (26) & MAX_16;
+		int extraLen = header.getShort (28) & MAX_16;
+		return entry.headerOffset + LOCAL_HEADER_LEN + nameLen + extraLen;
+	}
+
+	private ByteBuffer read (long position, int length) throws IOException
+	{	ByteBuffer buf = ByteBuffer.allocate (length).order (ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining())
+		{	int n = channel.read (buf, position + buf.position());
+			if (n < 0)
+				throw new IOException ("Unexpected end of zip archive");
+		}
+		buf.clear();
+		return buf;
+	}
+}
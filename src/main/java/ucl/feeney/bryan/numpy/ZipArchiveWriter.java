@@ -0,0 +1,582 @@
+package ucl.feeney.bryan.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.Charsets;
+
+/**
+ * A minimal zip archive writer, sufficient to write out the ".npz" archives
+ * read by <code>numpy.load</code> and <code>scipy.sparse.load_npz</code>.
+ * <p>
+ * Unlike {@link java.util.zip.ZipOutputStream} this doesn't need to know the
+ * size and checksum of uncompressed entries up front: the local header of each
+ * entry is written with placeholders which are overwritten once the entry is
+ * closed, so each array can be encoded straight into the archive in a single
+ * pass. Sizes are always recorded in Zip64 extra fields in the local headers,
+ * and in the central directory whenever they (or offsets) exceed 4GB.
+ * <p>
+ * Archives can also be streamed to channels which can't seek, such as pipes and
+ * sockets. The local headers are then written with zero sizes and checksum, and
+ * no Zip64 field, and flagged as being followed by a data descriptor, which gives
+ * the real values once the entry's contents have been written, with 64-bit sizes
+ * only if they exceed 4GB, as <code>ZipOutputStream</code> does. Readers,
+ * including numpy's, take the values from the central directory. Sequential
+ * readers such as {@link java.util.zip.ZipInputStream} only accept a data
+ * descriptor after a deflated entry, as only then can they find its end, so when
+ * streaming, entries which would have been stored are deflated at level 0
+ * instead, which wraps the data in uncompressed blocks costing five bytes in
+ * every 64KB.
+ * <p>
+ * Deflated entries can be compressed in parallel, by passing an executor to
+ * {@link #openEntry(String, int, int, ExecutorService)}: the data is split into blocks
+ * which are compressed at the same time, see {@link BlockDeflater}.
+ * <p>
+ * Only one entry may be open at a time.
+ */
+final class ZipArchiveWriter implements AutoCloseable
+{
+	final static int STORED   = 0;
+	final static int DEFLATED = 8;
+
+	private final static int LOCAL_HEADER_SIG   = 0x04034b50;
+	private final static int CENTRAL_HEADER_SIG = 0x02014b50;
+	private final static int ZIP64_END_SIG      = 0x06064b50;
+	private final static int ZIP64_LOCATOR_SIG  = 0x07064b50;
+	private final static int END_SIG            = 0x06054b50;
+	private final static int DESCRIPTOR_SIG     = 0x08074b50;
+
+	/** The general purpose flag marking an entry followed by a data descriptor */
+	private final static short FLAG_DESCRIPTOR  = 0x0008;
+
+	private final static short ZIP64_EXTRA_ID   = 0x0001;
+	private final static short VERSION_DEFAULT  = 20;
+	private final static short VERSION_ZIP64    = 45;
+
+	private final static long  MAX_32  = 0xFFFFFFFFL;
+	private final static int   MAX_16  = 0xFFFF;
+
+	private final static int LOCAL_HEADER_LEN   = 30;
+	private final static int LOCAL_EXTRA_LEN    = 20;
+	private final static int DESCRIPTOR_LEN       = 16;
+	private final static int DESCRIPTOR_ZIP64_LEN = 24;
+
+	private final static int BUFFER_SIZE        = 64 * 1024;
+
+	/** The size of the blocks compressed in parallel */
+	final static int DEFLATE_BLOCK_SIZE         = 1024 * 1024;
+
+	private final WritableByteChannel out;
+	private final boolean             seekable;
+	private final List<Entry>         entries = new ArrayList<>();
+	private final int                 dosTime;
+	private long                      position;
+
+	private WritableByteChannel current;
+	private boolean      closed;
+	private boolean      closeChannel = true;
+
+	/**
+	 * Records everything we need to write out the central directory
+	 */
+	private final static class Entry
+	{	final byte[] name;
+		final int    method;
+		final long   headerOffset;
+		long crc;
+		long compressedSize;
+		long size;
+
+		Entry (byte[] name, int method, long headerOffset)
+		{	this.name         = name;
+			this.method       = method;
+			this.headerOffset = headerOffset;
+		}
+	}
+
+	/**
+	 * Creates a new archive writer, writing to the current position of the given
+	 * channel, which is usually a newly created file.
+	 */
+	ZipArchiveWriter (SeekableByteChannel out) throws IOException
+	{	this (out, out.position(), /* seekable = */ true);
+	}
+
+	/**
+	 * Creates a new archive writer which streams the archive to the given channel,
+	 * never seeking back, see the class documentation.
+	 */
+	ZipArchiveWriter (WritableByteChannel out)
+	{	this (out, 0, /* seekable = */ false);
+	}
+
+	private ZipArchiveWriter (WritableByteChannel out, long position, boolean seekable)
+	{	this.out      = out;
+		this.position = position;
+		this.seekable = seekable;
+		this.dosTime  = dosTime (Calendar.getInstance());
+	}
+
+	/**
+	 * If false, the channel we're writing to is left open when this is closed,
+	 * e.g. when it's standard output, or more is to be written after the archive.
+	 * By default it's closed.
+	 */
+	void setCloseChannel (boolean closeChannel)
+	{	this.closeChannel = closeChannel;
+	}
+
+	/**
+	 * Starts a new entry in the archive, returning a channel to which its (uncompressed)
+	 * contents should be written. The entry is completed when that channel is closed.
+	 * @param name the name of the file within the archive
+	 * @param method either {@link #STORED} or {@link #DEFLATED}
+	 * @param level the compression level, ignored if the entry is stored
+	 */
+	WritableByteChannel openEntry (String name, int method, int level) throws IOException
+	{	return openEntry (name, method, level, null);
+	}
+
+	/**
+	 * Starts a new entry in the archive, returning a channel to which its (uncompressed)
+	 * contents should be written. The entry is completed when that channel is closed.
+	 * @param name the name of the file within the archive
+	 * @param method either {@link #STORED} or {@link #DEFLATED}, though stored
+	 * entries are deflated at level 0 if the channel can't seek
+	 * @param level the compression level, ignored if the entry is stored
+	 * @param executor if not null, and the entry is deflated, blocks of the entry
+	 * are compressed in parallel by tasks submitted to this.
+	 */
+	WritableByteChannel openEntry (String name, int method, int level, ExecutorService executor) throws IOException
+	{	if (closed)
+			throw new ClosedChannelException();
+		if (current != null)
+			throw new IllegalStateException ("The previous entry, " + new String (entries.get (entries.size() - 1).name, Charsets.UTF_8) + ", has not been closed");
+		if (method != STORED && method != DEFLATED)
+			throw new IllegalArgumentException ("Unsupported compression method " + method);
+		if (method == STORED && !seekable)
+		{	method = DEFLATED;
+			level  = Deflater.NO_COMPRESSION;
+		}
+
+		Entry entry = new Entry (name.getBytes (Charsets.UTF_8), method, position);
+		entries.add (entry);
+		writeFully (localHeader (entry));
+
+		current = method == DEFLATED && executor != null
+			? new ParallelEntryChannel (entry, level, executor)
+			: new EntryChannel (entry, method == DEFLATED ? new Deflater (level, /* nowrap = */ true) : null);
+		return current;
+	}
+
+	/**
+	 * Writes a local header with the values currently in the entry. When streaming,
+	 * the sizes are left out, as they're given by the data descriptor instead.
+	 */
+	private ByteBuffer localHeader (Entry entry)
+	{	int extraLen = seekable ? LOCAL_EXTRA_LEN : 0;
+		ByteBuffer buf = newBuffer (LOCAL_HEADER_LEN + entry.name.length + extraLen);
+		buf.putInt   (LOCAL_HEADER_SIG);
+		buf.putShort (seekable ? VERSION_ZIP64 : VERSION_DEFAULT);
+		buf.putShort (flags());
+		buf.putShort ((short) entry.method);
+		buf.putInt   (dosTime);
+		buf.putInt   ((int) entry.crc);
+		buf.putInt   (seekable ? (int) MAX_32 : 0); // sizes are in the Zip64 extra field
+		buf.putInt   (seekable ? (int) MAX_32 : 0);
+		buf.putShort ((short) entry.name.length);
+		buf.putShort ((short) extraLen);
+		buf.put      (entry.name);
+		if (seekable)
+		{	buf.putShort (ZIP64_EXTRA_ID);
+			buf.putShort ((short) (LOCAL_EXTRA_LEN - 4));
+			buf.putLong  (entry.size);
+			buf.putLong  (entry.compressedSize);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private short flags()
+	{	return seekable ? 0 : FLAG_DESCRIPTOR;
+	}
+
+	/**
+	 * Called when an entry's channel is closed: goes back and fills in the sizes
+	 * and checksum in its local header, or, if we can't, writes them out in a data
+	 * descriptor.
+	 */
+	private void entryClosed (Entry entry) throws IOException
+	{	current = null;
+
+		if (seekable)
+		{	SeekableByteChannel channel = (SeekableByteChannel) out;
+			ByteBuffer header = localHeader (entry);
+			channel.position (entry.headerOffset);
+			while (header.hasRemaining())
+				channel.write (header);
+			channel.position (position);
+		}
+		else
+		{	// Sizes are 64-bit only when they need to be, as readers such as
+			// ZipInputStream expect
+			boolean zip64 = entry.size >= MAX_32 || entry.compressedSize >= MAX_32;
+			ByteBuffer buf = newBuffer (zip64 ? DESCRIPTOR_ZIP64_LEN : DESCRIPTOR_LEN);
+			buf.putInt (DESCRIPTOR_SIG);
+			buf.putInt ((int) entry.crc);
+			if (zip64)
+			{	buf.putLong (entry.compressedSize);
+				buf.putLong (entry.size);
+			}
+			else
+			{	buf.putInt ((int) entry.compressedSize);
+				buf.putInt ((int) entry.size);
+			}
+			buf.flip();
+			writeFully (buf);
+		}
+	}
+
+	/**
+	 * Writes out the central directory and closes the underlying channel.
+	 */
+	@Override
+	public void close() throws IOException
+	{	if (closed)
+			return;
+		closed = true;
+
+		try
+		{	if (current != null)
+				current.close();
+			writeCentralDirectory();
+		}
+		finally
+		{	if (closeChannel)
+				out.close();
+		}
+	}
+
+	private void writeCentralDirectory() throws IOException
+	{	long cdOffset = position;
+		for (Entry entry : entries)
+			writeFully (centralHeader (entry));
+		long cdSize = position - cdOffset;
+
+		boolean zip64 = entries.size() >= MAX_16 || cdOffset >= MAX_32 || cdSize >= MAX_32;
+		if (zip64)
+		{	long zip64EndOffset = position;
+
+			ByteBuffer buf = newBuffer (56 + 20);
+			buf.putInt   (ZIP64_END_SIG);
+			buf.putLong  (44); // size of the remainder of this record
+			buf.putShort (VERSION_ZIP64);
+			buf.putShort (VERSION_ZIP64);
+			buf.putInt   (0); // this disk
+			buf.putInt   (0); // disk with the central directory
+			buf.putLong  (entries.size());
+			buf.putLong  (entries.size());
+			buf.putLong  (cdSize);
+			buf.putLong  (cdOffset);
+
+			buf.putInt   (ZIP64_LOCATOR_SIG);
+			buf.putInt   (0); // disk with the zip64 end record
+			buf.putLong  (zip64EndOffset);
+			buf.putInt   (1); // total number of disks
+			buf.flip();
+			writeFully (buf);
+		}
+
+		ByteBuffer buf = newBuffer (22);
+		buf.putInt   (END_SIG);
+		buf.putShort ((short) 0); // this disk
+		buf.putShort ((short) 0); // disk with the central directory
+		buf.putShort ((short) Math.min (entries.size(), MAX_16));
+		buf.putShort ((short) Math.min (entries.size(), MAX_16));
+		buf.putInt   ((int) Math.min (cdSize,   MAX_32));
+		buf.putInt   ((int) Math.min (cdOffset, MAX_32));
+		buf.putShort ((short) 0); // comment length
+		buf.flip();
+		writeFully (buf);
+	}
+
+	private ByteBuffer centralHeader (Entry entry)
+	{	boolean bigSize   = entry.size >= MAX_32;
+		boolean bigComp   = entry.compressedSize >= MAX_32;
+		boolean bigOffset = entry.headerOffset >= MAX_32;
+
+		int extraLen = (bigSize ? 8 : 0) + (bigComp ? 8 : 0) + (bigOffset ? 8 : 0);
+		if (extraLen > 0)
+			extraLen += 4;
+
+		ByteBuffer buf = newBuffer (46 + entry.name.length + extraLen);
+		buf.putInt   (CENTRAL_HEADER_SIG);
+		buf.putShort (VERSION_ZIP64); // made by
+		buf.putShort (extraLen > 0 ? VERSION_ZIP64 : VERSION_DEFAULT);
+		buf.putShort (flags());
+		buf.putShort ((short) entry.method);
+		buf.putInt   (dosTime);
+		buf.putInt   ((int) entry.crc);
+		buf.putInt   ((int) Math.min (entry.compressedSize, MAX_32));
+		buf.putInt   ((int) Math.min (entry.size,           MAX_32));
+		buf.putShort ((short) entry.name.length);
+		buf.putShort ((short) extraLen);
+		buf.putShort ((short) 0); // comment length
+		buf.putShort ((short) 0); // disk number
+		buf.putShort ((short) 0); // internal attributes
+		buf.putInt   (0);         // external attributes
+		buf.putInt   ((int) Math.min (entry.headerOffset, MAX_32));
+		buf.put      (entry.name);
+		if (extraLen > 0)
+		{	buf.putShort (ZIP64_EXTRA_ID);
+			buf.putShort ((short) (extraLen - 4));
+			if (bigSize)
+				buf.putLong (entry.size);
+			if (bigComp)
+				buf.putLong (entry.compressedSize);
+			if (bigOffset)
+				buf.putLong (entry.headerOffset);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private void writeFully (ByteBuffer buf) throws IOException
+	{	while (buf.hasRemaining())
+			position += out.write (buf);
+	}
+
+	private static ByteBuffer newBuffer (int capacity)
+	{	return ByteBuffer.allocate (capacity).order (ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Converts the given time to the MS-DOS format used in zip headers, with
+	 * the time in the lower 16 bits and the date in the upper 16 bits.
+	 */
+	private static int dosTime (Calendar cal)
+	{	int year = Math.max (cal.get (Calendar.YEAR), 1980);
+		return ((year - 1980) << 25)
+			| ((cal.get (Calendar.MONTH) + 1)  << 21)
+			| (cal.get (Calendar.DAY_OF_MONTH) << 16)
+			| (cal.get (Calendar.HOUR_OF_DAY)  << 11)
+			| (cal.get (Calendar.MINUTE)       << 5)
+			| (cal.get (Calendar.SECOND)       >> 1);
+	}
+
+	/**
+	 * The channel through which the contents of a single entry are written. Keeps
+	 * track of the checksum and sizes, and compresses the data if required.
+	 */
+	private final class EntryChannel implements WritableByteChannel
+	{	private final Entry    entry;
+		private final Deflater deflater;
+		private final CRC32    crc = new CRC32();
+		private final byte[]   scratch;
+		private final byte[]   compressed;
+		private boolean        open = true;
+
+		EntryChannel (Entry entry, Deflater deflater)
+		{	this.entry      = entry;
+			this.deflater   = deflater;
+			this.scratch    = new byte[BUFFER_SIZE];
+			this.compressed = deflater == null ? null : new byte[BUFFER_SIZE];
+		}
+
+		@Override
+		public boolean isOpen()
+		{	return open;
+		}
+
+		@Override
+		public int write (ByteBuffer src) throws IOException
+		{	if (! open)
+				throw new ClosedChannelException();
+
+			int len = src.remaining();
+			if (src.hasArray())
+			{	update (src.array(), src.arrayOffset() + src.position(), len);
+				if (deflater == null)
+					writeFully (src);
+				src.position (src.limit());
+			}
+			else
+			{	// The checksum has to be calculated from a copy on the heap, but a stored
+				// entry is written from the original buffer, as the channel can take
+				// direct or mapped buffers without copying them again
+				ByteBuffer original = src.duplicate();
+				while (src.hasRemaining())
+				{	int chunk = Math.min (src.remaining(), scratch.length);
+					src.get (scratch, 0, chunk);
+					update (scratch, 0, chunk);
+				}
+				if (deflater == null)
+					writeFully (original);
+			}
+			entry.size += len;
+			return len;
+		}
+
+		/**
+		 * Updates the checksum and, if compressing, feeds the data to the
+		 * deflater, writing out any compressed output.
+		 */
+		private void update (byte[] bytes, int off, int len) throws IOException
+		{	crc.update (bytes, off, len);
+			if (deflater != null)
+			{	deflater.setInput (bytes, off, len);
+				while (! deflater.needsInput())
+					drainDeflater();
+			}
+		}
+
+		private void drainDeflater() throws IOException
+		{	int n = deflater.deflate (compressed);
+			if (n > 0)
+			{	writeFully (ByteBuffer.wrap (compressed, 0, n));
+				entry.compressedSize += n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{	if (! open)
+				return;
+			open = false;
+
+			if (deflater != null)
+			{	deflater.finish();
+				while (! deflater.finished())
+					drainDeflater();
+				deflater.end();
+			}
+			else
+				entry.compressedSize = entry.size;
+
+			entry.crc = crc.getValue();
+			entryClosed (entry);
+		}
+	}
+
+	/**
+	 * The channel through which the contents of a single deflated entry are written
+	 * when compressing in parallel. Data are gathered into blocks, each of which is
+	 * compressed by a task on the executor as soon as it's full. The compressed
+	 * blocks are written out in order, waiting for the oldest whenever too many are
+	 * outstanding, which bounds the memory used.
+	 */
+	private final class ParallelEntryChannel implements WritableByteChannel
+	{	private final Entry                          entry;
+		private final int                            level;
+		private final ExecutorService                executor;
+		private final int                            maxPending;
+		private final Deque<Future<BlockDeflater>>   pending = new ArrayDeque<>();
+		private final Deque<byte[]>                  spare   = new ArrayDeque<>();
+
+		private byte[]  block;
+		private int     blockLength;
+		private byte[]  dictionary;
+		private long    crc;
+		private boolean open = true;
+
+		ParallelEntryChannel (Entry entry, int level, ExecutorService executor)
+		{	this.entry      = entry;
+			this.level      = level;
+			this.executor   = executor;
+			this.maxPending = 2 * Runtime.getRuntime().availableProcessors();
+			this.block      = new byte[DEFLATE_BLOCK_SIZE];
+		}
+
+		@Override
+		public boolean isOpen()
+		{	return open;
+		}
+
+		@Override
+		public int write (ByteBuffer src) throws IOException
+		{	if (! open)
+				throw new ClosedChannelException();
+
+			int len = src.remaining();
+			while (src.hasRemaining())
+			{	int n = Math.min (src.remaining(), block.length - blockLength);
+				src.get (block, blockLength, n);
+				blockLength += n;
+				if (blockLength == block.length)
+					submit (/* last = */ false);
+			}
+			entry.size += len;
+			return len;
+		}
+
+		/**
+		 * Hands the current block over to be compressed, and starts a new one
+		 */
+		private void submit (boolean last) throws IOException
+		{	if (pending.size() >= maxPending)
+				writeBlock();
+
+			pending.add (executor.submit (new BlockDeflater (block, blockLength, dictionary, level, last)));
+			dictionary  = BlockDeflater.dictionary (block, blockLength);
+			block       = spare.isEmpty() ? new byte[DEFLATE_BLOCK_SIZE] : spare.pop();
+			blockLength = 0;
+		}
+
+		/**
+		 * Waits for the oldest block to be compressed, then writes it out
+		 */
+		private void writeBlock() throws IOException
+		{	BlockDeflater done;
+			try
+			{	done = pending.peek().get();
+			}
+			catch (InterruptedException ie)
+			{	Thread.currentThread().interrupt();
+				throw new IOException ("Interrupted while compressing " + new String (entry.name, Charsets.UTF_8), ie);
+			}
+			catch (ExecutionException ee)
+			{	throw new IOException ("Failed to compress " + new String (entry.name, Charsets.UTF_8) + ": " + ee.getCause().getMessage(), ee.getCause());
+			}
+			pending.pop();
+
+			writeFully (ByteBuffer.wrap (done.output(), 0, done.outputLength()));
+			entry.compressedSize += done.outputLength();
+			crc = BlockDeflater.combineCrc (crc, done.crc(), done.length());
+			spare.push (done.input());
+		}
+
+		@Override
+		public void close() throws IOException
+		{	if (! open)
+				return;
+			open = false;
+
+			try
+			{	submit (/* last = */ true);
+				while (! pending.isEmpty())
+					writeBlock();
+			}
+			finally
+			{	for (Future<BlockDeflater> task : pending)
+					task.cancel (/* mayInterruptIfRunning = */ false);
+			}
+
+			entry.crc = crc;
+			entryClosed (entry);
+		}
+	}
+}
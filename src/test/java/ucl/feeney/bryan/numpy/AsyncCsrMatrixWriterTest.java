@@ -0,0 +1,269 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Checks the asynchronous writer writes the same files as the streaming writer,
+ * pushes back on producers when it can't keep up, and reports failures.
+ */
+public class AsyncCsrMatrixWriterTest
+{
+	private final static int ROWS = 5000;
+	private final static int COLS = 1000;
+
+	@Test
+	public void testMatchesStreaming() throws Exception
+	{	Path dir = Files.createTempDirectory ("async");
+		dir.toFile().deleteOnExit();
+
+		Path[] expected;
+		Path[] actual;
+		Random rng = new Random (0xA5C);
+		Int2ShortMap row = new Int2ShortOpenHashMap();
+		// A tiny buffer, so the producer often has to wait for the writer
+		try (StreamingCsrMatrixWriter streaming = new StreamingCsrMatrixWriter (dir.resolve ("streaming"), COLS);
+			 AsyncCsrMatrixWriter async = new AsyncCsrMatrixWriter (dir.resolve ("async"), COLS, 8))
+		{	for (int r = 0; r < ROWS; r++)
+			{	row.clear();
+				int nnz = rng.nextInt (50);
+				for (int i = 0; i < nnz; i++)
+					row.put (rng.nextInt (COLS), (short) rng.nextInt());
+				streaming.addRow (row);
+				async.addRow (row);
+			}
+			assertEquals (ROWS, async.getRows());
+			expected = streaming.getPaths();
+			actual   = async.getPaths();
+		}
+
+		for (int i = 0; i < expected.length; i++)
+		{	assertArrayEquals (Files.readAllBytes (expected[i]), Files.readAllBytes (actual[i]));
+			Files.delete (expected[i]);
+			Files.delete (actual[i]);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAddAfterClose() throws Exception
+	{	Path dir = Files.createTempDirectory ("async");
+		dir.toFile().deleteOnExit();
+
+		AsyncCsrMatrixWriter async = new AsyncCsrMatrixWriter (dir.resolve ("closed"), COLS);
+		for (Path path : async.getPaths())
+			path.toFile().deleteOnExit();
+		async.close();
+		async.addRow (new Int2ShortOpenHashMap (new int[] { 7 }, new short[] { 1 }));
+	}
+
+	@Test
+	public void testOfferTimesOutWhenFull() throws Exception
+	{	Path dir = Files.createTempDirectory ("async");
+		dir.toFile().deleteOnExit();
+
+		// Stalls writing the first row until released
+		final CountDownLatch release = new CountDownLatch (1);
+		StreamingCsrMatrixWriter stalled = new StreamingCsrMatrixWriter (dir.resolve ("stalled"), COLS) {
+			@Override
+			public void addRow (int[] cols, short[] values, int size) throws IOException
+			{	try
+				{	release.await();
+				}
+				catch (InterruptedException ie)
+				{	throw new InterruptedIOException();
+				}
+				super.addRow (cols, values, size);
+			}
+		};
+
+		Int2ShortMap row = new Int2ShortOpenHashMap (new int[] { 7 }, new short[] { 1 });
+		try (AsyncCsrMatrixWriter async = new AsyncCsrMatrixWriter (stalled, 2))
+		{	assertEquals (0, async.addRow (row));
+			assertEquals (1, async.addRow (row));
+			assertFalse (async.offerRow (row, 50, TimeUnit.MILLISECONDS));
+			assertTrue (async.getWaitNanos() >= TimeUnit.MILLISECONDS.toNanos (50));
+			assertEquals (2, async.getRows());
+
+			release.countDown();
+			assertTrue (async.offerRow (row, 10, TimeUnit.SECONDS));
+			assertEquals (3, async.getRows());
+		}
+		assertEquals (3, CsrMatrixReader.openFiles (dir.resolve ("stalled"), COLS).getRows());
+
+		for (Path path : stalled.getPaths())
+			path.toFile().deleteOnExit(); // can't delete mapped files on every platform
+	}
+
+	@Test
+	public void testWriteFailureIsReported() throws Exception
+	{	Path dir = Files.createTempDirectory ("async");
+		dir.toFile().deleteOnExit();
+
+		StreamingCsrMatrixWriter failing = new StreamingCsrMatrixWriter (dir.resolve ("failing"), COLS) {
+			@Override
+			public void addRow (int[] cols, short[] values, int size) throws IOException
+			{	throw new IOException ("Disk full");
+			}
+		};
+		for (Path path : failing.getPaths())
+			path.toFile().deleteOnExit();
+
+		Int2ShortMap row = new Int2ShortOpenHashMap (new int[] { 7 }, new short[] { 1 });
+		AsyncCsrMatrixWriter async = new AsyncCsrMatrixWriter (failing, 4);
+		async.addRow (row);
+		while (async.getPendingRows() > 0) // the row is dropped once writing it fails
+			Thread.sleep (1);
+
+		try
+		{	async.addRow (row);
+			fail ("Added a row after the writer failed");
+		}
+		catch (IOException e)
+		{	assertEquals ("Disk full", e.getCause().getMessage());
+		}
+
+		try
+		{	async.close();
+			fail ("The failure wasn't reported when closed");
+		}
+		catch (IOException e)
+		{	assertEquals ("Disk full", e.getMessage());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testWriteErrorReleasesProducers() throws Exception
+	{	Path dir = Files.createTempDirectory ("async");
+		dir.toFile().deleteOnExit();
+
+		// Fails with an Error, rather than an exception, once released
+		final CountDownLatch release = new CountDownLatch (1);
+		StreamingCsrMatrixWriter failing = new StreamingCsrMatrixWriter (dir.resolve ("error"), COLS) {
+			@Override
+			public void addRow (int[] cols, short[] values, int size) throws IOException
+			{	try
+				{	release.await();
+				}
+				catch (InterruptedException ie)
+				{	throw new InterruptedIOException();
+				}
+				throw new OutOfMemoryError ("Simulated");
+			}
+		};
+		for (Path path : failing.getPaths())
+			path.toFile().deleteOnExit();
+
+		Int2ShortMap row = new Int2ShortOpenHashMap (new int[] { 7 }, new short[] { 1 });
+		AsyncCsrMatrixWriter async = new AsyncCsrMatrixWriter (failing, 1);
+		async.addRow (row);
+		new Thread() {
+			@Override
+			public void run()
+			{	try
+				{	Thread.sleep (100);
+				}
+				catch (InterruptedException ie)
+				{	// release it anyway
+				}
+				release.countDown();
+			}
+		}.start();
+
+		// The buffer's full, so this waits until the writer fails, then gives up
+		try
+		{	async.addRow (row);
+			fail ("Added a row after the writer failed");
+		}
+		catch (IOException e)
+		{	assertTrue (e.getCause().getCause() instanceof OutOfMemoryError);
+		}
+
+		try
+		{	async.close();
+			fail ("The error wasn't reported when closed");
+		}
+		catch (IOException e)
+		{	assertTrue (e.getCause() instanceof OutOfMemoryError);
+		}
+	}
+
+	@Test
+	public void testConcurrentProducers() throws Exception
+	{	Path dir = Files.createTempDirectory ("async");
+		dir.toFile().deleteOnExit();
+
+		// Each row is filled from its producer and its number within that producer,
+		// which are recorded against the index the row was given
+		final int producers = 4, perProducer = 2000;
+		final long[] rowOwner = new long[producers * perProducer];
+		Thread[] threads = new Thread[producers];
+		final Exception[] failures = new Exception[producers];
+		Path[] paths;
+		try (final AsyncCsrMatrixWriter async = new AsyncCsrMatrixWriter (dir.resolve ("concurrent"), COLS, 16))
+		{	paths = async.getPaths();
+			for (int t = 0; t < producers; t++)
+			{	final int p = t;
+				threads[t] = new Thread (new Runnable() {
+					@Override
+					public void run()
+					{	Int2ShortMap row = new Int2ShortOpenHashMap();
+						try
+						{	for (int k = 0; k < perProducer; k++)
+							{	row.clear();
+								for (int j = 0; j < k % 40; j++)
+									row.put (p * 200 + j, (short) k);
+								rowOwner[(int) async.addRow (row)] = ((long) p << 32) | k;
+							}
+						}
+						catch (Exception e)
+						{	failures[p] = e;
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+
+			// A rejected row doesn't take a slot, so the rows stay numbered in order
+			try
+			{	async.addRow (new Int2ShortOpenHashMap (new int[] { COLS }, new short[] { 1 }));
+				fail ("Added a column outside the matrix");
+			}
+			catch (IllegalArgumentException e)
+			{	assertEquals (rowOwner.length, async.getRows());
+			}
+		}
+		for (Exception e : failures)
+			if (e != null)
+				throw e;
+
+		CsrMatrixReader reader = CsrMatrixReader.openFiles (dir.resolve ("concurrent"), COLS);
+		assertEquals (rowOwner.length, reader.getRows());
+		for (int r = 0; r < rowOwner.length; r++)
+		{	int p = (int) (rowOwner[r] >>> 32), k = (int) rowOwner[r];
+			assertEquals (k % 40, reader.getRowEnd (r) - reader.getRowStart (r));
+			for (long i = reader.getRowStart (r); i < reader.getRowEnd (r); i++)
+			{	assertEquals (p, reader.getIndices().getInt (i) / 200);
+				assertEquals ((short) k, reader.getData().asShortBigList().getShort (i));
+			}
+		}
+		for (Path path : paths)
+			path.toFile().deleteOnExit(); // can't delete mapped files on every platform
+	}
+}
@@ -0,0 +1,170 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/**
+ * Checks that values survive being spread across many small segments, whatever
+ * the allocator.
+ */
+public class ChunkedBufferTest
+{
+	private final static int COUNT = 10000;
+
+	private void checkInts (SegmentAllocator allocator) throws Exception
+	{	// 64-byte segments, so we have lots of them
+		ChunkedBuffer buf = new ChunkedBuffer (allocator, 4, 0, 6);
+		for (int i = 0; i < COUNT; i++)
+			buf.addInt (i * 7 - 3);
+
+		assertEquals (COUNT, buf.size());
+		for (int i = 0; i < COUNT; i++)
+			assertEquals (i * 7 - 3, buf.getInt (i));
+
+		buf.setInt (COUNT / 2, -1);
+		assertEquals (-1, buf.asIntBigList().getInt (COUNT / 2));
+		assertEquals (COUNT, buf.asIntBigList().size64());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		LittleEndianChannelWriter out = new LittleEndianChannelWriter (Channels.newChannel (bytes), 100);
+		buf.writeTo (out);
+		out.flush();
+
+		ByteBuffer written = ByteBuffer.wrap (bytes.toByteArray()).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (COUNT * 4, written.capacity());
+		for (int i = 0; i < COUNT; i++)
+			assertEquals (i == COUNT / 2 ? -1 : i * 7 - 3, written.getInt());
+	}
+
+	@Test
+	public void testHeap() throws Exception
+	{	checkInts (SegmentAllocator.heap());
+	}
+
+	@Test
+	public void testDirect() throws Exception
+	{	checkInts (SegmentAllocator.direct());
+	}
+
+	@Test
+	public void testMapped() throws Exception
+	{	Path dir = Files.createTempDirectory ("segments");
+		dir.toFile().deleteOnExit();
+		checkInts (SegmentAllocator.mapped (dir));
+	}
+
+	@Test
+	public void testFirstSegmentGrows()
+	{	ChunkedBuffer buf = new ChunkedBuffer (SegmentAllocator.heap(), 2, 1);
+		assertEquals (256, buf.allocatedBytes());
+		for (int i = 0; i < 1000; i++)
+			buf.addShort ((short) i);
+		assertEquals (2048, buf.allocatedBytes());
+		for (int i = 0; i < 1000; i++)
+			assertEquals ((short) i, buf.getShort (i));
+	}
+
+	@Test
+	public void testWriteAsOtherWidth() throws Exception
+	{	ChunkedBuffer ints = new ChunkedBuffer (SegmentAllocator.heap(), 4, 0, 6);
+		for (int i = 0; i < COUNT; i++)
+			ints.addInt (Integer.MAX_VALUE - i);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		LittleEndianChannelWriter out = new LittleEndianChannelWriter (Channels.newChannel (bytes), 100);
+		ints.writeTo (out, NpyDataType.INT64);
+		out.flush();
+
+		ByteBuffer written = ByteBuffer.wrap (bytes.toByteArray()).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (COUNT * 8, written.capacity());
+		ChunkedBuffer longs = new ChunkedBuffer (SegmentAllocator.heap(), 8, 0, 6);
+		for (int i = 0; i < COUNT; i++)
+		{	long value = written.getLong();
+			assertEquals (Integer.MAX_VALUE - i, value);
+			longs.addLong (value);
+		}
+
+		bytes.reset();
+		longs.writeTo (out, NpyDataType.INT32);
+		out.flush();
+
+		written = ByteBuffer.wrap (bytes.toByteArray()).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (COUNT * 4, written.capacity());
+		for (int i = 0; i < COUNT; i++)
+			assertEquals (Integer.MAX_VALUE - i, written.getInt());
+	}
+
+	@Test
+	public void testWriteNarrowed() throws Exception
+	{	// More elements than are narrowed at a time, in small segments
+		int count = 100000;
+		ChunkedBuffer longs = new ChunkedBuffer (SegmentAllocator.direct(), 8, 0, 10);
+		for (int i = 0; i < count; i++)
+			longs.addLong (i * 31L);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		LittleEndianChannelWriter out = new LittleEndianChannelWriter (Channels.newChannel (bytes));
+		longs.writeTo (out, NpyDataType.UINT16);
+		out.flush();
+		ByteBuffer written = ByteBuffer.wrap (bytes.toByteArray()).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (count * 2, written.capacity());
+		for (int i = 0; i < count; i++)
+			assertEquals ((short) (i * 31), written.getShort());
+
+		bytes.reset();
+		longs.writeTo (out, NpyDataType.UINT8);
+		out.flush();
+		written = ByteBuffer.wrap (bytes.toByteArray());
+		assertEquals (count, written.capacity());
+		for (int i = 0; i < count; i++)
+			assertEquals ((byte) (i * 31), written.get());
+	}
+
+	@Test
+	public void testBulkAppendAcrossSegments()
+	{	short[] values = new short[COUNT];
+		for (int i = 0; i < COUNT; i++)
+			values[i] = (short) (i * 3);
+
+		ChunkedBuffer buf = new ChunkedBuffer (SegmentAllocator.heap(), 2, 0, 6);
+		buf.addShort ((short) -1);
+		buf.addShorts (values, 1, COUNT - 1);
+		assertEquals (COUNT, buf.size());
+		assertEquals (-1, buf.getShort (0));
+		for (int i = 1; i < COUNT; i++)
+			assertEquals (values[i], buf.getShort (i));
+	}
+
+	@Test
+	public void testCopyAcrossSegments()
+	{	// Differently sized segments, so segment boundaries don't line up
+		ChunkedBuffer src = new ChunkedBuffer (SegmentAllocator.heap(), 8, 0, 6);
+		for (int i = 0; i < COUNT; i++)
+			src.addLong (i);
+		ChunkedBuffer dst = new ChunkedBuffer (SegmentAllocator.heap(), 8, 0, 7);
+		dst.resize (COUNT * 2 + 3);
+
+		src.copyTo (1, dst, 3, COUNT - 1);
+		src.copyLongsTo (0, dst, COUNT + 2, COUNT, 100);
+		assertEquals (0, dst.getLong (2));
+		for (int i = 1; i < COUNT; i++)
+			assertEquals (i, dst.getLong (i + 2));
+		for (int i = 0; i < COUNT; i++)
+			assertEquals (i + 100, dst.getLong (COUNT + 2 + i));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfBounds()
+	{	ChunkedBuffer buf = new ChunkedBuffer (SegmentAllocator.heap(), 8, 10);
+		buf.addLong (1);
+		buf.getLong (1);
+	}
+}
@@ -0,0 +1,257 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the rows of a matrix can be sorted, either as they're added or afterwards.
+ */
+public class CsrMatrixBuilderTest
+{
+	private final static int ROWS = 6000; // enough entries that the sort is split between tasks
+	private final static int COLS = 100000;
+
+	/**
+	 * Creates a random matrix where each value is derived from its column, so
+	 * we can check values stay with their columns when sorted.
+	 */
+	private static CsrFloatMatrixBuilder randomMatrix (boolean sortRows)
+	{	Random rng = new Random (0xD0D0);
+		CsrFloatMatrixBuilder bldr = new CsrFloatMatrixBuilder (COLS);
+		bldr.setSortRows (sortRows);
+		Int2FloatMap row = new Int2FloatOpenHashMap();
+		for (int r = 0; r < ROWS; r++)
+		{	row.clear();
+			int nnz = rng.nextInt (200);
+			for (int i = 0; i < nnz; i++)
+			{	int col = rng.nextInt (COLS);
+				row.put (col, col * 0.5f);
+			}
+			bldr.addRow (row);
+		}
+		return bldr;
+	}
+
+	private static void checkSorted (CsrFloatMatrixBuilder bldr)
+	{	assertTrue (bldr.hasCanonicalFormat());
+		for (int r = 0; r < bldr.getRows(); r++)
+		{	for (long i = bldr.getIndptr().getLong (r); i < bldr.getIndptr().getLong (r + 1); i++)
+			{	int col = bldr.getIndices().getInt (i);
+				if (i > bldr.getIndptr().getLong (r))
+					assertTrue (bldr.getIndices().getInt (i - 1) < col);
+				assertEquals (col * 0.5f, bldr.getData().getFloat (i), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testSortRowsMatchesSortPass() throws Exception
+	{	CsrFloatMatrixBuilder unsorted = randomMatrix (false);
+		assertFalse (unsorted.hasCanonicalFormat());
+		unsorted.sortIndices();
+		checkSorted (unsorted);
+
+		CsrFloatMatrixBuilder sorted = randomMatrix (true);
+		checkSorted (sorted);
+
+		Path dir = Files.createTempDirectory ("sorted");
+		dir.toFile().deleteOnExit();
+		Path[] expected = sorted.writeToFiles   (dir.resolve ("rows"));
+		Path[] actual   = unsorted.writeToFiles (dir.resolve ("pass"));
+		for (int i = 0; i < expected.length; i++)
+		{	assertArrayEquals (Files.readAllBytes (expected[i]), Files.readAllBytes (actual[i]));
+			Files.delete (expected[i]);
+			Files.delete (actual[i]);
+		}
+	}
+
+	@Test
+	public void testRepeatedColumnsAreRejected() throws Exception
+	{	CsrBooleanMatrixBuilder unsorted = new CsrBooleanMatrixBuilder (10);
+		unsorted.addRow (new IntArrayList (new int[] { 4, 1 }));
+		try
+		{	unsorted.addRow (new IntArrayList (new int[] { 3, 1, 3 }));
+			fail ("Added a row with a repeated column");
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+		try
+		{	unsorted.addRow (new IntArrayList (new int[] { 3, 10 }));
+			fail ("Added a row with a column outside the matrix");
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+		assertEquals (1, unsorted.getRows());
+		assertFalse (unsorted.hasCanonicalFormat());
+		unsorted.sortIndices();
+		assertTrue (unsorted.hasCanonicalFormat());
+		assertEquals (new IntArrayList (new int[] { 1, 4 }), new IntArrayList (unsorted.getIndices().iterator()));
+
+		CsrBooleanMatrixBuilder sorted = new CsrBooleanMatrixBuilder (10);
+		sorted.setSortRows (true);
+		try
+		{	sorted.addRow (new IntArrayList (new int[] { 3, 1, 3 }));
+			fail ("Added a row with a repeated column");
+		}
+		catch (IllegalArgumentException e)
+		{	assertTrue (sorted.hasCanonicalFormat());
+		}
+		sorted.addRow (new IntArrayList (new int[] { 2, 0 }));
+		assertEquals (1, sorted.getRows());
+		assertEquals (new IntArrayList (new int[] { 0, 2 }), new IntArrayList (sorted.getIndices().iterator()));
+	}
+
+	@Test
+	public void testBulkRowsMatchMaps() throws Exception
+	{	short[][] dense = new short[][] {
+			new short[] { 2, 3, 0, 0, 0, 1234, 0,   1 },
+			new short[] { 0, 0, 0, 0, 0, 0,    0,   0 },
+			new short[] { 1, 0, 0, 0, 0, 0,    0,   0 },
+			new short[] {-1, 0, 0, 2, 0, 0,    0, -98 }
+		};
+		int cols = dense[0].length;
+
+		CsrShortMatrixBuilder fromMaps  = new CsrShortMatrixBuilder (cols);
+		CsrShortMatrixBuilder fromDense = new CsrShortMatrixBuilder (cols);
+		CsrShortMatrixBuilder fromPairs = new CsrShortMatrixBuilder (cols);
+		CsrShortMatrixBuilder fromBlock = new CsrShortMatrixBuilder (cols);
+		fromMaps.setSortRows (true);
+
+		// The block is a slice of a larger matrix, so indptr doesn't start at zero
+		int[]   indptr  = new int[dense.length + 1];
+		int[]   indices = new int[64];
+		short[] data    = new short[64];
+		int nnz = indptr[0] = 3;
+		for (short[] row : dense)
+		{	Int2ShortMap map = new Int2ShortOpenHashMap();
+			int start = nnz;
+			for (int c = 0; c < cols; c++)
+			{	if (row[c] != 0)
+				{	map.put (c, row[c]);
+					indices[nnz] = c;
+					data[nnz++]  = row[c];
+				}
+			}
+			fromMaps.addRow  (map);
+			fromDense.addRow (row);
+			fromPairs.addRow (indices, data, start, nnz - start);
+			indptr[fromPairs.getRows()] = nnz;
+		}
+		fromBlock.addRow (new int[] { 7 }, new short[] { 5 }, 0, 1);
+		fromBlock.addRows (indptr, indices, data);
+
+		for (CsrShortMatrixBuilder bldr : new CsrShortMatrixBuilder[] { fromDense, fromPairs })
+		{	assertEquals (fromMaps.getIndptr(), bldr.getIndptr());
+			assertEquals (fromMaps.getIndices(), bldr.getIndices());
+			assertEquals (fromMaps.getData(), bldr.getData());
+		}
+
+		assertEquals (dense.length + 1, fromBlock.getRows());
+		assertEquals (1, fromBlock.getIndptr().getLong (1));
+		for (int r = 0; r <= dense.length; r++)
+			assertEquals (fromMaps.getIndptr().getLong (r) + 1, fromBlock.getIndptr().getLong (r + 1));
+		assertEquals (fromMaps.getIndices(), fromBlock.getIndices().subList (1, fromBlock.getIndices().size64()));
+		assertEquals (fromMaps.getData(), fromBlock.getData().subList (1, fromBlock.getData().size64()));
+	}
+
+	@Test
+	public void testBulkRowsAreChecked() throws Exception
+	{	CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (100);
+		bldr.setNarrowing (true);
+		bldr.addRow (new int[] { 5, 99 }, new short[] { 1, 2 }, 0, 2);
+
+		// Out of range columns aren't truncated to fit a narrow index type
+		int[][] badRows = new int[][] { { 3, 300 }, { -1 }, { 7, 2, 7 }, { 1, 1 } };
+		for (int[] cols : badRows)
+		{	try
+			{	bldr.addRow (cols, new short[cols.length], 0, cols.length);
+				fail ("Added the row " + Arrays.toString (cols));
+			}
+			catch (IllegalArgumentException e)
+			{	assertEquals (1, bldr.getRows());
+				assertEquals (2, bldr.getNonZeroCount());
+			}
+		}
+
+		// ...nor is a block with a bad row in it
+		try
+		{	bldr.addRows (new int[] { 0, 2, 4 }, new int[] { 1, 2, 9, 9 }, new short[4]);
+			fail ("Added a block with a repeated column");
+		}
+		catch (IllegalArgumentException e)
+		{	assertEquals (1, bldr.getRows());
+			assertEquals (2, bldr.getNonZeroCount());
+		}
+
+		// The set used to spot repeats is cleared after each row
+		bldr.addRow (new int[] { 9, 2, 7 }, new short[] { 1, 2, 3 }, 0, 3);
+		bldr.addRow (new int[] { 7, 2, 9 }, new short[] { 1, 2, 3 }, 0, 3);
+		assertEquals (3, bldr.getRows());
+
+		try
+		{	bldr.addRow (new int[] { 1, 2 }, new short[2], 1, Integer.MAX_VALUE);
+			fail ("Added entries past the end of the arrays");
+		}
+		catch (IndexOutOfBoundsException e)
+		{	assertEquals (3, bldr.getRows());
+		}
+	}
+
+	@Test
+	public void testMapRowsAreChecked() throws Exception
+	{	CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (10);
+		bldr.setNarrowing (true);
+		assertEquals (NpyDataType.UINT8, bldr.indicesOutputType());
+
+		// The bad column comes after good ones, which have to be dropped again
+		int[][] badRows = new int[][] { { 3, 300 }, { 2, 5, -1 }, { 10 } };
+		for (int[] cols : badRows)
+		{	Int2ShortMap row = new Int2ShortLinkedOpenHashMap();
+			for (int col : cols)
+				row.put (col, (short) 1);
+			try
+			{	bldr.addRow (row);
+				fail ("Added the row " + Arrays.toString (cols));
+			}
+			catch (IllegalArgumentException e)
+			{	assertEquals (0, bldr.getRows());
+				assertEquals (0, bldr.getNonZeroCount());
+			}
+		}
+
+		Int2ShortMap row = new Int2ShortLinkedOpenHashMap();
+		row.put (9, (short) 4);
+		bldr.addRow (row);
+		assertEquals (1, bldr.getRows());
+		assertEquals (new IntArrayList (new int[] { 9 }), new IntArrayList (bldr.getIndices().iterator()));
+		assertEquals (1, bldr.getIndptr().getLong (1));
+
+		CsrDoubleMatrixBuilder doubles = new CsrDoubleMatrixBuilder (10);
+		try
+		{	doubles.addRow (new Int2DoubleOpenHashMap (new int[] { 44 }, new double[] { 1 }));
+			fail ("Added a column outside the matrix");
+		}
+		catch (IllegalArgumentException e)
+		{	assertEquals (0, doubles.getNonZeroCount());
+		}
+	}
+}
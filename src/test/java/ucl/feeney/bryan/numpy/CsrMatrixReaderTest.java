@@ -0,0 +1,106 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertEquals;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriterTest.randomMatrix;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Checks that matrices read back through memory-mapped views match those written.
+ */
+public class CsrMatrixReaderTest
+{
+	private final static int ROWS = 500;
+	private final static int COLS = 1000;
+
+	private static void checkMatches (CsrShortMatrixBuilder expected, CsrMatrixReader actual)
+	{	assertEquals (expected.getRows(), actual.getRows());
+		assertEquals (expected.getCols(), actual.getCols());
+		assertEquals (expected.getNonZeroCount(), actual.getNonZeroCount());
+		assertEquals (NpyDataType.INT16, actual.getDataType());
+
+		assertEquals (expected.getIndptr(),  actual.getIndptr());
+		assertEquals (expected.getIndices(), actual.getIndices());
+		assertEquals (expected.getData(),    actual.getData().asShortBigList());
+
+		int row = expected.getRows() / 2;
+		assertEquals (expected.getIndptr().getLong (row),     actual.getRowStart (row));
+		assertEquals (expected.getIndptr().getLong (row + 1), actual.getRowEnd (row));
+	}
+
+	@Test
+	public void testReadFiles() throws Exception
+	{	Path dir = Files.createTempDirectory ("reader");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0x5EED);
+		Path[] files = bldr.writeToFiles (dir.resolve ("matrix"));
+		checkMatches (bldr, CsrMatrixReader.openFiles (dir.resolve ("matrix"), COLS));
+
+		for (Path path : files)
+			path.toFile().deleteOnExit(); // can't delete mapped files on every platform
+	}
+
+	@Test
+	public void testReadArchive() throws Exception
+	{	Path dir = Files.createTempDirectory ("reader");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0x5EED);
+		Path[] archive = bldr.writeToFile (dir.resolve ("matrix"));
+		archive[0].toFile().deleteOnExit();
+		checkMatches (bldr, CsrMatrixReader.openArchive (archive[0]));
+	}
+
+	/**
+	 * Checks we can read archives we didn't write ourselves, with no Zip64 fields
+	 */
+	@Test
+	public void testReadForeignArchive() throws Exception
+	{	Path dir = Files.createTempDirectory ("reader");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0x5EED);
+		Path[] archive = bldr.writeToFile (dir.resolve ("matrix"));
+		String[] names = new String[] { "format.npy", "shape.npy", "indices.npy", "indptr.npy", "data.npy" };
+		byte[][] entries = CsrMatrixWriterTest.readEntries (archive[0], "indices.npy", "indptr.npy", "data.npy", "format.npy", "shape.npy");
+		byte[][] ordered = new byte[][] { entries[3], entries[4], entries[0], entries[1], entries[2] };
+		Files.delete (archive[0]);
+
+		Path foreign = dir.resolve ("foreign.npz");
+		foreign.toFile().deleteOnExit();
+		try (OutputStream file = Files.newOutputStream (foreign);
+		     ZipOutputStream zip = new ZipOutputStream (file))
+		{	for (int i = 0; i < names.length; i++)
+			{	ZipEntry entry = new ZipEntry (names[i]);
+				CRC32 crc = new CRC32();
+				crc.update (ordered[i]);
+				entry.setMethod (ZipEntry.STORED);
+				entry.setSize (ordered[i].length);
+				entry.setCrc (crc.getValue());
+				zip.putNextEntry (entry);
+				zip.write (ordered[i]);
+				zip.closeEntry();
+			}
+		}
+		checkMatches (bldr, CsrMatrixReader.openArchive (foreign));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsCompressedArchive() throws Exception
+	{	Path dir = Files.createTempDirectory ("reader");
+		dir.toFile().deleteOnExit();
+
+		Path[] archive = randomMatrix (ROWS, COLS, 0x5EED).writeToFile (dir.resolve ("matrix"), /* compress = */ true);
+		archive[0].toFile().deleteOnExit();
+		CsrMatrixReader.openArchive (archive[0]);
+	}
+}
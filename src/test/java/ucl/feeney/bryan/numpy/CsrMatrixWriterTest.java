@@ -0,0 +1,539 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static ucl.feeney.bryan.numpy.StreamingCsrMatrixWriterTest.readData;
+import static ucl.feeney.bryan.numpy.StreamingCsrMatrixWriterTest.readHeader;
+import it.unimi.dsi.fastutil.ints.Int2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2CharOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Checks the output of the writer without requiring a Python installation.
+ */
+public class CsrMatrixWriterTest
+{
+	private final static int ROWS = 500;
+	private final static int COLS = 1000;
+
+	/**
+	 * Creates a random matrix with a few non-zero entries per row.
+	 */
+	static CsrShortMatrixBuilder randomMatrix (int rows, int cols, long seed)
+	{	return randomMatrix (rows, cols, seed, SegmentAllocator.heap());
+	}
+
+	/**
+	 * Creates a random matrix with a few non-zero entries per row, stored in
+	 * segments from the given allocator
+	 */
+	static CsrShortMatrixBuilder randomMatrix (int rows, int cols, long seed, SegmentAllocator storage)
+	{	Random rng = new Random (seed);
+		CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (cols, storage);
+		Int2ShortMap row = new Int2ShortOpenHashMap();
+		for (int r = 0; r < rows; r++)
+		{	row.clear();
+			int nnz = rng.nextInt (20);
+			for (int i = 0; i < nnz; i++)
+				row.put (rng.nextInt (cols), (short) (rng.nextInt (10) + 1));
+			bldr.addRow (row);
+		}
+		return bldr;
+	}
+
+	/**
+	 * Reads all the entries in the given archive into memory.
+	 */
+	static byte[][] readEntries (Path path, String... names) throws Exception
+	{	byte[][] result = new byte[names.length][];
+		try (ZipFile zip = new ZipFile (path.toFile()))
+		{	Enumeration<? extends ZipEntry> entries = zip.entries();
+			int count = 0;
+			while (entries.hasMoreElements())
+			{	entries.nextElement();
+				++count;
+			}
+			assertEquals (names.length, count);
+
+			for (int i = 0; i < names.length; i++)
+			{	ZipEntry entry = zip.getEntry (names[i]);
+				try (InputStream in = zip.getInputStream (entry))
+				{	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					IOUtils.copy (in, bytes);
+					result[i] = bytes.toByteArray();
+					assertEquals (entry.getSize(), result[i].length);
+
+					CRC32 crc = new CRC32();
+					crc.update (result[i]);
+					assertEquals (entry.getCrc(), crc.getValue());
+				}
+			}
+		}
+		return result;
+	}
+
+	private static byte[] body (byte[] npy)
+	{	int hdrLen = ByteBuffer.wrap (npy).order (ByteOrder.LITTLE_ENDIAN).getShort (8) & 0xFFFF;
+		return Arrays.copyOfRange (npy, 10 + hdrLen, npy.length);
+	}
+
+	private static String header (byte[] npy)
+	{	int hdrLen = ByteBuffer.wrap (npy).order (ByteOrder.LITTLE_ENDIAN).getShort (8) & 0xFFFF;
+		return new String (npy, 10, hdrLen, Charsets.US_ASCII).trim();
+	}
+
+	@Test
+	public void testFilesMatchBuilder() throws Exception
+	{	Path dir = Files.createTempDirectory ("files");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0xBEEF);
+		Path[] files = bldr.writeToFiles (dir.resolve ("matrix"));
+
+		ByteBuffer indices = ByteBuffer.wrap (readData (files[0])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer indptr  = ByteBuffer.wrap (readData (files[1])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer data    = ByteBuffer.wrap (readData (files[2])).order (ByteOrder.LITTLE_ENDIAN);
+
+		assertEquals (bldr.getIndices().size64() * 4, indices.capacity());
+		for (long i = 0; i < bldr.getIndices().size64(); i++)
+			assertEquals (bldr.getIndices().getInt (i), indices.getInt());
+		assertEquals (bldr.getIndptr().size64() * 4, indptr.capacity());
+		for (long i = 0; i < bldr.getIndptr().size64(); i++)
+			assertEquals (bldr.getIndptr().getLong (i), indptr.getInt());
+		assertEquals (bldr.getData().size64() * 2, data.capacity());
+		for (long i = 0; i < bldr.getData().size64(); i++)
+			assertEquals (bldr.getData().getShort (i), data.getShort());
+
+		for (Path path : files)
+			Files.delete (path);
+	}
+
+	@Test
+	public void testOffHeapStorage() throws Exception
+	{	Path dir = Files.createTempDirectory ("storage");
+		dir.toFile().deleteOnExit();
+
+		Path[] heap   = randomMatrix (ROWS, COLS, 0xD1CE, SegmentAllocator.heap()).writeToFiles (dir.resolve ("heap"));
+		Path[] direct = randomMatrix (ROWS, COLS, 0xD1CE, SegmentAllocator.direct()).writeToFiles (dir.resolve ("direct"));
+		Path[] mapped = randomMatrix (ROWS, COLS, 0xD1CE, SegmentAllocator.mapped (dir)).writeToFiles (dir.resolve ("mapped"));
+
+		for (int i = 0; i < heap.length; i++)
+		{	assertArrayEquals (Files.readAllBytes (heap[i]), Files.readAllBytes (direct[i]));
+			assertArrayEquals (Files.readAllBytes (heap[i]), Files.readAllBytes (mapped[i]));
+			Files.delete (heap[i]);
+			Files.delete (direct[i]);
+			Files.delete (mapped[i]);
+		}
+	}
+
+	@Test
+	public void testMappedMatchesBuffered() throws Exception
+	{	Path dir = Files.createTempDirectory ("mapped");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0xFACE);
+		Path[] buffered = bldr.writeToFiles       (dir.resolve ("buffered"));
+		Path[] mapped   = bldr.writeToMappedFiles (dir.resolve ("mapped"));
+
+		for (int i = 0; i < buffered.length; i++)
+		{	assertArrayEquals (Files.readAllBytes (buffered[i]), Files.readAllBytes (mapped[i]));
+			Files.delete (buffered[i]);
+			Files.delete (mapped[i]);
+		}
+	}
+
+	@Test
+	public void testConcurrentMatchesSequential() throws Exception
+	{	Path dir = Files.createTempDirectory ("concurrent");
+		dir.toFile().deleteOnExit();
+
+		ExecutorService executor = Executors.newFixedThreadPool (3);
+		try
+		{	CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0xABBA);
+			Path[] sequential = bldr.writeToFiles (dir.resolve ("sequential"));
+			Path[] concurrent = bldr.writeToFiles (dir.resolve ("concurrent"), executor);
+
+			for (int i = 0; i < sequential.length; i++)
+			{	assertArrayEquals (Files.readAllBytes (sequential[i]), Files.readAllBytes (concurrent[i]));
+				Files.delete (sequential[i]);
+				Files.delete (concurrent[i]);
+			}
+		}
+		finally
+		{	executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelDeflate() throws Exception
+	{	Path dir = Files.createTempDirectory ("deflate");
+		dir.toFile().deleteOnExit();
+
+		ExecutorService executor = Executors.newFixedThreadPool (4);
+		try
+		{	// Large enough that each array spans several blocks
+			CsrShortMatrixBuilder bldr = randomMatrix (200000, COLS, 0xB10C);
+			Path[] stored   = bldr.writeToFile (dir.resolve ("stored"));
+			Path[] parallel = bldr.writeToFile (dir.resolve ("parallel"), Deflater.BEST_SPEED, executor);
+			assertTrue (Files.size (parallel[0]) < Files.size (stored[0]));
+
+			String[] names = new String[] { "indices.npy", "indptr.npy", "data.npy", "format.npy", "shape.npy" };
+			byte[][] expected = readEntries (stored[0],   names);
+			byte[][] actual   = readEntries (parallel[0], names);
+			for (int i = 0; i < names.length; i++)
+				assertArrayEquals (expected[i], actual[i]);
+
+			Files.delete (stored[0]);
+			Files.delete (parallel[0]);
+		}
+		finally
+		{	executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testMappedWindows() throws Exception
+	{	Path path = Files.createTempFile ("windows", ".bin");
+		path.toFile().deleteOnExit();
+
+		int[] ints = new int[1000];
+		for (int i = 0; i < ints.length; i++)
+			ints[i] = i * 31;
+
+		// An awkward window size, so values have to be written across window boundaries
+		try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{	MappedFileWriter out = new MappedFileWriter (channel, 3 + 4L * ints.length + 8, 13);
+			out.write (new byte[] { 1, 2, 3 });
+			out.writeInts (ints, 0, ints.length);
+			out.writeLong (Long.MIN_VALUE);
+			out.flush();
+			assertEquals (3 + 4L * ints.length + 8, out.getBytesWritten());
+			assertEquals (out.getBytesWritten(), channel.position());
+		}
+
+		ByteBuffer bytes = ByteBuffer.wrap (Files.readAllBytes (path)).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (3 + 4 * ints.length + 8, bytes.capacity());
+		bytes.position (3);
+		for (int i = 0; i < ints.length; i++)
+			assertEquals (ints[i], bytes.getInt());
+		assertEquals (Long.MIN_VALUE, bytes.getLong());
+	}
+
+	@Test
+	public void testArchiveMatchesFiles() throws Exception
+	{	for (boolean compress : new boolean[] { false, true })
+		{	Path dir = Files.createTempDirectory ("archive");
+			dir.toFile().deleteOnExit();
+
+			CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0xC0FFEE);
+			Path[] files   = bldr.writeToFiles (dir.resolve ("matrix"));
+			Path[] archive = bldr.writeToFile  (dir.resolve ("matrix"), compress);
+			assertEquals (1, archive.length);
+			assertEquals ("matrix.npz", archive[0].getFileName().toString());
+
+			byte[][] entries = readEntries (archive[0], "indices.npy", "indptr.npy", "data.npy", "format.npy", "shape.npy");
+			for (int i = 0; i < files.length; i++)
+				assertArrayEquals (readData (files[i]), body (entries[i]));
+
+			assertEquals ("{'descr': '|S3', 'fortran_order': False, 'shape': (), }", header (entries[3]));
+			assertEquals ("csr", new String (body (entries[3]), Charsets.US_ASCII));
+
+			assertEquals ("{'descr': '<i8', 'fortran_order': False, 'shape': (2,), }", header (entries[4]));
+			ByteBuffer shape = ByteBuffer.wrap (body (entries[4])).order (ByteOrder.LITTLE_ENDIAN);
+			assertEquals (ROWS, shape.getLong());
+			assertEquals (COLS, shape.getLong());
+
+			for (Path path : files)
+				Files.delete (path);
+			Files.delete (archive[0]);
+		}
+	}
+
+	@Test
+	public void testCscAndCooArchives() throws Exception
+	{	Path dir = Files.createTempDirectory ("formats");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0xC5C);
+		long nnz = bldr.getNonZeroCount();
+
+		Path[] csc = bldr.writeToFile (dir.resolve ("csc"), SparseFormat.CSC, /* compress = */ false);
+		byte[][] entries = readEntries (csc[0], "indices.npy", "indptr.npy", "format.npy", "shape.npy", "data.npy");
+		assertEquals ("csc", new String (body (entries[2]), Charsets.US_ASCII));
+		ByteBuffer shape = ByteBuffer.wrap (body (entries[3])).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (ROWS, shape.getLong());
+		assertEquals (COLS, shape.getLong());
+		ByteBuffer rows   = ByteBuffer.wrap (body (entries[0])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer colPtr = ByteBuffer.wrap (body (entries[1])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer data   = ByteBuffer.wrap (body (entries[4])).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals ((COLS + 1) * 4, colPtr.capacity());
+		assertEquals (nnz * 4, rows.capacity());
+
+		// Every entry of the CSR matrix should be found in its column
+		for (int r = 0; r < ROWS; r++)
+		{	for (long i = bldr.getIndptr().getLong (r); i < bldr.getIndptr().getLong (r + 1); i++)
+			{	int col = bldr.getIndices().getInt ((int) i);
+				boolean found = false;
+				for (int j = colPtr.getInt (col * 4); j < colPtr.getInt (col * 4 + 4) && !found; j++)
+					found = rows.getInt (j * 4) == r && data.getShort (j * 2) == bldr.getData().getShort (i);
+				assertTrue ("entry " + r + ", " + col, found);
+			}
+		}
+
+		Path[] coo = bldr.writeToFile (dir.resolve ("coo"), SparseFormat.COO, /* compress = */ true);
+		entries = readEntries (coo[0], "row.npy", "col.npy", "format.npy", "shape.npy", "data.npy");
+		assertEquals ("coo", new String (body (entries[2]), Charsets.US_ASCII));
+		assertEquals ("{'descr': '<i4', 'fortran_order': False, 'shape': (" + nnz + ",), }", header (entries[0]));
+		rows = ByteBuffer.wrap (body (entries[0])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer cols = ByteBuffer.wrap (body (entries[1])).order (ByteOrder.LITTLE_ENDIAN);
+		data = ByteBuffer.wrap (body (entries[4])).order (ByteOrder.LITTLE_ENDIAN);
+		for (int r = 0; r < ROWS; r++)
+		{	for (long i = bldr.getIndptr().getLong (r); i < bldr.getIndptr().getLong (r + 1); i++)
+			{	assertEquals (r, rows.getInt());
+				assertEquals (bldr.getIndices().getInt (i), cols.getInt());
+				assertEquals (bldr.getData().getShort (i), data.getShort());
+			}
+		}
+
+		Files.delete (csc[0]);
+		Files.delete (coo[0]);
+	}
+
+	@Test
+	public void testDataTypes() throws Exception
+	{	Path dir = Files.createTempDirectory ("types");
+		dir.toFile().deleteOnExit();
+
+		CsrFloatMatrixBuilder floats = new CsrFloatMatrixBuilder (COLS);
+		floats.addRow (new Int2FloatOpenHashMap (new int[] { 7 }, new float[] { 0.25f }));
+		assertEquals (0.25f, checkData (floats.writeToFiles (dir.resolve ("floats")), "<f4", 4).getFloat (0), 0);
+
+		CsrDoubleMatrixBuilder doubles = new CsrDoubleMatrixBuilder (COLS);
+		doubles.addRow (new Int2DoubleOpenHashMap (new int[] { 7 }, new double[] { Math.PI }));
+		assertEquals (Math.PI, checkData (doubles.writeToFiles (dir.resolve ("doubles")), "<f8", 8).getDouble (0), 0);
+
+		CsrByteMatrixBuilder bytes = new CsrByteMatrixBuilder (COLS, 0, 0, SegmentAllocator.heap(), /* unsigned = */ true);
+		bytes.addRow (new Int2ByteOpenHashMap (new int[] { 7 }, new byte[] { (byte) 200 }));
+		assertEquals ((byte) 200, checkData (bytes.writeToFiles (dir.resolve ("bytes")), "|u1", 1).get (0));
+
+		CsrCharMatrixBuilder chars = new CsrCharMatrixBuilder (COLS);
+		chars.addRow (new Int2CharOpenHashMap (new int[] { 7 }, new char[] { 60000 }));
+		assertEquals (60000, checkData (chars.writeToFiles (dir.resolve ("chars")), "<u2", 2).getChar (0));
+		assertEquals (60000, chars.getData().getChar (0));
+
+		CsrBooleanMatrixBuilder bools = new CsrBooleanMatrixBuilder (COLS);
+		bools.addRow (IntArrayList.wrap (new int[] { 7 }));
+		assertEquals (1, checkData (bools.writeToFiles (dir.resolve ("bools")), "|b1", 1).get (0));
+		assertTrue (bools.getData().getBoolean (0));
+	}
+
+	@Test
+	public void testAppendToFiles() throws Exception
+	{	Path dir = Files.createTempDirectory ("append");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder first  = randomMatrix (ROWS, COLS, 0xA11);
+		CsrShortMatrixBuilder second = randomMatrix (ROWS / 3, COLS, 0xA12);
+		CsrShortMatrixBuilder third  = randomMatrix (ROWS / 2, COLS, 0xA13);
+		Path[] files = first.writeToFiles (dir.resolve ("matrix"));
+		second.appendToFiles (dir.resolve ("matrix"));
+		third.appendToFiles  (dir.resolve ("matrix"));
+
+		long nnz = first.getNonZeroCount() + second.getNonZeroCount() + third.getNonZeroCount();
+		int  rows = first.getRows() + second.getRows() + third.getRows();
+		assertEquals ("{'descr': '<i4', 'fortran_order': False, 'shape': (" + nnz + ",), }", readHeader (files[0]));
+		assertEquals ("{'descr': '<i4', 'fortran_order': False, 'shape': (" + (rows + 1) + ",), }", readHeader (files[1]));
+		assertEquals ("{'descr': '<i2', 'fortran_order': False, 'shape': (" + nnz + ",), }", readHeader (files[2]));
+
+		ByteBuffer indices = ByteBuffer.wrap (readData (files[0])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer indptr  = ByteBuffer.wrap (readData (files[1])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer data    = ByteBuffer.wrap (readData (files[2])).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (nnz * 4, indices.capacity());
+		assertEquals ((rows + 1) * 4, indptr.capacity());
+		assertEquals (nnz * 2, data.capacity());
+
+		assertEquals (0, indptr.getInt());
+		int row = 0, entry = 0;
+		for (CsrShortMatrixBuilder part : new CsrShortMatrixBuilder[] { first, second, third })
+		{	for (int r = 0; r < part.getRows(); r++)
+				assertEquals ("row " + row++, entry + part.getIndptr().getLong (r + 1), indptr.getInt());
+			for (long i = 0; i < part.getNonZeroCount(); i++)
+			{	assertEquals (part.getIndices().getInt (i), indices.getInt());
+				assertEquals (part.getData().getShort (i),  data.getShort());
+			}
+			entry += part.getNonZeroCount();
+		}
+
+		for (Path path : files)
+			Files.delete (path);
+	}
+
+	@Test(expected = IOException.class)
+	public void testAppendRejectsOtherTypes() throws Exception
+	{	Path dir = Files.createTempDirectory ("append");
+		dir.toFile().deleteOnExit();
+
+		Path[] files = randomMatrix (ROWS, COLS, 0xA14).writeToFiles (dir.resolve ("matrix"));
+		for (Path path : files)
+			path.toFile().deleteOnExit();
+
+		CsrCharMatrixBuilder chars = new CsrCharMatrixBuilder (COLS);
+		chars.addRow (new Int2CharOpenHashMap (new int[] { 7 }, new char[] { 60000 }));
+		chars.appendToFiles (dir.resolve ("matrix"));
+	}
+
+	@Test
+	public void testNarrowing() throws Exception
+	{	Path dir = Files.createTempDirectory ("narrow");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0x4A44);
+		assertFalse (bldr.isNarrowing());
+		bldr.setNarrowing (true);
+		long nnz = bldr.getNonZeroCount();
+
+		Path[] archive = bldr.writeToFile (dir.resolve ("matrix"));
+		archive[0].toFile().deleteOnExit();
+		byte[][] entries = readEntries (archive[0], "indices.npy", "indptr.npy", "data.npy", "format.npy", "shape.npy");
+		assertEquals ("{'descr': '<u2', 'fortran_order': False, 'shape': (" + nnz + ",), }", header (entries[0]));
+		assertEquals ("{'descr': '<u2', 'fortran_order': False, 'shape': (" + (ROWS + 1) + ",), }", header (entries[1]));
+		assertEquals ("{'descr': '|u1', 'fortran_order': False, 'shape': (" + nnz + ",), }", header (entries[2]));
+
+		CsrMatrixReader reader = CsrMatrixReader.openArchive (archive[0]);
+		assertEquals (bldr.getIndices(), reader.getIndices());
+		assertEquals (bldr.getIndptr(),  reader.getIndptr());
+		ByteBuffer data = ByteBuffer.wrap (body (entries[2]));
+		for (long i = 0; i < nnz; i++)
+			assertEquals (bldr.getData().getShort (i), data.get());
+
+		// Both the rows and columns of a COO matrix are narrowed
+		Path[] coo = bldr.writeToFile (dir.resolve ("coo"), SparseFormat.COO, /* compress = */ false);
+		coo[0].toFile().deleteOnExit();
+		entries = readEntries (coo[0], "row.npy", "col.npy", "format.npy", "shape.npy", "data.npy");
+		assertEquals ("{'descr': '<u2', 'fortran_order': False, 'shape': (" + nnz + ",), }", header (entries[0]));
+		assertEquals ("{'descr': '<u2', 'fortran_order': False, 'shape': (" + nnz + ",), }", header (entries[1]));
+		ByteBuffer rows = ByteBuffer.wrap (body (entries[0])).order (ByteOrder.LITTLE_ENDIAN);
+		for (int r = 0; r < ROWS; r++)
+			for (long i = bldr.getIndptr().getLong (r); i < bldr.getIndptr().getLong (r + 1); i++)
+				assertEquals (r, rows.getShort() & 0xFFFF);
+
+		// Binary data are written as bools, and narrow files can still be appended to
+		CsrShortMatrixBuilder binary = new CsrShortMatrixBuilder (200);
+		binary.setNarrowing (true);
+		binary.addRow (new Int2ShortOpenHashMap (new int[] { 3 },   new short[] { 1 }));
+		binary.addRow (new Int2ShortOpenHashMap (new int[] { 199 }, new short[] { 1 }));
+		Path[] files = binary.writeToFiles (dir.resolve ("binary"));
+		assertEquals ("{'descr': '|u1', 'fortran_order': False, 'shape': (2,), }", readHeader (files[0]));
+		assertEquals ("{'descr': '|u1', 'fortran_order': False, 'shape': (3,), }", readHeader (files[1]));
+		assertEquals ("{'descr': '|b1', 'fortran_order': False, 'shape': (2,), }", readHeader (files[2]));
+		binary.appendToFiles (dir.resolve ("binary"));
+		assertArrayEquals (new byte[] { 3, (byte) 199, 3, (byte) 199 }, readData (files[0]));
+		assertArrayEquals (new byte[] { 0, 1, 2, 3, 4 }, readData (files[1]));
+		assertArrayEquals (new byte[] { 1, 1, 1, 1 }, readData (files[2]));
+
+		Path[] binaryCoo = binary.writeToFile (dir.resolve ("binary-coo"), SparseFormat.COO, /* compress = */ false);
+		binaryCoo[0].toFile().deleteOnExit();
+		entries = readEntries (binaryCoo[0], "row.npy", "col.npy", "format.npy", "shape.npy", "data.npy");
+		assertEquals ("{'descr': '|u1', 'fortran_order': False, 'shape': (2,), }", header (entries[0]));
+		assertArrayEquals (new byte[] { 0, 1 }, body (entries[0]));
+		assertArrayEquals (new byte[] { 3, (byte) 199 }, body (entries[1]));
+
+		for (Path path : files)
+			Files.delete (path);
+	}
+
+	@Test
+	public void testStreamedArchives() throws Exception
+	{	Path dir = Files.createTempDirectory ("streamed");
+		dir.toFile().deleteOnExit();
+
+		String[] names = new String[] { "indices.npy", "indptr.npy", "data.npy", "format.npy", "shape.npy" };
+		CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0x57EA, SegmentAllocator.direct());
+		Path[] file = bldr.writeToFile (dir.resolve ("file"), /* compress = */ true);
+		byte[][] expected = readEntries (file[0], names);
+		Files.delete (file[0]);
+
+		for (boolean compress : new boolean[] { false, true })
+		{	// A stream can't seek, so each entry is followed by a data descriptor
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bldr.writeTo (bytes, compress);
+			Path streamed = dir.resolve ("streamed.npz");
+			Files.write (streamed, bytes.toByteArray());
+			byte[][] actual = readEntries (streamed, names);
+			for (int i = 0; i < names.length; i++)
+				assertArrayEquals (expected[i], actual[i]);
+
+			// ...which sequential readers only accept after deflated entries, so
+			// even uncompressed arrays are deflated, at level 0
+			try (ZipInputStream in = new ZipInputStream (new ByteArrayInputStream (bytes.toByteArray())))
+			{	List<String> order = Arrays.asList (names);
+				for (int i = 0; i < names.length; i++)
+				{	ZipEntry zipEntry = in.getNextEntry();
+					assertEquals (ZipEntry.DEFLATED, zipEntry.getMethod());
+					int entry = order.indexOf (zipEntry.getName());
+					assertArrayEquals (expected[entry], IOUtils.toByteArray (in));
+				}
+				assertNull (in.getNextEntry());
+			}
+
+			// A file channel is written to from its current position, and left open
+			try (FileChannel channel = FileChannel.open (streamed, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+			{	bldr.writeTo (channel, compress);
+				assertTrue (channel.isOpen());
+			}
+			actual = readEntries (streamed, names);
+			for (int i = 0; i < names.length; i++)
+				assertArrayEquals (expected[i], actual[i]);
+			Files.delete (streamed);
+		}
+	}
+
+	/**
+	 * Checks the files hold a single entry in column 7 of the given type, returning
+	 * the data, and deleting the files.
+	 */
+	private static ByteBuffer checkData (Path[] files, String descr, int width) throws Exception
+	{	assertEquals ("{'descr': '<i4', 'fortran_order': False, 'shape': (1,), }", readHeader (files[0]));
+		assertEquals (7, ByteBuffer.wrap (readData (files[0])).order (ByteOrder.LITTLE_ENDIAN).getInt (0));
+		assertEquals ("{'descr': '" + descr + "', 'fortran_order': False, 'shape': (1,), }", readHeader (files[2]));
+		ByteBuffer data = ByteBuffer.wrap (readData (files[2])).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (width, data.capacity());
+
+		for (Path path : files)
+			Files.delete (path);
+		return data;
+	}
+}
@@ -63,7 +63,7 @@ public class CsrShortMatrixBuilderTest
 		   "import numpy as np; "
 		 + "import scipy.sparse as ssp; "
 
-		 + "mat = np.load('%s'); "
+		 + "mat = ssp.load_npz('%s'); "
 		 + "print (mat); ";
 	
 	private static Int2ShortMap toSparseVector (short[] values)
@@ -0,0 +1,91 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.doubles.DoubleBigList;
+import it.unimi.dsi.fastutil.shorts.ShortBigList;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/**
+ * Checks that dense matrices written a vector at a time read back with the
+ * right shape and layout.
+ */
+public class DenseNpyWriterTest
+{
+	private final static int ROWS = 1000;
+	private final static int COLS = 300;
+
+	private static double value (int row, int col)
+	{	return row * 1000.0 + col;
+	}
+
+	@Test
+	public void testCOrder() throws Exception
+	{	Path path = Files.createTempFile ("dense", ".npy");
+		path.toFile().deleteOnExit();
+
+		try (DenseNpyWriter writer = new DenseNpyWriter (path, NpyDataType.FLOAT64, COLS, /* fortranOrder = */ false))
+		{	double[] row = new double[COLS];
+			for (int r = 0; r < ROWS / 2; r++)
+			{	for (int c = 0; c < COLS; c++)
+					row[c] = value (r, c);
+				writer.append (row);
+			}
+
+			// the rest in one go
+			double[] block = new double[(ROWS - ROWS / 2) * COLS];
+			for (int r = ROWS / 2; r < ROWS; r++)
+				for (int c = 0; c < COLS; c++)
+					block[(r - ROWS / 2) * COLS + c] = value (r, c);
+			writer.append (block, 0, block.length);
+			assertEquals (ROWS, writer.getVectorCount());
+		}
+
+		NpyArray array = NpyArray.map (path);
+		assertArrayEquals (new long[] { ROWS, COLS }, array.getShape());
+		assertFalse (array.isFortranOrder());
+		DoubleBigList values = array.asDoubleBigList();
+		for (int r = 0; r < ROWS; r++)
+			for (int c = 0; c < COLS; c++)
+				assertEquals (value (r, c), values.getDouble ((long) r * COLS + c), 0);
+	}
+
+	@Test
+	public void testFortranOrder() throws Exception
+	{	Path path = Files.createTempFile ("dense", ".npy");
+		path.toFile().deleteOnExit();
+
+		try (DenseNpyWriter writer = new DenseNpyWriter (path, NpyDataType.INT16, ROWS, /* fortranOrder = */ true))
+		{	short[] col = new short[ROWS];
+			for (int c = 0; c < COLS; c++)
+			{	for (int r = 0; r < ROWS; r++)
+					col[r] = (short) (r * 7 + c);
+				writer.append (col);
+			}
+		}
+
+		NpyArray array = NpyArray.map (path);
+		assertArrayEquals (new long[] { ROWS, COLS }, array.getShape());
+		assertTrue (array.isFortranOrder());
+		ShortBigList values = array.asShortBigList();
+		for (int c = 0; c < COLS; c++)
+			for (int r = 0; r < ROWS; r++)
+				assertEquals ((short) (r * 7 + c), values.getShort ((long) c * ROWS + r));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsPartialVectors() throws Exception
+	{	Path path = Files.createTempFile ("dense", ".npy");
+		path.toFile().deleteOnExit();
+
+		try (DenseNpyWriter writer = new DenseNpyWriter (path, NpyDataType.FLOAT32, COLS, /* fortranOrder = */ false))
+		{	writer.append (new float[COLS + 1]);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertEquals;
+import it.unimi.dsi.fastutil.shorts.ShortBigList;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.Charsets;
+import org.junit.Test;
+
+/**
+ * Checks documents added from several threads end up in the rows and columns
+ * they were given.
+ */
+public class DocumentTermMatrixWriterTest
+{
+	private final static int DOCS    = 2000;
+	private final static int THREADS = 4;
+	private final static int TERMS   = 5000;
+
+	@Test
+	public void testConcurrentDocuments() throws Exception
+	{	Path dir = Files.createTempDirectory ("docterm");
+		dir.toFile().deleteOnExit();
+
+		// Zipf-ish term frequencies, so some terms are common and many are rare
+		final List<List<String>> docs = new ArrayList<>();
+		Random rng = new Random (0xD0C5);
+		for (int d = 0; d < DOCS; d++)
+		{	List<String> doc = new ArrayList<>();
+			int len = rng.nextInt (100);
+			for (int t = 0; t < len; t++)
+				doc.add ("term" + (int) Math.floor (Math.exp (rng.nextDouble() * 8)));
+			docs.add (doc);
+		}
+
+		final long[] rows = new long[DOCS];
+		Path[] paths;
+		ExecutorService executor = Executors.newFixedThreadPool (THREADS);
+		try (final DocumentTermMatrixWriter wtr = new DocumentTermMatrixWriter (dir.resolve ("docs"), new Vocabulary (TERMS), 16))
+		{	List<Future<Void>> tasks = new ArrayList<>();
+			for (int w = 0; w < THREADS; w++)
+			{	final int worker = w;
+				tasks.add (executor.submit (new Callable<Void>() {
+					@Override
+					public Void call() throws Exception
+					{	for (int d = worker; d < DOCS; d += THREADS)
+							rows[d] = wtr.addDocument (docs.get (d));
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> task : tasks)
+				task.get();
+			assertEquals (DOCS, wtr.getDocumentCount());
+			paths = wtr.getPaths();
+		}
+		finally
+		{	executor.shutdown();
+		}
+
+		List<String> terms = Files.readAllLines (paths[3], Charsets.UTF_8);
+		CsrMatrixReader matrix = CsrMatrixReader.openFiles (dir.resolve ("docs"), TERMS);
+		assertEquals (DOCS, matrix.getRows());
+		ShortBigList data = matrix.getData().asShortBigList();
+		for (int d = 0; d < DOCS; d++)
+		{	Map<String, Integer> expected = new HashMap<>();
+			for (String term : docs.get (d))
+				expected.put (term, expected.containsKey (term) ? expected.get (term) + 1 : 1);
+
+			Map<String, Integer> actual = new HashMap<>();
+			int row = (int) rows[d];
+			for (long i = matrix.getRowStart (row); i < matrix.getRowEnd (row); i++)
+				actual.put (terms.get (matrix.getIndices().getInt (i)), (int) data.getShort (i));
+			assertEquals ("document " + d, expected, actual);
+		}
+
+		for (Path path : paths)
+			path.toFile().deleteOnExit(); // can't delete mapped files on every platform
+	}
+
+	@Test
+	public void testFullVocabulary() throws Exception
+	{	Path dir = Files.createTempDirectory ("docterm");
+		dir.toFile().deleteOnExit();
+
+		try (DocumentTermMatrixWriter wtr = new DocumentTermMatrixWriter (dir.resolve ("full"), 2))
+		{	wtr.addDocument (Arrays.asList ("a", "b", "a", "c", "d", "b"));
+			assertEquals (6, wtr.getTokenCount());
+			assertEquals (2, wtr.getDroppedTokens());
+			assertEquals (Arrays.asList ("a", "b"), Arrays.asList (wtr.getVocabulary().getTerms()));
+			assertEquals (-1, wtr.getVocabulary().lookup ("c"));
+
+			for (Path path : wtr.getPaths())
+				path.toFile().deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static ucl.feeney.bryan.numpy.StreamingCsrMatrixWriterTest.readData;
+import static ucl.feeney.bryan.numpy.StreamingCsrMatrixWriterTest.readHeader;
+import it.unimi.dsi.fastutil.ints.Int2FloatOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the statistics collected as rows are added match those calculated from
+ * the finished matrix.
+ */
+public class MatrixStatisticsTest
+{
+	private final static int ROWS = 500;
+	private final static int COLS = 300;
+
+	@Test
+	public void testShortStatistics() throws Exception
+	{	Path dir = Files.createTempDirectory ("stats");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (COLS);
+		assertNull (bldr.getStatistics());
+		Random rng = new Random (0x57A7);
+		Int2ShortMap row = new Int2ShortOpenHashMap();
+		for (int r = 0; r < ROWS; r++)
+		{	if (r == ROWS / 3) // the rows already added should be included too
+				bldr.setCollectStatistics (true);
+			row.clear();
+			int nnz = rng.nextInt (30);
+			for (int i = 0; i < nnz; i++)
+				row.put (rng.nextInt (COLS), (short) (rng.nextInt (2000) - 500));
+			bldr.addRow (row);
+		}
+
+		int[]  df  = new int[COLS];
+		long[] sum = new long[COLS];
+		long[] max = new long[COLS];
+		for (long i = 0; i < bldr.getNonZeroCount(); i++)
+		{	int   col   = bldr.getIndices().getInt (i);
+			short value = bldr.getData().getShort (i);
+			max[col] = df[col]++ == 0 ? value : Math.max (max[col], value);
+			sum[col] += value;
+		}
+
+		Path[] paths = bldr.writeToFiles (dir.resolve ("matrix"));
+		assertEquals (8, paths.length);
+		assertEquals ("{'descr': '<i4', 'fortran_order': False, 'shape': (" + COLS + ",), }", readHeader (paths[3]));
+		assertEquals ("{'descr': '<i8', 'fortran_order': False, 'shape': (" + COLS + ",), }", readHeader (paths[4]));
+		assertEquals ("{'descr': '<i8', 'fortran_order': False, 'shape': (" + ROWS + ",), }", readHeader (paths[7]));
+
+		MatrixStatistics stats = bldr.getStatistics();
+		ByteBuffer colDf  = ByteBuffer.wrap (readData (paths[3])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer colSum = ByteBuffer.wrap (readData (paths[4])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer colMax = ByteBuffer.wrap (readData (paths[5])).order (ByteOrder.LITTLE_ENDIAN);
+		for (int c = 0; c < COLS; c++)
+		{	assertEquals (df[c],  stats.getDocumentFrequency (c));
+			assertEquals (sum[c], stats.getColumnSum (c), 0);
+			assertEquals (max[c], stats.getColumnMax (c), 0);
+			assertEquals (df[c],  colDf.getInt());
+			assertEquals (sum[c], colSum.getLong());
+			assertEquals (max[c], colMax.getLong());
+		}
+
+		ByteBuffer rowNnz = ByteBuffer.wrap (readData (paths[6])).order (ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer rowSum = ByteBuffer.wrap (readData (paths[7])).order (ByteOrder.LITTLE_ENDIAN);
+		for (int r = 0; r < ROWS; r++)
+		{	long start = bldr.getIndptr().getLong (r), end = bldr.getIndptr().getLong (r + 1);
+			long total = 0;
+			for (long i = start; i < end; i++)
+				total += bldr.getData().getShort (i);
+			assertEquals (end - start, rowNnz.getInt());
+			assertEquals (total, rowSum.getLong());
+			assertEquals (total, stats.getRowSum (r), 0);
+		}
+
+		for (Path path : paths)
+			Files.delete (path);
+	}
+
+	@Test
+	public void testFloatStatistics() throws Exception
+	{	Path dir = Files.createTempDirectory ("stats");
+		dir.toFile().deleteOnExit();
+
+		CsrFloatMatrixBuilder bldr = new CsrFloatMatrixBuilder (COLS);
+		bldr.setCollectStatistics (true);
+		bldr.addRow (new Int2FloatOpenHashMap (new int[] { 3, 7 }, new float[] { 0.5f, -2f }));
+		bldr.addRow (new Int2FloatOpenHashMap (new int[] { 7 },    new float[] { -1.5f }));
+
+		Path[] paths = bldr.writeToFile (dir.resolve ("matrix"));
+		assertEquals (6, paths.length);
+		assertEquals ("{'descr': '<f8', 'fortran_order': False, 'shape': (" + COLS + ",), }", readHeader (paths[2]));
+		ByteBuffer colMax = ByteBuffer.wrap (readData (paths[3])).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (0.5,  colMax.getDouble (3 * 8), 0);
+		assertEquals (-1.5, colMax.getDouble (7 * 8), 0);
+		ByteBuffer rowSum = ByteBuffer.wrap (readData (paths[5])).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (-1.5, rowSum.getDouble (0), 0);
+		assertEquals (-1.5, rowSum.getDouble (8), 0);
+		assertEquals (2, bldr.getStatistics().getDocumentFrequency (7));
+		assertEquals (-3.5, bldr.getStatistics().getColumnSum (7), 0);
+
+		for (Path path : paths)
+			Files.delete (path);
+	}
+
+	@Test
+	public void testRejectedRowIsRolledBack() throws Exception
+	{	CsrFloatMatrixBuilder bldr = new CsrFloatMatrixBuilder (COLS);
+		bldr.setCollectStatistics (true);
+		bldr.addRow (new Int2FloatOpenHashMap (new int[] { 3 }, new float[] { 1f }));
+		try
+		{	bldr.addRow (new Int2FloatOpenHashMap (new int[] { 3, COLS }, new float[] { 2f, 4f }));
+			fail ("A column outside the matrix should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+		bldr.addRow (new Int2FloatOpenHashMap (new int[] { 5 }, new float[] { 0.5f }));
+
+		assertEquals (2, bldr.getRows());
+		assertEquals (2, bldr.getNonZeroCount());
+		assertEquals (2, bldr.getIndptr().getLong (2));
+		assertEquals (5, bldr.getIndices().getInt (1));
+		assertEquals (2, bldr.getStatistics().getRows());
+		assertEquals (1, bldr.getStatistics().getDocumentFrequency (3));
+		assertEquals (1, bldr.getStatistics().getColumnSum (3), 0);
+		assertEquals (0.5, bldr.getStatistics().getRowSum (1), 0);
+	}
+}
@@ -0,0 +1,70 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the metrics gathered while building and writing a matrix add up
+ */
+public class MetricsCountersTest
+{
+	private final static int ROWS = 1000;
+	private final static int COLS = 500;
+
+	@Test
+	public void testCountsRowsAndArrays() throws Exception
+	{	Path dir = Files.createTempDirectory ("metrics");
+		dir.toFile().deleteOnExit();
+
+		MetricsCounters metrics = new Slf4jMetricsReporter();
+		CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (COLS);
+		bldr.setMetricsListener (metrics);
+
+		Random rng = new Random (0x3E7);
+		Int2ShortMap row = new Int2ShortOpenHashMap();
+		for (int r = 0; r < ROWS; r++)
+		{	row.clear();
+			int nnz = rng.nextInt (20);
+			for (int i = 0; i < nnz; i++)
+				row.put (rng.nextInt (COLS), (short) (rng.nextInt (10) + 1));
+			bldr.addRow (row);
+		}
+		assertEquals (ROWS, metrics.getRows());
+		assertEquals (bldr.getNonZeroCount(), metrics.getNonZeroCount());
+		assertTrue (metrics.getRowsPerSecond() > 0);
+
+		Path[] files   = bldr.writeToFiles (dir.resolve ("matrix"));
+		Path[] archive = bldr.writeToFile  (dir.resolve ("matrix"));
+		assertEquals (2, metrics.getMatricesWritten());
+		assertTrue (metrics.getRecombineNanos() > 0);
+		assertTrue (metrics.getWriteNanos() >= metrics.getRecombineNanos());
+		assertEquals (bldr.getAllocatedBytes(), metrics.getPeakFootprintBytes());
+
+		Map<String, MetricsCounters.ArrayCounters> arrays = metrics.getArrays();
+		assertEquals (3, arrays.size());
+		assertEquals (2 * bldr.getNonZeroCount(), arrays.get ("indices").getElements());
+		assertEquals (2 * (ROWS + 1L),           arrays.get ("indptr").getElements());
+		assertEquals (2 * bldr.getNonZeroCount(), arrays.get ("data").getElements());
+
+		long fileBytes = 0;
+		for (Path path : files)
+		{	fileBytes += Files.size (path);
+			Files.delete (path);
+		}
+		Files.delete (archive[0]);
+		for (MetricsCounters.ArrayCounters array : arrays.values())
+		{	assertEquals (2, array.getCount());
+			fileBytes -= array.getBytes() / 2;
+		}
+		assertEquals (0, fileBytes);
+	}
+}
@@ -0,0 +1,69 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.Charsets;
+import org.junit.Test;
+
+/**
+ * Checks the layout of version 1.0 and 2.0 headers.
+ */
+public class NpyHeaderTest
+{
+	@Test
+	public void testVersion1() throws Exception
+	{	byte[] hdr = NpyHeader.encode (NpyDataType.INT64, false, 3_000_000_000L);
+		ByteBuffer buf = ByteBuffer.wrap (hdr).order (ByteOrder.LITTLE_ENDIAN);
+
+		assertEquals (0, hdr.length % NpyHeader.BLOCK_SIZE);
+		assertEquals (1, hdr[6]);
+		assertEquals (hdr.length - 10, buf.getShort (8) & 0xFFFF);
+		assertEquals ("{'descr': '<i8', 'fortran_order': False, 'shape': (3000000000,), }",
+			new String (hdr, 10, hdr.length - 10, Charsets.US_ASCII).trim());
+		assertEquals ('\n', hdr[hdr.length - 1]);
+	}
+
+	@Test
+	public void testVersion2() throws Exception
+	{	// Enough dimensions to push the dictionary past 64KB
+		long[] shape = new long[10000];
+		for (int d = 0; d < shape.length; d++)
+			shape[d] = 1_000_000;
+
+		byte[] hdr = NpyHeader.encode (NpyDataType.INT32, false, shape);
+		ByteBuffer buf = ByteBuffer.wrap (hdr).order (ByteOrder.LITTLE_ENDIAN);
+
+		assertEquals (0, hdr.length % NpyHeader.BLOCK_SIZE);
+		assertEquals (2, hdr[6]);
+		assertEquals (0, hdr[7]);
+		assertEquals (hdr.length - 12, buf.getInt (8));
+		assertTrue (hdr.length - 12 > 0xFFFF);
+		assertTrue (new String (hdr, 12, 40, Charsets.US_ASCII).startsWith ("{'descr': '<i4'"));
+		assertEquals ('\n', hdr[hdr.length - 1]);
+	}
+
+	@Test
+	public void testDecode() throws Exception
+	{	Path path = Files.createTempFile ("header", ".npy");
+		path.toFile().deleteOnExit();
+
+		long[] shape = new long[] { 3, 4_000_000_000L };
+		Files.write (path, NpyHeader.encode (NpyDataType.FLOAT64, true, shape));
+		try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ))
+		{	NpyHeader hdr = NpyHeader.decode (channel, 0);
+			assertEquals (NpyDataType.FLOAT64, hdr.dtype);
+			assertTrue (hdr.fortranOrder);
+			assertArrayEquals (shape, hdr.shape);
+			assertEquals (channel.size(), hdr.length);
+		}
+	}
+}
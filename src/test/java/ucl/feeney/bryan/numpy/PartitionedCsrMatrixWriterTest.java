@@ -0,0 +1,210 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriterTest.randomMatrix;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.Charsets;
+import org.junit.Test;
+
+/**
+ * Checks that the rows of a matrix written out in partitions can be read back
+ * from them, and that the manifest describes them.
+ */
+public class PartitionedCsrMatrixWriterTest
+{
+	private final static int ROWS = 1000;
+	private final static int COLS = 500;
+
+	/**
+	 * Copies the rows of the given matrix through a partitioned writer, and checks
+	 * every partition against the rows of the matrix it should hold.
+	 */
+	private static void checkPartitions (CsrShortMatrixBuilder expected, Path prefix, int maxRows, long maxBytes, ExecutorService executor) throws Exception
+	{	PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> writer =
+			new PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> (prefix, maxRows, maxBytes, false) {
+				@Override
+				protected CsrShortMatrixBuilder newPartition()
+				{	return new CsrShortMatrixBuilder (COLS);
+				}
+			};
+		writer.setExecutor (executor);
+
+		int[]   cols = new int[COLS];
+		short[] vals = new short[COLS];
+		try (PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> w = writer)
+		{	for (int r = 0; r < expected.getRows(); r++)
+			{	int start = (int) expected.getIndptr().getLong (r);
+				int len   = (int) expected.getIndptr().getLong (r + 1) - start;
+				for (int i = 0; i < len; i++)
+				{	cols[i] = expected.getIndices().getInt (start + i);
+					vals[i] = expected.getData().getShort (start + i);
+				}
+				w.partition().addRow (cols, vals, 0, len);
+			}
+		}
+
+		List<String> manifest = Files.readAllLines (writer.getManifestPath(), Charsets.UTF_8);
+		assertEquals ("# shape: (" + ROWS + ", " + COLS + "), nnz: " + expected.getNonZeroCount(), manifest.get (0));
+		assertEquals (writer.getPartitionCount() + 2, manifest.size());
+		assertTrue (writer.getPartitionCount() > 1);
+
+		long nextRow = 0, nextNnz = 0;
+		for (String line : manifest.subList (2, manifest.size()))
+		{	String[] fields = line.split ("\t");
+			Path path = prefix.resolveSibling (fields[0]);
+			long firstRow = Long.parseLong (fields[1]);
+			int  rows     = Integer.parseInt (fields[2]);
+			long firstNnz = Long.parseLong (fields[3]);
+			long nnz      = Long.parseLong (fields[4]);
+			assertEquals (nextRow, firstRow);
+			assertEquals (nextNnz, firstNnz);
+			assertEquals (Files.size (path), Long.parseLong (fields[5]));
+
+			// Each array can be mapped straight from where the manifest says it is
+			long[] lengths = new long[] { nnz, rows + 1L, nnz };
+			try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ))
+			{	for (int a = 0; a < lengths.length; a++)
+				{	NpyArray array = NpyArray.map (channel, Long.parseLong (fields[6 + 2 * a]), Long.parseLong (fields[7 + 2 * a]));
+					assertEquals (lengths[a], array.size());
+				}
+			}
+			if (maxRows > 0)
+				assertTrue (rows <= maxRows);
+
+			CsrMatrixReader part = CsrMatrixReader.openArchive (path);
+			assertEquals (rows, part.getRows());
+			assertEquals (COLS, part.getCols());
+			assertEquals (nnz,  part.getNonZeroCount());
+			for (int r = 0; r <= rows; r++)
+				assertEquals (expected.getIndptr().getLong (firstRow + r) - firstNnz, part.getIndptr().getLong (r));
+			for (long i = 0; i < nnz; i++)
+			{	assertEquals (expected.getIndices().getInt (firstNnz + i),  part.getIndices().getInt (i));
+				assertEquals (expected.getData().getShort (firstNnz + i), part.getData().asShortBigList().getShort (i));
+			}
+
+			path.toFile().deleteOnExit(); // can't delete mapped files on every platform
+			nextRow += rows;
+			nextNnz += nnz;
+		}
+		assertEquals (ROWS, nextRow);
+		assertEquals (expected.getNonZeroCount(), nextNnz);
+		writer.getManifestPath().toFile().deleteOnExit();
+	}
+
+	@Test
+	public void testPartitionByRows() throws Exception
+	{	Path dir = Files.createTempDirectory ("partitioned");
+		dir.toFile().deleteOnExit();
+
+		checkPartitions (randomMatrix (ROWS, COLS, 0x5A4D), dir.resolve ("rows"), 300, 0, null);
+	}
+
+	@Test
+	public void testPartitionByBytesInParallel() throws Exception
+	{	Path dir = Files.createTempDirectory ("partitioned");
+		dir.toFile().deleteOnExit();
+
+		ExecutorService executor = Executors.newFixedThreadPool (3);
+		try
+		{	checkPartitions (randomMatrix (ROWS, COLS, 0x5A4D), dir.resolve ("bytes"), 0, 8 * 1024, executor);
+		}
+		finally
+		{	executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailedWriteIsRetried() throws Exception
+	{	Path dir = Files.createTempDirectory ("partitioned");
+		dir.toFile().deleteOnExit();
+		Path missing = dir.resolve ("missing");
+
+		PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> writer =
+			new PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> (missing.resolve ("retried"), 2, 0, false) {
+				@Override
+				protected CsrShortMatrixBuilder newPartition()
+				{	return new CsrShortMatrixBuilder (COLS);
+				}
+			};
+		try (PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> w = writer)
+		{	w.partition().addRow (new int[] { 1 }, new short[] { 1 }, 0, 1);
+			w.partition().addRow (new int[] { 2 }, new short[] { 2 }, 0, 1);
+			try
+			{	w.partition(); // the full partition's directory doesn't exist yet
+				fail ("Wrote a partition to a missing directory");
+			}
+			catch (IOException e)
+			{	Files.createDirectory (missing);
+				missing.toFile().deleteOnExit();
+			}
+			w.partition().addRow (new int[] { 3 }, new short[] { 3 }, 0, 1);
+		}
+
+		List<String> manifest = Files.readAllLines (writer.getManifestPath(), Charsets.UTF_8);
+		assertEquals ("# shape: (3, " + COLS + "), nnz: 3", manifest.get (0));
+		assertEquals (4, manifest.size());
+		assertTrue (manifest.get (2).startsWith ("retried-00000.npz\t0\t2\t0\t2\t"));
+		assertTrue (manifest.get (3).startsWith ("retried-00001.npz\t2\t1\t2\t1\t"));
+
+		for (String name : missing.toFile().list())
+			missing.resolve (name).toFile().deleteOnExit();
+	}
+
+	@Test
+	public void testFailedParallelWriteLeavesNoManifest() throws Exception
+	{	Path dir = Files.createTempDirectory ("partitioned");
+		dir.toFile().deleteOnExit();
+
+		PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> writer =
+			new PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> (dir.resolve ("failed"), 1, 0, false) {
+				private boolean first = true;
+
+				@Override
+				protected CsrShortMatrixBuilder newPartition()
+				{	if (! first)
+						return new CsrShortMatrixBuilder (COLS);
+					first = false;
+					return new CsrShortMatrixBuilder (COLS) {
+						@Override
+						public Path[] writeToFile (Path filePrefix, boolean compress) throws Exception
+						{	throw new IOException ("Disk full");
+						}
+					};
+				}
+			};
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		writer.setExecutor (executor);
+		try
+		{	// Enough partitions that we have to wait for the first to be written
+			int partitions = Runtime.getRuntime().availableProcessors() + 2;
+			try (PartitionedCsrMatrixWriter<CsrShortMatrixBuilder> w = writer)
+			{	for (int r = 0; r < partitions; r++)
+					w.partition().addRow (new int[] { r }, new short[] { 1 }, 0, 1);
+				fail ("Added partitions after one could not be written");
+			}
+			catch (IOException e)
+			{	assertEquals ("Disk full", e.getCause().getMessage());
+				assertEquals (1, e.getSuppressed().length);
+				assertEquals ("Disk full", e.getSuppressed()[0].getMessage());
+			}
+			assertFalse (Files.exists (writer.getManifestPath()));
+		}
+		finally
+		{	executor.shutdown();
+			for (String name : dir.toFile().list())
+				dir.resolve (name).toFile().deleteOnExit();
+		}
+	}
+}
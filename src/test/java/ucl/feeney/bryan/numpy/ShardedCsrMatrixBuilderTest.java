@@ -0,0 +1,137 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that shards filled in by several threads merge into the same matrix as
+ * would have been built by one.
+ */
+public class ShardedCsrMatrixBuilderTest
+{
+	private final static int SHARDS         = 4;
+	private final static int ROWS_PER_SHARD = 300;
+	private final static int COLS           = 1000;
+
+	private static void addRows (CsrShortMatrixBuilder bldr, int shard)
+	{	Random rng = new Random (shard);
+		Int2ShortMap row = new Int2ShortOpenHashMap();
+		for (int r = 0; r < ROWS_PER_SHARD; r++)
+		{	row.clear();
+			int nnz = rng.nextInt (20);
+			for (int i = 0; i < nnz; i++)
+				row.put (rng.nextInt (COLS), (short) (rng.nextInt (10) + 1));
+			bldr.addRow (row);
+		}
+	}
+
+	@Test
+	public void testMergeMatchesSingleBuilder() throws Exception
+	{	List<CsrShortMatrixBuilder> shards = new ArrayList<>();
+		for (int s = 0; s < SHARDS; s++)
+			shards.add (new CsrShortMatrixBuilder (COLS));
+		final ShardedCsrMatrixBuilder<CsrShortMatrixBuilder> sharded = new ShardedCsrMatrixBuilder<> (shards);
+
+		Thread[] workers = new Thread[SHARDS];
+		for (int s = 0; s < SHARDS; s++)
+		{	final int shard = s;
+			workers[s] = new Thread() {
+				@Override
+				public void run()
+				{	addRows (sharded.getShard (shard), shard);
+				}
+			};
+			workers[s].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+
+		CsrShortMatrixBuilder expected = new CsrShortMatrixBuilder (COLS);
+		for (int s = 0; s < SHARDS; s++)
+			addRows (expected, s);
+		CsrMatrixBuilder merged = sharded.merge();
+
+		assertEquals (expected.getRows(), merged.getRows());
+		assertEquals (expected.getNonZeroCount(), merged.getNonZeroCount());
+		assertEquals (expected.getIndptr(), merged.getIndptr());
+
+		Path dir = Files.createTempDirectory ("sharded");
+		dir.toFile().deleteOnExit();
+		Path[] expectedFiles = expected.writeToFiles (dir.resolve ("expected"));
+		Path[] mergedFiles   = merged.writeToFiles   (dir.resolve ("merged"));
+		for (int i = 0; i < expectedFiles.length; i++)
+		{	assertArrayEquals (Files.readAllBytes (expectedFiles[i]), Files.readAllBytes (mergedFiles[i]));
+			Files.delete (expectedFiles[i]);
+			Files.delete (mergedFiles[i]);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsMismatchedShards()
+	{	List<CsrMatrixBuilder> shards = new ArrayList<>();
+		shards.add (new CsrShortMatrixBuilder (COLS));
+		shards.add (new CsrFloatMatrixBuilder (COLS));
+		new ShardedCsrMatrixBuilder<> (shards);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNoShards()
+	{	new ShardedCsrMatrixBuilder<> (new ArrayList<CsrShortMatrixBuilder>());
+	}
+
+	@Test
+	public void testMergeKeepsSettings() throws Exception
+	{	MetricsCounters metrics = new MetricsCounters();
+		List<CsrShortMatrixBuilder> shards = new ArrayList<>();
+		for (int s = 0; s < SHARDS; s++)
+		{	CsrShortMatrixBuilder shard = new CsrShortMatrixBuilder (COLS);
+			shard.setNarrowing (true);
+			shard.setCollectStatistics (true);
+			shard.setMetricsListener (metrics);
+			addRows (shard, s);
+			shards.add (shard);
+		}
+		CsrMatrixBuilder merged = new ShardedCsrMatrixBuilder<> (shards).merge();
+
+		assertTrue (merged.isNarrowing());
+		assertEquals (NpyDataType.UINT8, merged.dataOutputType());
+		assertSame (metrics, merged.getMetricsListener());
+		assertEquals (SHARDS * ROWS_PER_SHARD, merged.getStatistics().getRows());
+		int df = 0;
+		for (CsrShortMatrixBuilder shard : shards)
+			df += shard.getStatistics().getDocumentFrequency (7);
+		assertEquals (df, merged.getStatistics().getDocumentFrequency (7));
+
+		// Shards which would be written out differently can't be merged
+		shards.get (2).setNarrowing (false);
+		try
+		{	new ShardedCsrMatrixBuilder<> (shards).merge();
+			fail ("Merged shards which narrow and shards which don't");
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+		shards.get (2).setNarrowing (true);
+		shards.get (3).setCollectStatistics (false);
+		try
+		{	new ShardedCsrMatrixBuilder<> (shards).merge();
+			fail ("Merged shards which collect statistics and shards which don't");
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks a matrix spilled in runs is written out just as if it had been built
+ * in memory.
+ */
+public class SpillingCsrMatrixBuilderTest
+{
+	private final static int ROWS = 5000;
+	private final static int COLS = 1000;
+
+	@Test
+	public void testMatchesBuilder() throws Exception
+	{	Path dir = Files.createTempDirectory ("spilling");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder expected = new CsrShortMatrixBuilder (COLS);
+		Path[] actual;
+		try (SpillingCsrMatrixBuilder<CsrShortMatrixBuilder> spiller = new SpillingCsrMatrixBuilder<CsrShortMatrixBuilder> (dir, 32 * 1024) {
+				@Override
+				protected CsrShortMatrixBuilder newRun()
+				{	return new CsrShortMatrixBuilder (COLS);
+				}
+			})
+		{	Random rng = new Random (0x5B111);
+			Int2ShortMap row = new Int2ShortOpenHashMap();
+			for (int r = 0; r < ROWS; r++)
+			{	row.clear();
+				int nnz = rng.nextInt (20);
+				for (int i = 0; i < nnz; i++)
+					row.put (rng.nextInt (COLS), (short) rng.nextInt());
+				expected.addRow (row);
+				spiller.builder().addRow (row);
+			}
+			assertTrue (spiller.getRunCount() > 1);
+			assertEquals (ROWS, spiller.getRows());
+			assertEquals (expected.getNonZeroCount(), spiller.getNonZeroCount());
+
+			actual = spiller.writeToFiles (dir.resolve ("spilled"));
+		}
+		Path[] built = expected.writeToFiles (dir.resolve ("built"));
+
+		for (int i = 0; i < built.length; i++)
+		{	assertArrayEquals (Files.readAllBytes (built[i]), Files.readAllBytes (actual[i]));
+			Files.delete (built[i]);
+			Files.delete (actual[i]);
+		}
+
+		// The runs, and their directory, should have been deleted on close
+		assertEquals (0, dir.toFile().list().length);
+	}
+}
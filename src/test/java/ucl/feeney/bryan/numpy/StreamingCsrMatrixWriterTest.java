@@ -0,0 +1,130 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.ints.Int2ShortMap;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.commons.io.Charsets;
+import org.junit.Test;
+
+/**
+ * Checks the streaming writer produces the same arrays as the builder does, without
+ * requiring a Python installation.
+ */
+public class StreamingCsrMatrixWriterTest
+{
+	private final static short[][] MATRIX = new short[][] {
+		new short[] { 2, 3, 0, 0, 0, 1234, 0,   1 },
+		new short[] { 0, 0, 0, 0, 0, 0,    0,   0 },
+		new short[] { 1, 0, 0, 0, 0, 0,    0,   0 },
+		new short[] { 0, 0, 0, 0, 0, 0,    0,   9 },
+		new short[] {-1, 0, 0, 2, 0, 0,    0, -98 }
+	};
+
+	private static Int2ShortMap toSparseVector (short[] values)
+	{	Int2ShortMap map = new Int2ShortOpenHashMap(values.length / 2);
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != 0)
+				map.put(i, values[i]);
+
+		return map;
+	}
+
+	/**
+	 * Returns the header dictionary of the given NPY file
+	 */
+	static String readHeader (Path path) throws Exception
+	{	ByteBuffer buf = ByteBuffer.wrap (Files.readAllBytes (path)).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals ((byte) 0x93, buf.get (0));
+		int hdrLen = buf.getShort (8) & 0xFFFF;
+		assertEquals ("Data should be aligned", 0, (10 + hdrLen) % NpyHeader.BLOCK_SIZE);
+		return new String (buf.array(), 10, hdrLen, Charsets.US_ASCII).trim();
+	}
+
+	/**
+	 * Returns the bytes following the header of the given NPY file
+	 */
+	static byte[] readData (Path path) throws Exception
+	{	byte[] bytes = Files.readAllBytes (path);
+		int hdrLen = ByteBuffer.wrap (bytes).order (ByteOrder.LITTLE_ENDIAN).getShort (8) & 0xFFFF;
+		return Arrays.copyOfRange (bytes, 10 + hdrLen, bytes.length);
+	}
+
+	@Test
+	public void testMatchesBuilder() throws Exception
+	{	Path dir = Files.createTempDirectory ("streaming");
+		dir.toFile().deleteOnExit();
+
+		CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (MATRIX[0].length);
+		Path[] expected;
+		Path[] actual;
+		try (StreamingCsrMatrixWriter wtr = new StreamingCsrMatrixWriter (dir.resolve ("streamed"), MATRIX[0].length))
+		{	for (short[] row : MATRIX)
+			{	Int2ShortMap vector = toSparseVector (row);
+				bldr.addRow (vector);
+				wtr.addRow (vector);
+			}
+			assertEquals (MATRIX.length, wtr.getRows());
+			assertEquals (9, wtr.getNonZeroCount());
+			actual = wtr.getPaths();
+		}
+		expected = bldr.writeToFiles (dir.resolve ("built"));
+
+		assertTrue (readHeader (actual[0]).startsWith ("{'descr': '<i4', 'fortran_order': False, 'shape': (9,), }"));
+		assertTrue (readHeader (actual[1]).startsWith ("{'descr': '<i4', 'fortran_order': False, 'shape': (6,), }"));
+		assertTrue (readHeader (actual[2]).startsWith ("{'descr': '<i2', 'fortran_order': False, 'shape': (9,), }"));
+
+		for (int i = 0; i < expected.length; i++)
+		{	assertEquals (readHeader (expected[i]), readHeader (actual[i]));
+			assertArrayEquals (readData (expected[i]), readData (actual[i]));
+			Files.delete (expected[i]);
+			Files.delete (actual[i]);
+		}
+	}
+
+	@Test
+	public void testPromotesIndptr() throws Exception
+	{	Path dir = Files.createTempDirectory ("promoted");
+		dir.toFile().deleteOnExit();
+
+		Path[] actual;
+		try (StreamingCsrMatrixWriter wtr = new StreamingCsrMatrixWriter (dir.resolve ("streamed"), MATRIX[0].length))
+		{	// Promote part way through, as would happen once there were 2^31 entries
+			for (int r = 0; r < MATRIX.length; r++)
+			{	if (r == 3)
+					wtr.promoteIndptr();
+				wtr.addRow (toSparseVector (MATRIX[r]));
+			}
+			actual = wtr.getPaths();
+		}
+
+		assertTrue (readHeader (actual[1]).startsWith ("{'descr': '<i8', 'fortran_order': False, 'shape': (6,), }"));
+		ByteBuffer indptr = ByteBuffer.wrap (readData (actual[1])).order (ByteOrder.LITTLE_ENDIAN);
+		assertEquals (6 * 8, indptr.capacity());
+		for (long expected : new long[] { 0, 4, 4, 5, 6, 9 })
+			assertEquals (expected, indptr.getLong());
+
+		for (Path path : actual)
+			Files.delete (path);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsColumnOutOfRange() throws Exception
+	{	Path dir = Files.createTempDirectory ("streaming");
+		dir.toFile().deleteOnExit();
+
+		try (StreamingCsrMatrixWriter wtr = new StreamingCsrMatrixWriter (dir.resolve ("bad"), 4))
+		{	for (Path path : wtr.getPaths())
+				path.toFile().deleteOnExit();
+			wtr.addRow (toSparseVector (MATRIX[0]));
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package ucl.feeney.bryan.numpy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static ucl.feeney.bryan.numpy.CsrMatrixWriterTest.randomMatrix;
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Checks the parallel transpose against one worked out entry by entry.
+ */
+public class TransposerTest
+{
+	private final static int ROWS = 200000;
+	private final static int COLS = 3000;
+
+	@Test
+	public void testTransposeInChunks() throws Exception
+	{	CsrShortMatrixBuilder bldr = randomMatrix (ROWS, COLS, 0x7A05E);
+
+		// Work out where each entry should end up, column by column, row by row
+		long[] colStart = new long[COLS + 1];
+		for (long i = 0; i < bldr.getNonZeroCount(); i++)
+			++colStart[bldr.getIndices().getInt (i) + 1];
+		for (int c = 0; c < COLS; c++)
+			colStart[c + 1] += colStart[c];
+
+		ForkJoinPool pool = new ForkJoinPool (4);
+		CsrMatrixBuilder transpose;
+		try
+		{	transpose = bldr.transpose (pool);
+		}
+		finally
+		{	pool.shutdown();
+		}
+
+		assertEquals (COLS, transpose.getRows());
+		assertEquals (ROWS, transpose.getCols());
+		assertEquals (bldr.getNonZeroCount(), transpose.getNonZeroCount());
+		for (int c = 0; c <= COLS; c++)
+			assertEquals (colStart[c], transpose.getIndptr().getLong (c));
+
+		ChunkedBuffer data = transpose.dataBuffer();
+		long[] next = colStart.clone();
+		for (int r = 0; r < ROWS; r++)
+		{	for (long i = bldr.getIndptr().getLong (r); i < bldr.getIndptr().getLong (r + 1); i++)
+			{	long pos = next[bldr.getIndices().getInt (i)]++;
+				assertEquals (r, transpose.getIndices().getInt (pos));
+				assertEquals (bldr.getData().getShort (i), data.getShort (pos));
+			}
+		}
+		assertTrue (transpose.hasCanonicalFormat());
+	}
+
+	@Test
+	public void testTransposeOfUnsortedRowsIsCanonical() throws Exception
+	{	CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (5);
+		bldr.addRow (new int[] { 4, 0, 2 }, new short[] { 1, 2, 3 }, 0, 3);
+		bldr.addRow (new int[] { 2, 1 },    new short[] { 4, 5 },    0, 2);
+		assertFalse (bldr.hasCanonicalFormat());
+
+		ForkJoinPool pool = new ForkJoinPool (2);
+		CsrMatrixBuilder transpose;
+		try
+		{	transpose = bldr.transpose (pool);
+		}
+		finally
+		{	pool.shutdown();
+		}
+
+		assertTrue (transpose.hasCanonicalFormat());
+		assertEquals (new LongArrayList (new long[] { 0, 1, 2, 4, 4, 5 }), new LongArrayList (transpose.getIndptr().iterator()));
+		assertEquals (new IntArrayList  (new int[]  { 0, 1, 0, 1, 0 }),    new IntArrayList  (transpose.getIndices().iterator()));
+	}
+
+	@Test
+	public void testOutOfRangeColumnsAreReported() throws Exception
+	{	// A map row with a column outside the matrix is rejected when it's added...
+		CsrShortMatrixBuilder bldr = new CsrShortMatrixBuilder (5);
+		bldr.addRow (new Int2ShortOpenHashMap (new int[] { 1, 3 }, new short[] { 1, 2 }));
+		try
+		{	bldr.addRow (new Int2ShortOpenHashMap (new int[] { 2, 300 }, new short[] { 1, 2 }));
+			fail ("Added a column outside the matrix");
+		}
+		catch (IllegalArgumentException e)
+		{	// expected
+		}
+		CsrMatrixBuilder transpose = bldr.transpose();
+		assertEquals (new LongArrayList (new long[] { 0, 0, 1, 1, 2, 2 }), new LongArrayList (transpose.getIndptr().iterator()));
+
+		// ...and if one gets in anyway, the transpose names it
+		bldr.indices.addInt (300);
+		bldr.data.addShort ((short) 3);
+		bldr.endRow();
+		try
+		{	bldr.transpose();
+			fail ("Transposed a matrix with a column outside it");
+		}
+		catch (IllegalArgumentException e)
+		{	assertTrue (e.getMessage(), e.getMessage().contains ("Column 300 "));
+		}
+	}
+}